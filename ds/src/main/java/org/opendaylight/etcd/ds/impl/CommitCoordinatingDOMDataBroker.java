@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.Collection;
+import java.util.Map;
+import org.opendaylight.mdsal.common.api.CommitInfo;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeWriteTransaction;
+import org.opendaylight.mdsal.dom.broker.SerializedDOMDataBroker;
+import org.opendaylight.mdsal.dom.spi.store.DOMStore;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+
+/**
+ * {@link SerializedDOMDataBroker} which tells the {@link EtcdCommitCoordinator} which data store cohorts belong to
+ * the same DOM transaction, so that it can commit their changes as one etcd TXN.
+ *
+ * @author Michael Vorburger.ch
+ */
+// intentionally just .impl package-local, for now
+class CommitCoordinatingDOMDataBroker extends SerializedDOMDataBroker {
+
+    private final EtcdCommitCoordinator commitCoordinator;
+
+    CommitCoordinatingDOMDataBroker(Map<LogicalDatastoreType, DOMStore> datastores,
+            ListeningExecutorService executor, EtcdCommitCoordinator commitCoordinator) {
+        super(datastores, executor);
+        this.commitCoordinator = requireNonNull(commitCoordinator, "commitCoordinator");
+    }
+
+    @Override
+    protected FluentFuture<? extends CommitInfo> commit(DOMDataTreeWriteTransaction transaction,
+            Collection<DOMStoreThreePhaseCommitCohort> cohorts) {
+        commitCoordinator.begin(cohorts);
+        return super.commit(transaction, cohorts);
+    }
+}
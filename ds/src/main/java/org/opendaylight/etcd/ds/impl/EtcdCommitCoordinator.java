@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.MapMaker;
+import io.etcd.jetcd.kv.TxnResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Commits the changes which a DOM transaction makes to both the configuration and the operational data store as a
+ * single etcd TXN, instead of one per data store; this makes them atomic, and saves a round-trip.
+ *
+ * <p>The DOM data broker (see {@link CommitCoordinatingDOMDataBroker}) tells this which data store cohorts belong to
+ * the same DOM transaction before it runs any of their phases, see {@link #begin(Collection)}.  It runs each phase of
+ * a DOM transaction for all of its cohorts before the next phase: first canCommit() of all cohorts, which validates;
+ * then preCommit() of all, which prepares the DataTreeCandidate; and then commit() of all, which translates it into
+ * an EtcdTxn.  The EtcdTxn of each but the last cohort to commit is held back, and the last one then sends the union
+ * of them all, via the {@link EtcdTxnGroupCommitter}, as one.  Because the keys of the two data stores have different
+ * prefixes, their union never writes a key twice.  The rounds are keyed by the cohorts, and not by the thread, so
+ * that several DOM transactions can be committed concurrently, on any threads, and interleaved.
+ *
+ * <p>Candidates which are too big for a single TXN, see EtcdDataStore's ChunkedCommit, and unions which would be,
+ * are committed separately, as before; so such DOM transactions are not atomic across data stores.  Cohorts which
+ * were not announced by {@link #begin(Collection)} (e.g. of a data store used without the DOM data broker) are
+ * committed on their own.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdCommitCoordinator implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdCommitCoordinator.class);
+
+    private final String name;
+    private final EtcdTxnGroupCommitter groupCommitter;
+
+    // The round of the DOM transaction which each cohort belongs to, until the cohort commits; weakly keyed (and so
+    // by identity) because the cohorts of aborted transactions never commit, and are not removed.
+    private final ConcurrentMap<DOMStoreThreePhaseCommitCohort, Round> rounds = new MapMaker().weakKeys().makeMap();
+
+    private final LongStatistics storesPerTxn = new LongStatistics("data stores per TXN");
+
+    EtcdCommitCoordinator(String name, EtcdTxnGroupCommitter groupCommitter) {
+        this.name = name;
+        this.groupCommitter = requireNonNull(groupCommitter, "groupCommitter");
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        LOG.info("{} commit coordination statistics: {}", name, storesPerTxn);
+    }
+
+    /**
+     * A DOM transaction, with the given cohorts (one per data store it used), is about to be committed.
+     */
+    void begin(Collection<? extends DOMStoreThreePhaseCommitCohort> cohorts) {
+        if (cohorts.size() < 2) {
+            return;
+        }
+        Round round = new Round(cohorts.size());
+        for (DOMStoreThreePhaseCommitCohort cohort : cohorts) {
+            rounds.put(cohort, round);
+        }
+    }
+
+    /**
+     * Commit a data store's cohort, translated into the given EtcdTxn; possibly together with those of the other
+     * cohorts of the same DOM transaction, see class documentation.  The TxnResponse of the returned CompletionStage
+     * is that of the etcd TXN which the given transaction was part of.
+     */
+    @CheckReturnValue
+    CompletionStage<TxnResponse> commit(@Nullable DOMStoreThreePhaseCommitCohort cohort, EtcdTxn txn) {
+        HeldBack heldBack = new HeldBack(txn);
+        send(roundOf(cohort).committed(heldBack));
+        return heldBack.future;
+    }
+
+    /**
+     * A data store commits a cohort separately (e.g. because it is too big), or not at all (because it failed);
+     * this sends the EtcdTxns held back for it, if it was the last one which they were waiting for.
+     */
+    void committingSeparately(@Nullable DOMStoreThreePhaseCommitCohort cohort) {
+        send(roundOf(cohort).committed(null));
+    }
+
+    private Round roundOf(@Nullable DOMStoreThreePhaseCommitCohort cohort) {
+        Round round = cohort != null ? rounds.remove(cohort) : null;
+        return round != null ? round : new Round(1);
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+    private void send(List<HeldBack> heldBacks) {
+        if (heldBacks.isEmpty()) {
+            return;
+        }
+        EtcdTxn union = heldBacks.get(0).txn;
+        List<HeldBack> members = new ArrayList<>(heldBacks.size());
+        members.add(heldBacks.get(0));
+        for (HeldBack heldBack : heldBacks.subList(1, heldBacks.size())) {
+            if (fits(union, heldBack.txn)) {
+                union.addAll(heldBack.txn);
+                members.add(heldBack);
+            } else {
+                LOG.info("{} committing TXN separately, as it does not fit into one TXN with the other data store's",
+                        name);
+                send(Collections.singletonList(heldBack));
+            }
+        }
+        storesPerTxn.record(members.size());
+        groupCommitter.commit(union).whenComplete((txnResponse, throwable) -> {
+            for (HeldBack member : members) {
+                if (throwable != null) {
+                    member.future.completeExceptionally(throwable);
+                } else {
+                    member.future.complete(txnResponse);
+                }
+            }
+        });
+    }
+
+    private boolean fits(EtcdTxn union, EtcdTxn txn) {
+        // etcd separately limits the number of compares and of operations in a TXN to --max-txn-ops
+        return union.cmps().size() + txn.cmps().size() <= groupCommitter.getMaxOps()
+                && union.ops().size() + txn.ops().size() <= groupCommitter.getMaxOps()
+                && union.byteSize() + txn.byteSize() <= groupCommitter.getMaxBytes();
+    }
+
+    private static final class Round {
+        // the number of cohorts which did not commit yet
+        private int uncommitted;
+        private List<HeldBack> heldBack = new ArrayList<>();
+
+        Round(int cohorts) {
+            this.uncommitted = cohorts;
+        }
+
+        /**
+         * A cohort committed, holding back the given EtcdTxn (if any).
+         * @return the EtcdTxns to send now, which are all those held back if this was the last cohort to commit
+         */
+        synchronized List<HeldBack> committed(@Nullable HeldBack newHeldBack) {
+            if (newHeldBack != null) {
+                heldBack.add(newHeldBack);
+            }
+            if (--uncommitted > 0 || heldBack.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<HeldBack> taken = heldBack;
+            heldBack = new ArrayList<>();
+            return taken;
+        }
+    }
+
+    private static final class HeldBack {
+        final EtcdTxn txn;
+        final CompletableFuture<TxnResponse> future = new CompletableFuture<>();
+
+        HeldBack(EtcdTxn txn) {
+            this.txn = txn;
+        }
+    }
+}
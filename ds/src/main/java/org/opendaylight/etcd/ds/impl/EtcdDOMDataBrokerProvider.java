@@ -12,21 +12,36 @@ import static org.opendaylight.etcd.ds.impl.EtcdDataStore.OPERATIONAL_PREFIX;
 import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
 import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.OPERATIONAL;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import javax.inject.Provider;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
+import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.mdsal.binding.api.DataBroker;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
 import org.opendaylight.mdsal.dom.api.DOMDataBroker;
 import org.opendaylight.mdsal.dom.api.DOMSchemaService;
-import org.opendaylight.mdsal.dom.broker.SerializedDOMDataBroker;
 import org.opendaylight.mdsal.dom.spi.store.DOMStore;
 import org.opendaylight.mdsal.dom.store.inmemory.InMemoryDOMDataStoreConfigProperties;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,14 +54,26 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
 
     private static final Logger LOG = LoggerFactory.getLogger(EtcdDOMDataBrokerProvider.class);
 
+    // max. time close() waits for the watcher to stop applying events, before it writes the snapshots
+    private static final Duration SNAPSHOT_WATCHER_TERMINATION_TIMEOUT = Duration.ofSeconds(5);
+
     private final String name;
     private final Client etcdClient;
     private final EtcdDataStore configDS;
     private final EtcdDataStore operDS;
     private final DOMDataBroker domDataBroker;
     private final EtcdWatcher watcher;
-    private final RevAwaiter revAwaiter;
+    private final RevAwaiter configRevAwaiter;
+    private final RevAwaiter operRevAwaiter;
+    private final EtcdTxnGroupCommitter groupCommitter;
+    private final EtcdCommitCoordinator commitCoordinator;
+    private final EtcdRevisionFetcher revisionFetcher;
     private final EtcdWatcherBlockingConsumer etcdWatcherConsumer;
+    private final @Nullable QNameDictionary dictionary;
+    private final @Nullable EtcdValueCompressor compressor;
+    private final @Nullable EtcdSnapshotFile configSnapshot;
+    private final @Nullable EtcdSnapshotFile operSnapshot;
+    private volatile long clusterId;
 
     /**
      * Constructor.
@@ -58,47 +85,208 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
      * @param schemas           the DOMSchemaService
      */
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas) throws Exception {
+        this(etcdClient, nodeName, schemas, EtcdDataBrokerOptions.DEFAULTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param options the options of the data broker and its data stores, see {@link EtcdDataBrokerOptions#builder()}
+     */
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemas,
+            EtcdDataBrokerOptions options) throws Exception {
         // choice of suitable executors originally inspired from
         // org.opendaylight.mdsal.binding.dom.adapter.test.ConcurrentDataBrokerTestCustomizer
-        this(etcdClient, nodeName, schemas,
-                Executors.newListeningSingleThreadExecutor("EtcdDB-commitCoordinator", LOG),
-                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG));
+        this(etcdClient, nodeName, schemas, newCommitCoordinatorExecutor(options.getCommitThreads()),
+                Executors.newListeningCachedThreadPool("EtcdDB-DTCLs", LOG), options);
     }
 
     public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
             ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor)
             throws Exception {
+        this(etcdClient, nodeName, schemaService, commitCoordinatorExecutor, dtclExecutor,
+                EtcdDataBrokerOptions.DEFAULTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param options the options of the data broker and its data stores, see {@link EtcdDataBrokerOptions#builder()}
+     */
+    public EtcdDOMDataBrokerProvider(Client etcdClient, String nodeName, DOMSchemaService schemaService,
+            ListeningExecutorService commitCoordinatorExecutor, ListeningExecutorService dtclExecutor,
+            EtcdDataBrokerOptions options) throws Exception {
         this.name = nodeName;
         this.etcdClient = etcdClient;
+        Path snapshotDirectory = options.getSnapshotDirectory();
+        configSnapshot = snapshotDirectory != null
+                ? new EtcdSnapshotFile(snapshotDirectory.resolve("configuration.snapshot")) : null;
+        operSnapshot = snapshotDirectory != null
+                ? new EtcdSnapshotFile(snapshotDirectory.resolve("operational.snapshot")) : null;
 
-        revAwaiter = new RevAwaiter(nodeName);
+        // a revision fence per data store, so that a chunked commit of one does not hold back the other, see below
+        configRevAwaiter = new RevAwaiter(nodeName + "-config");
+        operRevAwaiter = new RevAwaiter(nodeName + "-oper");
+        groupCommitter = new EtcdTxnGroupCommitter(nodeName, etcdClient);
+        commitCoordinator = new EtcdCommitCoordinator(nodeName, groupCommitter);
+        revisionFetcher = new EtcdRevisionFetcher(nodeName, etcdClient.getKVClient());
+        dictionary = options.isQNameDictionaryEnabled() ? new QNameDictionary(nodeName, etcdClient) : null;
+        compressor = options.getCompressionThreshold() > 0
+                ? new EtcdValueCompressor(nodeName, etcdClient, options.getCompressionThreshold()) : null;
 
         // copy/pasted from org.opendaylight.mdsal.binding.dom.adapter.test.AbstractDataBrokerTestCustomizer:
-        configDS = createConfigurationDatastore(CONFIGURATION, dtclExecutor, schemaService);
-        operDS = createConfigurationDatastore(OPERATIONAL, dtclExecutor, schemaService);
+        configDS = createConfigurationDatastore(CONFIGURATION, configRevAwaiter, dtclExecutor, schemaService, options);
+        operDS = createConfigurationDatastore(OPERATIONAL, operRevAwaiter, dtclExecutor, schemaService, options);
         Map<LogicalDatastoreType, DOMStore> datastores = ImmutableMap.of(CONFIGURATION, configDS, OPERATIONAL, operDS);
-        // TODO use ConcurrentDOMDataBroker instead SerializedDOMDataBroker ?
-        domDataBroker = new SerializedDOMDataBroker(datastores, commitCoordinatorExecutor);
+        // a SerializedDOMDataBroker commits as many DOM transactions at a time as its executor has threads, see
+        // EtcdDataBrokerOptions.Builder.commitThreads()
+        domDataBroker = new CommitCoordinatingDOMDataBroker(datastores, commitCoordinatorExecutor, commitCoordinator);
 
-        etcdWatcherConsumer = new EtcdWatcherBlockingConsumer(
-                new EtcdWatcherSplittingConsumer(Optional.of(revAwaiter),
-                        ImmutableMap.of(CONFIGURATION_PREFIX, configDS, OPERATIONAL_PREFIX, operDS)));
-        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, etcdWatcherConsumer);
+        // the dictionaries must see their new entries before the data stores see the keys and values using them
+        ImmutableMap.Builder<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> consumers
+                = ImmutableMap.builder();
+        if (dictionary != null) {
+            consumers.put(QNameDictionary.DICTIONARY_PREFIX, dictionary);
+        }
+        if (compressor != null) {
+            consumers.put(EtcdValueCompressor.COMPRESSION_PREFIX, compressor);
+        }
+        consumers.put(CONFIGURATION_PREFIX, configDS).put(OPERATIONAL_PREFIX, operDS);
+        // while a data store holds back the changes of a chunked commit, its revision must not advance, because
+        // validate() would use it for the guards of TXNs, and awaits would return before the changes were applied
+        etcdWatcherConsumer = new EtcdWatcherBlockingConsumer(new EtcdWatcherSplittingConsumer(ImmutableMap.of(
+                configRevAwaiter, configDS::isHoldingBack, operRevAwaiter, operDS::isHoldingBack), consumers.build()));
+        watcher = new EtcdWatcher(nodeName, etcdClient, EtcdDataStore.BASE_PREFIX, etcdWatcherConsumer, this::resync);
+    }
+
+    private static ListeningExecutorService newCommitCoordinatorExecutor(int threads) {
+        if (threads == 1) {
+            return Executors.newListeningSingleThreadExecutor("EtcdDB-commitCoordinator", LOG);
+        }
+        return MoreExecutors.listeningDecorator(java.util.concurrent.Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("EtcdDB-commitCoordinator-%d").build()));
     }
 
     public void init() throws Exception {
-        long revNow = EtcdServerUtils.getServerRevision(etcdClient.getKVClient());
-        configDS.init(revNow);
-        operDS.init(revNow);
-        revAwaiter.update(revNow);
+        Header header = EtcdServerUtils.getServerHeader(etcdClient.getKVClient());
+        long revNow = header.getRevision();
+        clusterId = header.getClusterId();
+        if (dictionary != null) {
+            dictionary.init(revNow);
+        }
+        if (compressor != null) {
+            compressor.init(revNow);
+        }
+        OptionalLong snapshotRevision = initFromSnapshots(revNow);
+        if (snapshotRevision.isPresent()) {
+            configRevAwaiter.update(snapshotRevision.getAsLong());
+            operRevAwaiter.update(snapshotRevision.getAsLong());
+            // the changes since are applied from the watch; or, if etcd has already compacted them, by a resync
+            watcher.start(snapshotRevision.getAsLong() + 1);
+            return;
+        }
+
+        // both data stores load at the same time (each decoding its pages in parallel, see EtcdYangKV.readAllInto)
+        ListeningExecutorService operLoader = Executors.newListeningSingleThreadExecutor("EtcdDB-operLoad", LOG);
+        try {
+            Future<?> operInit = operLoader.submit(() -> {
+                operDS.init(revNow);
+                return null;
+            });
+            configDS.init(revNow);
+            try {
+                operInit.get();
+            } catch (ExecutionException e) {
+                Throwables.throwIfInstanceOf(e.getCause(), Exception.class);
+                throw e;
+            }
+        } finally {
+            operLoader.shutdownNow();
+        }
+        configRevAwaiter.update(revNow);
+        operRevAwaiter.update(revNow);
         // start watching for changes one revision AFTER what we got
         watcher.start(revNow + 1);
     }
 
+    /**
+     * Initialize both data stores from their local snapshots, if there are valid ones of the same revision.
+     * @return the revision of the snapshots, or empty if the data stores must be loaded from etcd
+     */
+    private OptionalLong initFromSnapshots(long revNow) {
+        if (configSnapshot == null || operSnapshot == null) {
+            return OptionalLong.empty();
+        }
+        try {
+            Optional<EtcdSnapshotFile.Snapshot> config = configSnapshot.read(clusterId);
+            Optional<EtcdSnapshotFile.Snapshot> oper = operSnapshot.read(clusterId);
+            if (!config.isPresent() || !oper.isPresent() || config.get().revision != oper.get().revision
+                    || config.get().revision > revNow) {
+                LOG.info("{} no usable local snapshots (of etcd cluster {}) found, loading from etcd", name,
+                        clusterId);
+                return OptionalLong.empty();
+            }
+            configDS.initFromSnapshot(config.get().root);
+            operDS.initFromSnapshot(oper.get().root);
+            LOG.info("{} initialized from local snapshots of revision {} (current revision is {})", name,
+                    config.get().revision, revNow);
+            return OptionalLong.of(config.get().revision);
+        } catch (IOException | EtcdException e) {
+            // EtcdDataStore.init() replaces whatever may already have been initialized from a snapshot
+            LOG.warn("{} local snapshots could not be used, loading from etcd", name, e);
+            return OptionalLong.empty();
+        }
+    }
+
+    private void writeSnapshots() {
+        if (configSnapshot == null || operSnapshot == null) {
+            return;
+        }
+        if (!watcher.awaitTermination(SNAPSHOT_WATCHER_TERMINATION_TIMEOUT)) {
+            LOG.warn("{} watcher did not stop in time, not writing local snapshots", name);
+            return;
+        }
+        // the revision up to which the watcher applied everything to the DataTrees, which is what the snapshots
+        // contain; the RevAwaiters' revisions are only fences for transactions, e.g. not advanced while held back
+        long revision = watcher.getAppliedRevision();
+        Optional<NormalizedNode<?, ?>> config = configDS.getSnapshotContent();
+        Optional<NormalizedNode<?, ?>> oper = operDS.getSnapshotContent();
+        try {
+            if (!config.isPresent() || !oper.isPresent()) {
+                // the previous snapshots (if any) are kept; they are older, but still consistent
+                LOG.info("{} not writing local snapshots (not initialized, or staged commits pending)", name);
+                return;
+            }
+            configSnapshot.write(clusterId, revision, config.get());
+            operSnapshot.write(clusterId, revision, oper.get());
+            LOG.info("{} wrote local snapshots of revision {}", name, revision);
+        } catch (IOException e) {
+            LOG.error("{} failed to write local snapshots", name, e);
+        }
+    }
+
+    /**
+     * Resynchronize after the watch could not resume because etcd compacted the revisions it missed, or after watch
+     * events could not be applied; see EtcdWatcher.
+     */
+    private long resync(long revision, long appliedRevision) throws EtcdException {
+        if (dictionary != null) {
+            dictionary.init(revision);
+        }
+        if (compressor != null) {
+            compressor.init(revision);
+        }
+        long bytesRead = configDS.resync(revision, appliedRevision) + operDS.resync(revision, appliedRevision);
+        configRevAwaiter.progress(revision);
+        operRevAwaiter.progress(revision);
+        return bytesRead;
+    }
+
     @Override
     public void close() throws Exception {
         if (watcher != null) {
             watcher.close();
+            writeSnapshots();
         }
         if (operDS != null) {
             operDS.close();
@@ -106,6 +294,18 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
         if (configDS != null) {
             configDS.close();
         }
+        if (commitCoordinator != null) {
+            commitCoordinator.close();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        if (revisionFetcher != null) {
+            revisionFetcher.close();
+        }
+        if (compressor != null) {
+            compressor.close();
+        }
     }
 
     @Override
@@ -129,11 +329,12 @@ public class EtcdDOMDataBrokerProvider implements Provider<DOMDataBroker>, AutoC
         return operationalDataStore;
     }
 */
-    private EtcdDataStore createConfigurationDatastore(LogicalDatastoreType type,
-            ExecutorService dataTreeChangeListenerExecutor, DOMSchemaService schemaService) {
+    private EtcdDataStore createConfigurationDatastore(LogicalDatastoreType type, RevAwaiter revAwaiter,
+            ExecutorService dataTreeChangeListenerExecutor, DOMSchemaService schemaService,
+            EtcdDataBrokerOptions options) {
         EtcdDataStore store = new EtcdDataStore(name, type, dataTreeChangeListenerExecutor,
                 InMemoryDOMDataStoreConfigProperties.DEFAULT_MAX_DATA_CHANGE_LISTENER_QUEUE_SIZE, etcdClient, true,
-                revAwaiter);
+                revAwaiter, groupCommitter, commitCoordinator, revisionFetcher, dictionary, compressor, options);
         schemaService.registerSchemaContextListener(store);
         return store;
     }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.file.Path;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+
+/**
+ * Options of an {@link EtcdDOMDataBrokerProvider}, and its data stores.
+ *
+ * <p>Use {@link #builder()} to create instances; every option which is not set has the default described on the
+ * respective method of the {@link Builder}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@Immutable
+public final class EtcdDataBrokerOptions {
+
+    /**
+     * All options at their defaults.
+     */
+    public static final EtcdDataBrokerOptions DEFAULTS = builder().build();
+
+    private final boolean isQNameDictionaryEnabled;
+    private final ReadConsistency configReadConsistency;
+    private final ReadConsistency operReadConsistency;
+    private final @Nullable Path snapshotDirectory;
+    private final boolean isDeltaWritesEnabled;
+    private final boolean isSchemaValueCodecEnabled;
+    private final StorageGranularity granularity;
+    private final int compressionThreshold;
+    private final int commitThreads;
+
+    private EtcdDataBrokerOptions(Builder builder) {
+        this.isQNameDictionaryEnabled = builder.isQNameDictionaryEnabled;
+        this.configReadConsistency = builder.configReadConsistency;
+        this.operReadConsistency = builder.operReadConsistency;
+        this.snapshotDirectory = builder.snapshotDirectory;
+        this.isDeltaWritesEnabled = builder.isDeltaWritesEnabled;
+        this.isSchemaValueCodecEnabled = builder.isSchemaValueCodecEnabled;
+        this.granularity = builder.granularity;
+        this.compressionThreshold = builder.compressionThreshold;
+        this.commitThreads = builder.commitThreads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isQNameDictionaryEnabled() {
+        return isQNameDictionaryEnabled;
+    }
+
+    public ReadConsistency getConfigReadConsistency() {
+        return configReadConsistency;
+    }
+
+    public ReadConsistency getOperReadConsistency() {
+        return operReadConsistency;
+    }
+
+    ReadConsistency getReadConsistency(LogicalDatastoreType type) {
+        return type.equals(LogicalDatastoreType.CONFIGURATION) ? configReadConsistency : operReadConsistency;
+    }
+
+    public @Nullable Path getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    public boolean isDeltaWritesEnabled() {
+        return isDeltaWritesEnabled;
+    }
+
+    public boolean isSchemaValueCodecEnabled() {
+        return isSchemaValueCodecEnabled;
+    }
+
+    public StorageGranularity getGranularity() {
+        return granularity;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getCommitThreads() {
+        return commitThreads;
+    }
+
+    @Override
+    public String toString() {
+        return "EtcdDataBrokerOptions{isQNameDictionaryEnabled=" + isQNameDictionaryEnabled
+                + ", configReadConsistency=" + configReadConsistency + ", operReadConsistency=" + operReadConsistency
+                + ", snapshotDirectory=" + snapshotDirectory + ", isDeltaWritesEnabled=" + isDeltaWritesEnabled
+                + ", isSchemaValueCodecEnabled=" + isSchemaValueCodecEnabled + ", granularity=" + granularity
+                + ", compressionThreshold=" + compressionThreshold + ", commitThreads=" + commitThreads + "}";
+    }
+
+    /**
+     * Builder of {@link EtcdDataBrokerOptions}.
+     */
+    public static final class Builder {
+        private boolean isQNameDictionaryEnabled = false;
+        private ReadConsistency configReadConsistency = ReadConsistency.LINEARIZABLE;
+        private ReadConsistency operReadConsistency = ReadConsistency.LINEARIZABLE;
+        private @Nullable Path snapshotDirectory;
+        private boolean isDeltaWritesEnabled = false;
+        private boolean isSchemaValueCodecEnabled = false;
+        private StorageGranularity granularity = StorageGranularity.SHALLOW;
+        private int compressionThreshold = 0;
+        private int commitThreads = 1;
+
+        private Builder() { }
+
+        /**
+         * Whether keys and values use codes from a {@link QNameDictionary} stored in etcd instead of the Strings of
+         * QNames; all nodes connected to the same etcd must use the same setting, and existing data must be migrated
+         * when changing it, see {@link EtcdKeyMigrationTool}.  Default false.
+         */
+        public Builder qnameDictionaryEnabled(boolean isEnabled) {
+            this.isQNameDictionaryEnabled = isEnabled;
+            return this;
+        }
+
+        /**
+         * Default consistency of transactions on the configuration data store.  Default LINEARIZABLE.
+         */
+        public Builder configReadConsistency(ReadConsistency readConsistency) {
+            this.configReadConsistency = requireNonNull(readConsistency, "readConsistency");
+            return this;
+        }
+
+        /**
+         * Default consistency of transactions on the operational data store.  Default LINEARIZABLE.
+         */
+        public Builder operReadConsistency(ReadConsistency readConsistency) {
+            this.operReadConsistency = requireNonNull(readConsistency, "readConsistency");
+            return this;
+        }
+
+        /**
+         * Directory for local snapshot files of both data stores, which are written on close() and read on init(),
+         * to only load the changes since from etcd; or null (the default) to always load everything from etcd.
+         */
+        public Builder snapshotDirectory(@Nullable Path directory) {
+            this.snapshotDirectory = directory;
+            return this;
+        }
+
+        /**
+         * Whether a commit which re-writes existing nodes only puts those nodes into etcd whose (shallow) value
+         * actually changed, instead of their entire subtree; this costs serializing the nodes' previous values on
+         * commit.  Default false.
+         */
+        public Builder deltaWritesEnabled(boolean isEnabled) {
+            this.isDeltaWritesEnabled = isEnabled;
+            return this;
+        }
+
+        /**
+         * Whether values are written in the more compact format of the {@link EtcdSchemaValueCodec}; values in either
+         * format are always read, so this can be changed without migrating existing data, but all nodes of a cluster
+         * must run a version which can read them.  Default false.
+         */
+        public Builder schemaValueCodecEnabled(boolean isEnabled) {
+            this.isSchemaValueCodecEnabled = isEnabled;
+            return this;
+        }
+
+        /**
+         * Which nodes are stored as one subtree instead of as a key value each, see {@link StorageGranularity}; the
+         * same for both data stores.  Default {@link StorageGranularity#SHALLOW}.
+         */
+        public Builder granularity(StorageGranularity storageGranularity) {
+            this.granularity = requireNonNull(storageGranularity, "storageGranularity");
+            return this;
+        }
+
+        /**
+         * The min. size in bytes of values which are compressed, see {@link EtcdValueCompressor}; 0 (the default) to
+         * not compress values.  Values in either format are read while compression is enabled, so it can be enabled
+         * without migrating existing data; but while it is disabled, there is no EtcdValueCompressor at all (it does
+         * not even watch the dictionaries), so it can only be disabled again once no compressed values are left.
+         */
+        public Builder compressionThreshold(int threshold) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("compressionThreshold must not be negative: " + threshold);
+            }
+            this.compressionThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * The number of threads of the DOM data broker which commit DOM transactions, when the
+         * {@link EtcdDOMDataBrokerProvider} creates its executor (i.e. is not given one).  Each thread runs all phases
+         * of one DOM transaction at a time, and waits for etcd; so with 1 (the default), DOM transactions are committed
+         * strictly one after the other, in the order in which they were submitted, and the group commit (see
+         * {@link EtcdTxnGroupCommitter}) never gets to coalesce the etcd TXNs of several of them.  With more threads,
+         * that many DOM transactions are in flight at the same time, and coalesced; but they are then not committed in
+         * the order in which they were submitted anymore (not even those of a transaction chain), so one which
+         * modifies what another one submitted just before it did may fail with an OptimisticLockFailedException.
+         */
+        public Builder commitThreads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("commitThreads must be at least 1: " + threads);
+            }
+            this.commitThreads = threads;
+            return this;
+        }
+
+        public EtcdDataBrokerOptions build() {
+            return new EtcdDataBrokerOptions(this);
+        }
+    }
+}
@@ -7,33 +7,57 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
-import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.TxnResponse;
 import io.etcd.jetcd.watch.WatchEvent;
 import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedPut;
 import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
 import org.opendaylight.etcd.ds.inmemory.copypaste.InMemoryDOMDataStore;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadTransaction;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreReadWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
 import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.mdsal.dom.spi.store.SnapshotBackedWriteTransaction;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNodeContainer;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidate;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeCandidateNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataValidationFailedException;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.ModificationType;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
 import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,44 +76,119 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
     public static final ByteSequence CONFIGURATION_PREFIX = ByteSequences.append(BASE_PREFIX, (byte) 'C'); // 67
     public static final ByteSequence OPERATIONAL_PREFIX   = ByteSequences.append(BASE_PREFIX, (byte) 'O'); // 79
 
-    // This flag could later be dynamic instead of fixed hard-coded, to optionally
-    // support very fast reads with eventual instead of strong consistency.  We could do this either
-    // globally and have different data stores (and, ultimately DataBroker), or per transaction.
-    private final boolean isStronglyConsistent = true;
+    // TTL of the lease which the staging marker of a chunked commit is attached to; if this node dies in the middle
+    // of a chunked commit, the marker disappears after this time, and watchers then apply the (partial) changes.
+    private static final long STAGING_LEASE_TTL_SECONDS = 60;
+    // while a chunked commit makes progress, its lease is renewed at most this often
+    private static final long STAGING_LEASE_KEEP_ALIVE_NANOS = SECONDS.toNanos(STAGING_LEASE_TTL_SECONDS) / 3;
 
     private final EtcdYangKV kv;
-    private final KV kvClient;
+    private final EtcdWatchEventDecoder decoder;
+    private final EtcdRevisionFetcher revisionFetcher;
+    private final ReadConsistency readConsistency;
+    private final boolean isDeltaWrites;
+    private final EtcdGranularityPolicy granularityPolicy;
+
+    // The highest revision of the TXNs which this data store successfully committed, see ReadConsistency
+    private final LongAccumulator highestCommittedRevision = new LongAccumulator(Math::max, 0);
     private final RevAwaiter revAwaiter;
+    private final EtcdTxnGroupCommitter groupCommitter;
+    private final EtcdCommitCoordinator commitCoordinator;
+
+    // etcd puts per 100 nodes written by a commit, see CandidateTranslator
+    private final LongStatistics writeAmplification = new LongStatistics("etcd puts per 100 written nodes");
+
+    // The revision which the local DataTree was at (at least) when a modification was validated, see validate();
+    // keyed by DataTreeModification and then DataTreeCandidate, weakly because aborted transactions are never removed.
+    private final ConcurrentMap<Object, Long> validatedRevisions = new MapMaker().weakKeys().makeMap();
+
+    // The cohort of each modification which is ready to be committed, which identifies its DOM transaction to the
+    // EtcdCommitCoordinator; keyed just like validatedRevisions, and for the same reason weakly.
+    private final ConcurrentMap<Object, DOMStoreThreePhaseCommitCohort> cohorts = new MapMaker().weakKeys().makeMap();
+
+    // Whether the watcher saw the staging marker of a chunked commit put but not yet deleted, and the watch events seen
+    // since; only used by accept(), which the EtcdWatcher always invokes from the same single thread.  This is per data
+    // store: each only sees the watch events (including the staging marker) of its own prefix.
+    private boolean hasStagingMarker = false;
+    private final List<WatchEvent> stagedEvents = new ArrayList<>();
 
     private boolean hasSchemaContext = false;
     private final AtomicBoolean isInitialized = new AtomicBoolean(false);
 
     public EtcdDataStore(String name, LogicalDatastoreType type, ExecutorService dataChangeListenerExecutor,
-            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter) {
+            int maxDataChangeListenerQueueSize, Client client, boolean debugTransactions, RevAwaiter revAwaiter,
+            EtcdTxnGroupCommitter groupCommitter, EtcdCommitCoordinator commitCoordinator,
+            EtcdRevisionFetcher revisionFetcher, @Nullable QNameDictionary dictionary,
+            @Nullable EtcdValueCompressor compressor, EtcdDataBrokerOptions options) {
         // TODO InMemoryDOMDataStore creates the DataTree with a hard-coded DataTreeConfiguration, instead of by type
         super(name + "-" + prefixChar(type), dataChangeListenerExecutor, maxDataChangeListenerQueueSize,
                 debugTransactions);
 
         this.revAwaiter = revAwaiter;
-        this.kvClient = client.getKVClient();
-
-        kv = new EtcdYangKV(getIdentifier(), client, prefix(type));
+        this.groupCommitter = groupCommitter;
+        this.commitCoordinator = commitCoordinator;
+        this.revisionFetcher = revisionFetcher;
+        this.readConsistency = options.getReadConsistency(type);
+        this.isDeltaWrites = options.isDeltaWritesEnabled();
+        this.granularityPolicy = new EtcdGranularityPolicy(options.getGranularity());
+
+        kv = new EtcdYangKV(getIdentifier(), client, prefix(type), dictionary, compressor, options);
+        decoder = new EtcdWatchEventDecoder(kv);
     }
 
     @Override
     @SuppressWarnings("checkstyle:MissingSwitchDefault") // conflicts with http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
     public void accept(List<WatchEvent> events) throws EtcdException {
         isInitialized();
+        List<WatchEvent> dataEvents = new ArrayList<>(events.size());
+        for (WatchEvent watchEvent : events) {
+            ByteSequence key = watchEvent.getKeyValue().getKey();
+            if (kv.isStagingMarkerKey(key)) {
+                if (watchEvent.getEventType() == WatchEvent.EventType.PUT) {
+                    hasStagingMarker = true;
+                } else if (watchEvent.getEventType() == WatchEvent.EventType.DELETE) {
+                    hasStagingMarker = false;
+                }
+            } else {
+                dataEvents.add(watchEvent);
+            }
+        }
+
+        // While a chunked commit is ongoing, we hold back all changes, and then apply them in one go; see commit()
+        stagedEvents.addAll(dataEvents);
+        if (hasStagingMarker) {
+            LOG.debug("{} holding back {} watch events until the chunked commit completes", getIdentifier(),
+                    stagedEvents.size());
+            return;
+        }
+        List<WatchEvent> eventsToApply = new ArrayList<>(stagedEvents);
+        stagedEvents.clear();
+        if (eventsToApply.isEmpty()) {
+            return;
+        }
+
+        // Decoding keys and values is CPU bound, so for large batches it is done in parallel, before (and outside of)
+        // the DataTree modification, which is then applied sequentially, in order.
+        List<DecodedPut> decodedPuts = decoder.decode(eventsToApply);
         apply(mod -> {
-            for (WatchEvent watchEvent : events) {
+            // A range delete of a subtree (see EtcdTxn.delete) produces one DELETE event per key, ordered by key, so
+            // the node's own key first; we delete the node's subtree only once, and skip the events of its children.
+            @Var KeyValue lastDeleted = null;
+            for (int i = 0; i < eventsToApply.size(); i++) {
+                WatchEvent watchEvent = eventsToApply.get(i);
+                KeyValue keyValue = watchEvent.getKeyValue();
                 switch (watchEvent.getEventType()) {
                     case PUT:
-                        KeyValue keyValue = watchEvent.getKeyValue();
-                        kv.applyPut(mod, keyValue.getKey(), keyValue.getValue());
+                        kv.applyPut(mod, decodedPuts.get(i));
+                        lastDeleted = null;
                         break;
 
                     case DELETE:
-                        kv.applyDelete(mod, watchEvent.getKeyValue().getKey());
+                        if (lastDeleted == null || lastDeleted.getModRevision() != keyValue.getModRevision()
+                                || !ByteSequences.startsWith(keyValue.getKey(), lastDeleted.getKey())) {
+                            kv.applyDelete(mod, keyValue.getKey());
+                            lastDeleted = keyValue;
+                        }
                         break;
 
                     case UNRECOGNIZED:
@@ -103,51 +202,100 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         });
     }
 
+    /**
+     * Whether watch events are currently held back, because a chunked commit is ongoing; see accept().  While they
+     * are, this data store's DataTree is behind the watched revision, so its RevAwaiter must not advance yet, see
+     * {@link EtcdWatcherSplittingConsumer}.  Like accept(), this must only be called from the watch apply thread.
+     */
+    boolean isHoldingBack() {
+        return hasStagingMarker;
+    }
+
     @Override
     public DOMStoreReadTransaction newReadOnlyTransaction() {
-        isInitialized();
-        await();
-        return super.newReadOnlyTransaction();
+        return newReadOnlyTransaction(readConsistency);
     }
 
     @Override
     public DOMStoreReadWriteTransaction newReadWriteTransaction() {
-        isInitialized();
-        await();
-        return super.newReadWriteTransaction();
+        return newReadWriteTransaction(readConsistency);
     }
 
     @Override
     public DOMStoreWriteTransaction newWriteOnlyTransaction() {
+        return newWriteOnlyTransaction(readConsistency);
+    }
+
+    public DOMStoreReadTransaction newReadOnlyTransaction(ReadConsistency consistency) {
+        isInitialized();
+        await(consistency);
+        return super.newReadOnlyTransaction();
+    }
+
+    public DOMStoreReadWriteTransaction newReadWriteTransaction(ReadConsistency consistency) {
         isInitialized();
-        // TODO discuss with others if this makes sense, or could indeed be optimized?
-        // It could be tempting to NOT await() for a newWriteOnlyTransaction(),
-        // but the data validation on commit needs up-to-date data, so we do.
-        await();
+        await(consistency);
+        return super.newReadWriteTransaction();
+    }
+
+    public DOMStoreWriteTransaction newWriteOnlyTransaction(ReadConsistency consistency) {
+        isInitialized();
+        // The data validation on commit needs up-to-date data, so we await() also for a newWriteOnlyTransaction();
+        // with a weaker consistency, conflicts with changes not yet seen are caught by the etcd TXN guards instead.
+        await(consistency);
         return super.newWriteOnlyTransaction();
     }
 
-    private void await() {
-        if (isStronglyConsistent) {
-            long expectedRev;
-            try {
-                expectedRev = EtcdServerUtils.getServerRevision(kvClient);
-            } catch (EtcdException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await getServerRevision() failed", e);
-            }
+    public ReadConsistency getReadConsistency() {
+        return readConsistency;
+    }
 
-            try {
-                // TODO remove the *10 here again?  It was because of a doubt on early testing.
-                revAwaiter.await(expectedRev, Duration.ofMillis(EtcdYangKV.TIMEOUT_MS * 10));
-            } catch (TimeoutException | InterruptedException e) {
-                throw new EtcdRuntimeException(getIdentifier() + " await revision failed: " + expectedRev, e);
-            }
+    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    private void await(ReadConsistency consistency) {
+        switch (consistency.getMode()) {
+            case LINEARIZABLE:
+                awaitServerRevision();
+                break;
+
+            case BOUNDED_STALENESS:
+                if (revAwaiter.getNanosSinceLastUpdate() > consistency.getMaxStaleness().toNanos()) {
+                    awaitServerRevision();
+                }
+                break;
+
+            case READ_YOUR_WRITES:
+                awaitRevision(highestCommittedRevision.get());
+                break;
+        }
+    }
+
+    private void awaitServerRevision() {
+        long expectedRev;
+        try {
+            // shared with concurrent callers (of both data stores), see EtcdRevisionFetcher
+            expectedRev = revisionFetcher.getServerRevision();
+        } catch (EtcdException e) {
+            throw new EtcdRuntimeException(getIdentifier() + " await getServerRevision() failed", e);
+        }
+        awaitRevision(expectedRev);
+    }
+
+    private void awaitRevision(long expectedRev) {
+        try {
+            // the revision of this data store is held back while a chunked commit is ongoing; if the node committing it
+            // died, that is until its staging lease expires, so the timeout has to be longer than the lease's TTL
+            revAwaiter.await(expectedRev,
+                    Duration.ofSeconds(STAGING_LEASE_TTL_SECONDS).plusMillis(EtcdYangKV.TIMEOUT_MS));
+        } catch (TimeoutException | InterruptedException e) {
+            throw new EtcdRuntimeException(getIdentifier() + " await revision failed: " + expectedRev, e);
         }
     }
 
     @Override
     public synchronized void onGlobalContextUpdated(SchemaContext ctx) {
         super.onGlobalContextUpdated(ctx);
+        kv.setSchemaContext(ctx);
+        granularityPolicy.setSchemaContext(ctx);
         this.hasSchemaContext = true;
     }
 
@@ -159,8 +307,43 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         this.isInitialized.set(true);
     }
 
+    /**
+     * Initialize from a local snapshot, instead of loading everything from etcd; see {@link EtcdSnapshotFile}.
+     * The watch must then start after the snapshot's revision, to apply the changes made in etcd since.
+     *
+     * @param root the content of the DataTree, as of the snapshot's revision
+     * @throws EtcdException if the content is not valid (e.g. for a changed schema)
+     */
+    public void initFromSnapshot(NormalizedNode<?, ?> root) throws EtcdException {
+        if (!hasSchemaContext) {
+            throw new IllegalStateException("onGlobalContextUpdated() not yet called");
+        }
+        apply(mod -> {
+            try {
+                mod.write(YangInstanceIdentifier.EMPTY, root);
+            } catch (IllegalArgumentException e) {
+                throw new EtcdException("Snapshot content does not match schema", e);
+            }
+        });
+        this.isInitialized.set(true);
+    }
+
+    /**
+     * Content of the DataTree, to write a local snapshot of; see {@link EtcdSnapshotFile}.
+     * This must only be called while no watch events are applied, e.g. after the EtcdWatcher was closed.
+     *
+     * @return the root node, or empty if not initialized, or if held back changes of staged commits are pending
+     */
+    Optional<NormalizedNode<?, ?>> getSnapshotContent() {
+        if (!isInitialized.get() || !stagedEvents.isEmpty() || hasStagingMarker) {
+            return Optional.empty();
+        }
+        return dataTree.takeSnapshot().readNode(YangInstanceIdentifier.EMPTY);
+    }
+
     @Override
     public void close() {
+        LOG.info("{} commit statistics: {}", getIdentifier(), writeAmplification);
         kv.close();
     }
 
@@ -178,7 +361,87 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
      * @throws EtcdException if loading failed
      */
     private void initialLoad(long rev) throws EtcdException {
-        apply(mod -> kv.readAllInto(rev, mod));
+        apply(mod -> {
+            // replaces anything (e.g. from a snapshot, see initFromSnapshot) which is already in the DataTree
+            mod.write(YangInstanceIdentifier.EMPTY, ImmutableNodes.containerNode(SchemaContext.NAME));
+            kv.readAllInto(rev, mod, decoder);
+        });
+    }
+
+    /**
+     * Incrementally resynchronize the DataTree with etcd, after watch events were missed because etcd compacted
+     * them; only the differences are applied, so listeners are notified only about what actually changed.
+     * This must be called on the watch apply thread, see {@link EtcdWatcher.Resync}.
+     *
+     * @param rev the etcd revision to resynchronize to
+     * @param appliedRevision the revision up to which all watch events were applied
+     * @return the number of bytes read from etcd
+     */
+    long resync(long rev, long appliedRevision) throws EtcdException {
+        isInitialized();
+        // the deletion of the staging marker may have been among the missed events; resync reads what is committed
+        hasStagingMarker = false;
+        stagedEvents.clear();
+
+        Optional<NormalizedNode<?, ?>> root = dataTree.takeSnapshot().readNode(YangInstanceIdentifier.EMPTY);
+        LocalKeys localKeys = new LocalKeys();
+        if (root.isPresent()) {
+            localKeys.push(YangInstanceIdentifier.EMPTY, root.get());
+        }
+        long[] bytesRead = new long[1];
+        apply(mod -> bytesRead[0] = kv.resyncInto(rev, appliedRevision, localKeys, mod));
+        return bytesRead[0];
+    }
+
+    /**
+     * The keys of all nodes of a DataTree (snapshot), in key order, as they are needed by the resync; see resync().
+     * The nodes are walked depth first, with the children of each node sorted by their keys; with the hierarchical key
+     * codec (see {@link EtcdKeyCodec}), that is the order of all keys.  So only the (keys of the) children of the nodes
+     * on the current path are held, and not all keys.
+     */
+    private final class LocalKeys implements EtcdYangKV.KeySource {
+        private final Deque<Iterator<LocalKey>> stack = new ArrayDeque<>();
+
+        @Override
+        public @Nullable ByteSequence next() throws EtcdException {
+            while (!stack.isEmpty()) {
+                Iterator<LocalKey> level = stack.peek();
+                if (!level.hasNext()) {
+                    stack.pop();
+                } else {
+                    LocalKey next = level.next();
+                    push(next.path, next.node);
+                    return next.key;
+                }
+            }
+            return null;
+        }
+
+        void push(YangInstanceIdentifier path, NormalizedNode<?, ?> node) throws EtcdException {
+            // the descendants of a node stored as one subtree have no keys of their own
+            if (!(node instanceof NormalizedNodeContainer) || granularityPolicy.isSubtree(path)) {
+                return;
+            }
+            List<LocalKey> children = new ArrayList<>();
+            for (NormalizedNode<?, ?> child : ((NormalizedNodeContainer<?, ?, ?>) node).getValue()) {
+                YangInstanceIdentifier childPath = path.node(child.getIdentifier());
+                children.add(new LocalKey(kv.toByteSequence(childPath), childPath, child));
+            }
+            children.sort((first, second) -> ByteSequences.KEY_ORDER.compare(first.key, second.key));
+            stack.push(children.iterator());
+        }
+    }
+
+    private static final class LocalKey {
+        final ByteSequence key;
+        final YangInstanceIdentifier path;
+        final NormalizedNode<?, ?> node;
+
+        LocalKey(ByteSequence key, YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+            this.key = key;
+            this.path = path;
+            this.node = node;
+        }
     }
 
     private void apply(CheckedConsumer<DataTreeModification, EtcdException> function) throws EtcdException {
@@ -201,34 +464,79 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         LOG.info("{} applied DataTreeModification={}, DataTreeCandidate={}", getIdentifier(), mod, candidate);
     }
 
+    @Override
+    protected DOMStoreThreePhaseCommitCohort transactionReady(SnapshotBackedWriteTransaction<String> tx,
+            DataTreeModification modification, Exception readyError) {
+        DOMStoreThreePhaseCommitCohort cohort = super.transactionReady(tx, modification, readyError);
+        cohorts.put(modification, cohort);
+        return cohort;
+    }
+
+    @Override
+    protected void validate(DataTreeModification modification) throws DataValidationFailedException {
+        // We intentionally obtain the revision BEFORE validating; the DataTree may have meanwhile already applied
+        // more recent watch events, which could only cause a false conflict in the etcd TXN, but never a missed one.
+        long revision = revAwaiter.currentRevision();
+        super.validate(modification);
+        validatedRevisions.put(modification, revision);
+    }
+
+    @Override
+    protected DataTreeCandidate prepare(DataTreeModification modification) {
+        DataTreeCandidate candidate = super.prepare(modification);
+        Long revision = validatedRevisions.remove(modification);
+        if (revision != null) {
+            validatedRevisions.put(candidate, revision);
+        }
+        DOMStoreThreePhaseCommitCohort cohort = cohorts.remove(modification);
+        if (cohort != null) {
+            cohorts.put(candidate, cohort);
+        }
+        return candidate;
+    }
+
     @Override
     // requires https://git.opendaylight.org/gerrit/#/c/73208/ :-( or figure out if we can hook into InMemoryDOMDataStore via a commit cohort?!
-    protected synchronized void commit(DataTreeCandidate candidate) {
-        isInitialized();
-        if (!candidate.getRootPath().equals(YangInstanceIdentifier.EMPTY)) {
-            LOG.error("DataTreeCandidate: YangInstanceIdentifier path={}", candidate.getRootPath());
-            throw new IllegalArgumentException("I've not learnt how to deal with DataTreeCandidate where "
-                    + "root path != YangInstanceIdentifier.EMPTY yet - will you teach me? ;)");
+    protected ListenableFuture<Void> commit(DataTreeCandidate candidate) {
+        DOMStoreThreePhaseCommitCohort cohort = cohorts.remove(candidate);
+        try {
+            isInitialized();
+            if (!candidate.getRootPath().equals(YangInstanceIdentifier.EMPTY)) {
+                LOG.error("DataTreeCandidate: YangInstanceIdentifier path={}", candidate.getRootPath());
+                throw new IllegalArgumentException("I've not learnt how to deal with DataTreeCandidate where "
+                        + "root path != YangInstanceIdentifier.EMPTY yet - will you teach me? ;)");
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // the other data store's changes of the same DOM transaction must not wait for this one forever
+            commitCoordinator.committingSeparately(cohort);
+            throw e;
         }
 
         LOG.info("{} commit: DataTreeCandidate={}", getIdentifier(), candidate);
         print("", candidate.getRootNode());
 
-        // TODO make InMemoryDOMDataStore.commit(DataTreeCandidate) return ListenableFuture<Void> instead of void,
-        // and then InMemoryDOMStoreThreePhaseCommitCohort.commit() return store.commit(candidate) instead of SUCCESS,
-        // and then do this:
-//        sendToEtcd(candidate.getRootNode()).thenRun(() -> super.commit(candidate)).exceptionally(throwable -> {
-//            LOG.error("sendToEtcd failed", throwable);
-//            return null;
-//        });
-        // but for now let's throw the entire nice async-ity over board and just do:
+        // Candidates which do not fit into a single etcd TXN (see EtcdTxnGroupCommitter's maxOps and maxBytes) are
+        // translated and sent in chunks, see ChunkedCommit.  One op is always kept free for the staging marker, and
+        // one for the delete of the descendants of a node stored as one subtree, see EtcdTxn.putSubtree().
+        // This is intentionally not synchronized, and does not block on the etcd round-trip; the returned future,
+        // which InMemoryDOMStoreThreePhaseCommitCohort.commit() hands back to the DOM broker, completes when etcd
+        // has applied the TXN.  This way many commits can be in flight, and no thread is parked on the etcd RPC.
+        // The local validation only detected conflicts with changes which had already been applied to the DataTree
+        // from the watch; the etcd TXN guards (see EtcdTxn) catch any other cluster node's more recent changes.
+        Long validatedRevision = validatedRevisions.remove(candidate);
+        CandidateTranslator translator = newTranslator(candidate, writeAmplification);
+        EtcdTxn kvTx = newTransaction(validatedRevision);
+        boolean hasMore;
         try {
-            EtcdTxn kvTx = kv.newTransaction();
-            sendToEtcd(kvTx, candidate, candidate.getRootPath(), candidate.getRootNode());
-            kvTx.commit().toCompletableFuture().get();
-        } catch (EtcdException | IllegalArgumentException | InterruptedException | ExecutionException e) {
-            // TODO This is ugly, wrong, and just temporary.. but see above, how to better return problems here?
-            throw new RuntimeException(e);
+            hasMore = translator.translateInto(kvTx);
+        } catch (EtcdException | IllegalArgumentException e) {
+            commitCoordinator.committingSeparately(cohort);
+            return Futures.immediateFailedFuture(e);
+        }
+        if (hasMore) {
+            // the chunked commit translates the candidate again, from the beginning; see ChunkedCommit
+            commitCoordinator.committingSeparately(cohort);
+            return toListenableFuture(new ChunkedCommit(candidate, validatedRevision).start());
         }
 
         // We do *NOT* super.commit(candidate), because we don't want to immediately/directly apply changes,
@@ -238,36 +546,372 @@ public class EtcdDataStore extends InMemoryDOMDataStore implements CheckedConsum
         // IllegalStateException: "Store tree ... and candidate base ... differ.", because we would apply
         // everything twice, because the watcher sends us back our own operations;
         // see also https://github.com/coreos/jetcd/issues/343.
+        // The commitCoordinator sends this together with the other data store's changes of the same DOM transaction
+        // (if any), and the groupCommitter then possibly together with other concurrent transactions.
+        return toListenableFuture(commitCoordinator.commit(cohort, kvTx));
     }
 
-    @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
-    private void sendToEtcd(EtcdTxn kvTx, DataTreeCandidate candidate, YangInstanceIdentifier base,
-            DataTreeCandidateNode node) throws IllegalArgumentException, EtcdException {
-        YangInstanceIdentifier newBase = candidate.getRootNode().equals(node) ? base : base.node(node.getIdentifier());
-
-        ModificationType modificationType = node.getModificationType();
-        switch (modificationType) {
-            case WRITE:
-            case APPEARED: // TODO is it right to treat APPEARED like WRITE here?
-                kvTx.put(newBase,
-                        node.getDataAfter().orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node)));
-                break;
+    @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+    private ListenableFuture<Void> toListenableFuture(CompletionStage<TxnResponse> completionStage) {
+        SettableFuture<Void> future = SettableFuture.create();
+        completionStage.whenComplete((txnResponse, throwable) -> {
+            if (throwable != null) {
+                future.setException(throwable);
+            } else if (!txnResponse.isSucceeded()) {
+                future.setException(new OptimisticLockFailedException(getIdentifier()
+                        + " commit failed because data was concurrently modified in etcd by another transaction"));
+            } else {
+                highestCommittedRevision.accumulate(txnResponse.getHeader().getRevision());
+                future.set(null);
+            }
+        });
+        return future;
+    }
 
-            case DELETE:
-            case DISAPPEARED: // TODO is it right to treat DISAPPEARED like DELETE here?
-                kvTx.delete(newBase);
-                break;
+    private EtcdTxn newTransaction(@Nullable Long validatedRevision) {
+        EtcdTxn kvTx = validatedRevision != null ? kv.newTransaction(validatedRevision) : kv.newTransaction();
+        // fails while another node's chunked commit is ongoing, see ChunkedCommit
+        kvTx.guardNoStagingMarker();
+        return kvTx;
+    }
 
-            case UNMODIFIED:
-            case SUBTREE_MODIFIED:
-                // ignore
-                break;
+    private CandidateTranslator newTranslator(DataTreeCandidate candidate,
+            @Nullable LongStatistics writeAmplificationStatistics) {
+        return new CandidateTranslator(getIdentifier(), writeAmplificationStatistics, candidate,
+                Math.max(1, groupCommitter.getMaxOps() - 2), groupCommitter.getMaxBytes(), isDeltaWrites,
+                granularityPolicy);
+    }
 
-            // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+    /**
+     * Lazily translates a DataTreeCandidate into EtcdTxn operations, in chunks of bounded size.
+     * The candidate is walked depth first, parents before their children, without recursion.
+     *
+     * <p>A WRITE of a node which already existed (e.g. a client re-PUT of a large container with only one leaf changed)
+     * has all of its descendants as WRITE children as well.  With delta writes, such a node is only put if its own
+     * shallow value changed; if not, its children are translated the same way, instead of putting the entire subtree.
+     * Children which disappeared are DELETE children of the candidate anyway.  Once a node is put, all of its
+     * descendants must be put as well, because the put replaces its entire subtree in the DataTree of watchers.
+     *
+     * <p>Nodes which the {@link EtcdGranularityPolicy} stores as one subtree are put including their entire subtree
+     * if anything within them changed (e.g. a SUBTREE_MODIFIED list entry of which only one leaf was written), and
+     * their children are not translated individually.
+     */
+    private static final class CandidateTranslator {
+        private final String name;
+        // null if the translation only guards, see ChunkedCommit
+        private final @Nullable LongStatistics writeAmplification;
+        private final DataTreeCandidate candidate;
+        private final int maxOps;
+        private final long maxBytes;
+        private final boolean isDeltaWrites;
+        private final EtcdGranularityPolicy granularityPolicy;
+        private final Deque<Level> stack = new ArrayDeque<>();
+        private boolean isRootTranslated = false;
+
+        // the write amplification of this commit, see logWriteAmplification()
+        private long writtenNodes;
+        private long puts;
+        private long deletes;
+
+        CandidateTranslator(String name, @Nullable LongStatistics writeAmplification, DataTreeCandidate candidate,
+                int maxOps, long maxBytes, boolean isDeltaWrites, EtcdGranularityPolicy granularityPolicy) {
+            this.name = name;
+            this.writeAmplification = writeAmplification;
+            this.candidate = candidate;
+            this.maxOps = maxOps;
+            this.maxBytes = maxBytes;
+            this.isDeltaWrites = isDeltaWrites;
+            this.granularityPolicy = granularityPolicy;
         }
 
-        for (DataTreeCandidateNode childNode : node.getChildNodes()) {
-            sendToEtcd(kvTx, candidate, newBase, childNode);
+        /**
+         * Translate (more of) the candidate into the given transaction, until it is full.
+         * @return true if there is more to translate, false if the candidate is now completely translated
+         */
+        boolean translateInto(EtcdTxn kvTx) throws IllegalArgumentException, EtcdException {
+            if (!isRootTranslated) {
+                DataTreeCandidateNode rootNode = candidate.getRootNode();
+                boolean isDelta = translate(kvTx, candidate.getRootPath(), rootNode, isDeltaWrites);
+                push(candidate.getRootPath(), rootNode, isDelta);
+                isRootTranslated = true;
+            }
+            while (!stack.isEmpty()) {
+                Level level = stack.peek();
+                if (!level.children.hasNext()) {
+                    stack.pop();
+                } else if (kvTx.size() >= maxOps || kvTx.byteSize() >= maxBytes) {
+                    return true;
+                } else {
+                    DataTreeCandidateNode childNode = level.children.next();
+                    YangInstanceIdentifier path = level.path.node(childNode.getIdentifier());
+                    if (granularityPolicy.isSubtree(path)) {
+                        translateSubtree(kvTx, path, childNode, level.isDelta);
+                    } else {
+                        boolean isDelta = translate(kvTx, path, childNode, level.isDelta);
+                        push(path, childNode, isDelta);
+                    }
+                }
+            }
+            logWriteAmplification();
+            return false;
+        }
+
+        private void push(YangInstanceIdentifier path, DataTreeCandidateNode node, boolean isDelta) {
+            ModificationType modificationType = node.getModificationType();
+            // the children of a deleted node are already deleted by its range delete, see EtcdTxn.delete()
+            if (modificationType != ModificationType.DELETE && modificationType != ModificationType.DISAPPEARED) {
+                stack.push(new Level(path, node.getChildNodes().iterator(), isDelta));
+            }
+        }
+
+        /**
+         * Translate a node.
+         * @param isDelta whether the node may be skipped if it is unchanged, i.e. none of its ancestors was put
+         * @return whether the children of the node may be skipped if they are unchanged
+         */
+        @SuppressWarnings("checkstyle:MissingSwitchDefault") // http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+        private boolean translate(EtcdTxn kvTx, YangInstanceIdentifier path, DataTreeCandidateNode node,
+                boolean isDelta) throws IllegalArgumentException, EtcdException {
+            ModificationType modificationType = node.getModificationType();
+            switch (modificationType) {
+                case WRITE:
+                case APPEARED: // TODO is it right to treat APPEARED like WRITE here?
+                    writtenNodes++;
+                    NormalizedNode<?, ?> dataAfter = node.getDataAfter()
+                            .orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node));
+                    Optional<NormalizedNode<?, ?>> dataBefore = node.getDataBefore();
+                    if (isDelta && dataBefore.isPresent()) {
+                        if (!kvTx.putIfChanged(path, dataBefore.get(), dataAfter)) {
+                            return true;
+                        }
+                    } else {
+                        kvTx.put(path, dataAfter);
+                    }
+                    puts++;
+                    return false;
+
+                case DELETE:
+                case DISAPPEARED: // TODO is it right to treat DISAPPEARED like DELETE here?
+                    kvTx.delete(path);
+                    deletes++;
+                    return false;
+
+                case SUBTREE_MODIFIED:
+                    if (!candidate.getRootNode().equals(node)) {
+                        // not written itself, but e.g. a concurrent re-write of this node by another TX is a conflict
+                        kvTx.guard(path);
+                    }
+                    return isDelta;
+
+                case UNMODIFIED:
+                    // ignore
+                    return isDelta;
+
+                // no default, as error-prone protects us, see http://errorprone.info/bugpattern/UnnecessaryDefaultInEnumSwitch
+            }
+            throw new IllegalArgumentException("Unknown ModificationType: " + modificationType);
+        }
+
+        /**
+         * Translate a node which is stored as one subtree, see {@link EtcdYangKV.EtcdTxn#putSubtree}.
+         */
+        private void translateSubtree(EtcdTxn kvTx, YangInstanceIdentifier path, DataTreeCandidateNode node,
+                boolean isDelta) throws IllegalArgumentException, EtcdException {
+            ModificationType modificationType = node.getModificationType();
+            if (modificationType == ModificationType.UNMODIFIED) {
+                return;
+            }
+            if (modificationType == ModificationType.DELETE || modificationType == ModificationType.DISAPPEARED) {
+                translate(kvTx, path, node, isDelta);
+                return;
+            }
+            writtenNodes++;
+            NormalizedNode<?, ?> dataAfter = node.getDataAfter()
+                    .orElseThrow(() -> new IllegalArgumentException("No dataAfter: " + node));
+            Optional<NormalizedNode<?, ?>> dataBefore = node.getDataBefore();
+            if (isDelta && dataBefore.isPresent()) {
+                if (!kvTx.putSubtreeIfChanged(path, dataBefore.get(), dataAfter)) {
+                    return;
+                }
+            } else {
+                kvTx.putSubtree(path, dataAfter, dataBefore.isPresent());
+            }
+            puts++;
+        }
+
+        private void logWriteAmplification() {
+            if (writeAmplification == null) {
+                return;
+            }
+            // how many KVs this commit wrote to etcd (which every node's watcher then applies), for how many nodes
+            // which were written by the transaction (without delta writes, nodes re-written unchanged are included)
+            writeAmplification.record(writtenNodes > 0 ? puts * 100 / writtenNodes : 0);
+            LOG.info("{} commit: {} nodes written, translated into {} etcd puts ({} unchanged skipped), {} deletes",
+                    name, writtenNodes, puts, writtenNodes - puts, deletes);
+        }
+
+        private static final class Level {
+            final YangInstanceIdentifier path;
+            final Iterator<DataTreeCandidateNode> children;
+            final boolean isDelta;
+
+            Level(YangInstanceIdentifier path, Iterator<DataTreeCandidateNode> children, boolean isDelta) {
+                this.path = path;
+                this.children = children;
+                this.isDelta = isDelta;
+            }
+        }
+    }
+
+    /**
+     * A commit of a DataTreeCandidate too big for a single etcd TXN (due to etcd's --max-txn-ops and
+     * --max-request-bytes limits), sent as a sequence of TXNs, one after another; the next chunk is only
+     * translated once the previous one was committed, so the complete list of operations is never held in memory.
+     *
+     * <p>The first TXN puts the data store's staging marker key, attached to a lease.  This works like a lock: any
+     * other commit of the data store (from any node) fails while it is present, see newTransaction(); and watchers
+     * (on all nodes) hold back all changes of the data store while it is present, and then apply them to their
+     * DataTree atomically, see {@link EtcdDataStore#accept(List)}.  Next, still without writing anything, the guards of
+     * all nodes of the candidate are checked, in chunks; so if any was concurrently modified, the commit fails with an
+     * OptimisticLockFailedException before any of its changes was applied.  Only then are the changes written, in
+     * chunks without guards (which cannot conflict anymore), and the last chunk deletes the staging marker.
+     *
+     * <p>The lease is renewed while the commit makes progress, and revoked when it is done.  If this node dies, or etcd
+     * fails, while the changes are being written, then the marker disappears when the lease expires (or is revoked),
+     * and watchers apply the partial changes; such a commit fails with an EtcdException.
+     */
+    private final class ChunkedCommit {
+        private final @Nullable Long validatedRevision;
+        private final CandidateTranslator guardsTranslator;
+        private final CandidateTranslator translator;
+        private final CompletableFuture<TxnResponse> result = new CompletableFuture<>();
+
+        // only accessed by the callback of the previous step, so there is no need for any synchronization
+        private long leaseId;
+        private long lastKeepAliveNanos;
+
+        ChunkedCommit(DataTreeCandidate candidate, @Nullable Long validatedRevision) {
+            this.validatedRevision = validatedRevision;
+            this.guardsTranslator = newTranslator(candidate, null);
+            this.translator = newTranslator(candidate, writeAmplification);
+        }
+
+        @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+        CompletionStage<TxnResponse> start() {
+            LOG.info("{} candidate too big for a single TXN, committing in chunks", getIdentifier());
+            kv.grantLease(STAGING_LEASE_TTL_SECONDS).whenComplete((grantedLeaseId, throwable) -> {
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    leaseId = grantedLeaseId;
+                    lastKeepAliveNanos = System.nanoTime();
+                    sendGuards(1);
+                }
+            });
+            return result;
+        }
+
+        private void sendGuards(int chunkNumber) {
+            EtcdTxn chunk = kv.newGuardsOnlyTransaction(
+                    validatedRevision != null ? validatedRevision : EtcdYangKV.NO_REVISION_GUARD);
+            if (chunkNumber == 1) {
+                // fails if another chunked commit of this data store is ongoing
+                chunk.guardNoStagingMarker();
+                chunk.putStagingMarker(leaseId);
+            } else {
+                chunk.guardStagingMarker();
+            }
+            boolean hasMore;
+            try {
+                hasMore = guardsTranslator.translateInto(chunk);
+            } catch (EtcdException | IllegalArgumentException e) {
+                abort(e);
+                return;
+            }
+            send(chunk, txnResponse -> {
+                if (!txnResponse.isSucceeded()) {
+                    // nothing was written, so it's a "normal" optimistic lock failure; the marker goes with the lease
+                    LOG.info("{} chunked commit failed while checking the guards of chunk #{}", getIdentifier(),
+                            chunkNumber);
+                    revokeLease();
+                    result.complete(txnResponse);
+                } else if (hasMore) {
+                    sendGuards(chunkNumber + 1);
+                } else {
+                    sendChanges(1);
+                }
+            });
+        }
+
+        private void sendChanges(int chunkNumber) {
+            EtcdTxn chunk = kv.newTransaction();
+            // fails if the lease expired meanwhile, because then other commits could have been made since
+            chunk.guardStagingMarker();
+            boolean hasMore;
+            try {
+                hasMore = translator.translateInto(chunk);
+            } catch (EtcdException | IllegalArgumentException e) {
+                abort(e);
+                return;
+            }
+            if (!hasMore) {
+                chunk.deleteStagingMarker();
+            }
+            send(chunk, txnResponse -> {
+                if (!txnResponse.isSucceeded()) {
+                    abort(new EtcdException(getIdentifier() + " chunked commit failed in chunk #" + chunkNumber
+                            + " because its lease expired; the changes of the preceding chunks were applied"));
+                } else if (hasMore) {
+                    sendChanges(chunkNumber + 1);
+                } else {
+                    LOG.info("{} chunked commit completed after {} chunks", getIdentifier(), chunkNumber);
+                    revokeLease();
+                    result.complete(txnResponse);
+                }
+            });
+        }
+
+        @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+        private void send(EtcdTxn chunk, Consumer<TxnResponse> onCommitted) {
+            keepAlive();
+            chunk.commit().whenComplete((txnResponse, throwable) -> {
+                if (throwable != null) {
+                    abort(throwable);
+                } else {
+                    onCommitted.accept(txnResponse);
+                }
+            });
+        }
+
+        @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+        private void keepAlive() {
+            long now = System.nanoTime();
+            if (now - lastKeepAliveNanos < STAGING_LEASE_KEEP_ALIVE_NANOS) {
+                return;
+            }
+            lastKeepAliveNanos = now;
+            kv.keepAliveLease(leaseId).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    LOG.warn("{} failed to renew the lease of a chunked commit", getIdentifier(), throwable);
+                }
+            });
+        }
+
+        private void abort(Throwable throwable) {
+            // revoking the lease deletes the staging marker (if it was put), which makes watchers apply whatever
+            // was written so far (if anything), just like lease expiry
+            revokeLease();
+            result.completeExceptionally(throwable);
+        }
+
+        @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+        private void revokeLease() {
+            kv.revokeLease(leaseId).whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    LOG.error("{} failed to revoke the lease of a chunked commit (it will expire)", getIdentifier(),
+                            throwable);
+                }
+            });
         }
     }
 
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextNode;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextTree;
+import org.opendaylight.yangtools.yang.model.api.ContainerSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.DataNodeContainer;
+import org.opendaylight.yangtools.yang.model.api.DataSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.LeafSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.ListSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.SchemaPath;
+
+/**
+ * Decides which nodes are stored as one subtree, according to a {@link StorageGranularity}.
+ * The decision only depends on the schema node of a path, so it is the same for all nodes of a cluster (with the same
+ * SchemaContext), and it is cached per schema node.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class EtcdGranularityPolicy {
+
+    private final StorageGranularity granularity;
+
+    private volatile @Nullable Schema schema;
+
+    EtcdGranularityPolicy(StorageGranularity granularity) {
+        this.granularity = requireNonNull(granularity, "granularity");
+    }
+
+    void setSchemaContext(SchemaContext schemaContext) {
+        if (!granularity.isShallow()) {
+            schema = new Schema(DataSchemaContextTree.from(schemaContext));
+        }
+    }
+
+    /**
+     * Whether the node at the given path is stored as one subtree, instead of each of its descendants individually.
+     */
+    boolean isSubtree(YangInstanceIdentifier path) {
+        Schema currentSchema = schema;
+        if (currentSchema == null) {
+            return false;
+        }
+        PathArgument pathArgument = path.getLastPathArgument();
+        if (pathArgument == null) {
+            return false;
+        }
+        DataSchemaContextNode<?> contextNode = currentSchema.contextTree.getChild(path);
+        if (contextNode == null || contextNode.isMixin()) {
+            return false;
+        }
+        // not entire lists (nor e.g. choices, augmentations or unkeyed lists), just containers and keyed list entries
+        DataSchemaNode schemaNode = contextNode.getDataSchemaNode();
+        if (!(schemaNode instanceof ContainerSchemaNode && pathArgument instanceof NodeIdentifier
+                || schemaNode instanceof ListSchemaNode && pathArgument instanceof NodeIdentifierWithPredicates)) {
+            return false;
+        }
+        return currentSchema.decisions.computeIfAbsent(schemaNode.getPath(), schemaPath -> isSubtree(schemaNode));
+    }
+
+    private boolean isSubtree(DataSchemaNode schemaNode) {
+        if (granularity.getSubtrees().contains(schemaNode.getPath())) {
+            return true;
+        }
+        Collection<DataSchemaNode> children = ((DataNodeContainer) schemaNode).getChildNodes();
+        if (children.isEmpty() || children.size() > granularity.getMaxAutoSubtreeLeafs()) {
+            return false;
+        }
+        for (DataSchemaNode child : children) {
+            if (!(child instanceof LeafSchemaNode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Schema {
+        final DataSchemaContextTree contextTree;
+        final ConcurrentMap<SchemaPath, Boolean> decisions = new ConcurrentHashMap<>();
+
+        Schema(DataSchemaContextTree contextTree) {
+            this.contextTree = contextTree;
+        }
+    }
+}
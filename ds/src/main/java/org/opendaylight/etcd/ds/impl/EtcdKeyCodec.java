@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.QNameFactory;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yangtools.yang.common.Empty;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.Revision;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeWithValue;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+
+/**
+ * Hierarchical, order-preserving encoding of YangInstanceIdentifier into etcd keys.
+ *
+ * <p>The key of a node is its store's prefix followed by the encoded path arguments, without any count or
+ * length, so the key of a node is a prefix of the keys of all of its descendants (and only of those).  A YANG
+ * subtree is thus an etcd key range, which permits range reads, range deletes and prefix watches.  In addition,
+ * the keys of sibling list entries sort like their key values, e.g. numerically for integers, so a range of list
+ * entries is also an etcd key range.
+ *
+ * <p>Every path argument starts with a type byte, which is neither 0x00 nor 0xFF; the latter is reserved for
+ * internal keys directly after the prefix, see {@link EtcdYangKV#RESERVED_KEY_MARKER}.  Strings (and binary values)
+ * are written with each 0x00 escaped as 0x00 0xFF and terminated by 0x00 0x01, so they are self-delimiting without
+ * a length, and sort like the original bytes.  Integers are written big-endian with the sign bit flipped.
+ * QNames are written as namespace, revision (empty if none) and local name.  The entries of sets and maps
+ * (predicates, augmentation children and bits) are written sorted, each preceded by 0x01 and followed by 0x00.
+ * The order of BigDecimal values (which are written as a String) is not preserved.
+ *
+ * <p>With a {@link QNameDictionary}, the three Strings of QNames are instead written as variable length codes, and
+ * the type of each path argument has its lowest bit set, so that keys in either format can be read.  The key of a node
+ * is however different in either format, so existing keys must be migrated when enabling or disabling the dictionary.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class EtcdKeyCodec {
+
+    // path argument types; intentionally different from the (legacy) PathArgumentTypes, see EtcdKeyMigrationTool
+    static final byte NODE_IDENTIFIER = 0x10;
+    static final byte NODE_IDENTIFIER_WITH_PREDICATES = 0x20;
+    static final byte NODE_WITH_VALUE = 0x30;
+    static final byte AUGMENTATION_IDENTIFIER = 0x40;
+
+    // bit set in the path argument type if its QNames are written as QNameDictionary codes instead of as Strings
+    private static final int CODED = 0x01;
+
+    // value types
+    private static final byte BOOLEAN_VALUE = 0x01;
+    private static final byte BYTE_VALUE = 0x02;
+    private static final byte SHORT_VALUE = 0x03;
+    private static final byte INT_VALUE = 0x04;
+    private static final byte LONG_VALUE = 0x05;
+    private static final byte BIG_INTEGER_VALUE = 0x06;
+    private static final byte BIG_DECIMAL_VALUE = 0x07;
+    private static final byte STRING_VALUE = 0x08;
+    private static final byte QNAME_VALUE = 0x09;
+    private static final byte BINARY_VALUE = 0x0A;
+    private static final byte BITS_VALUE = 0x0B;
+    private static final byte EMPTY_VALUE = 0x0C;
+    private static final byte YANG_IDENTIFIER_VALUE = 0x0D;
+
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED_ZERO = (byte) 0xFF;
+    private static final byte TERMINATOR = 0x01;
+
+    private static final byte ENTRY = 0x01;
+    private static final byte END = 0x00;
+
+    private static final Comparator<QName> QNAME_ORDER = Comparator.naturalOrder();
+
+    private final byte[] prefix;
+    private final @Nullable QNameDictionary dictionary;
+
+    EtcdKeyCodec(ByteSequence prefix) {
+        this(prefix, null);
+    }
+
+    EtcdKeyCodec(ByteSequence prefix, @Nullable QNameDictionary dictionary) {
+        this.prefix = prefix.getBytes();
+        this.dictionary = dictionary;
+    }
+
+    ByteSequence toKey(YangInstanceIdentifier path) throws EtcdException {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.write(prefix);
+        try {
+            for (PathArgument pathArgument : path.getPathArguments()) {
+                writePathArgument(out, pathArgument);
+            }
+        } catch (IllegalArgumentException | EtcdException e) {
+            throw new EtcdException("YangInstanceIdentifier toKey failed: " + path, e);
+        }
+        return ByteSequence.from(out.toByteArray());
+    }
+
+    YangInstanceIdentifier fromKey(ByteSequence key) throws EtcdException {
+        Reader reader = new Reader(key.getBytes());
+        for (byte prefixByte : prefix) {
+            byte readPrefix = reader.readByte();
+            if (readPrefix != prefixByte) {
+                throw new EtcdException("The read prefix does not match the expected prefix: "
+                        + readPrefix + " -VS- " + prefixByte);
+            }
+        }
+        try {
+            List<PathArgument> pathArguments = new ArrayList<>();
+            while (reader.hasMore()) {
+                pathArguments.add(readPathArgument(reader));
+            }
+            return YangInstanceIdentifier.create(pathArguments);
+        } catch (IllegalArgumentException e) {
+            throw new EtcdException("Key fromKey failed: " + ByteSequences.asString(key), e);
+        }
+    }
+
+    /**
+     * Whether the given key, with the prefix of this codec, is in the format of this codec; including whether its
+     * QNames are dictionary codes if (and only if) this codec has a dictionary.
+     * The key of the root node (i.e. just the prefix) is in every format.
+     */
+    boolean isEncodedKey(ByteSequence key) {
+        byte[] bytes = key.getBytes();
+        if (bytes.length == prefix.length) {
+            return true;
+        }
+        if ((bytes[prefix.length] & CODED) != (dictionary != null ? CODED : 0)) {
+            return false;
+        }
+        int type = bytes[prefix.length] & ~CODED;
+        return type == NODE_IDENTIFIER || type == NODE_IDENTIFIER_WITH_PREDICATES || type == NODE_WITH_VALUE
+                || type == AUGMENTATION_IDENTIFIER;
+    }
+
+    private void writePathArgument(ByteArrayDataOutput out, PathArgument pathArgument) throws EtcdException {
+        // the CODED bit of the type tells the reader whether the QNames of this path argument are dictionary codes
+        int coded = dictionary != null ? CODED : 0;
+        if (pathArgument instanceof NodeIdentifierWithPredicates) {
+            out.writeByte(NODE_IDENTIFIER_WITH_PREDICATES | coded);
+            writeQName(out, pathArgument.getNodeType());
+            // sorted, because the order of the Map is not relevant for equality of NodeIdentifierWithPredicates
+            Map<QName, Object> keyValues = new TreeMap<>(QNAME_ORDER);
+            keyValues.putAll(((NodeIdentifierWithPredicates) pathArgument).getKeyValues());
+            for (Map.Entry<QName, Object> keyValue : keyValues.entrySet()) {
+                out.writeByte(ENTRY);
+                writeQName(out, keyValue.getKey());
+                writeValue(out, keyValue.getValue());
+            }
+            out.writeByte(END);
+        } else if (pathArgument instanceof NodeWithValue) {
+            out.writeByte(NODE_WITH_VALUE | coded);
+            writeQName(out, pathArgument.getNodeType());
+            writeValue(out, ((NodeWithValue<?>) pathArgument).getValue());
+        } else if (pathArgument instanceof AugmentationIdentifier) {
+            out.writeByte(AUGMENTATION_IDENTIFIER | coded);
+            Set<QName> childNames = new TreeSet<>(QNAME_ORDER);
+            childNames.addAll(((AugmentationIdentifier) pathArgument).getPossibleChildNames());
+            for (QName childName : childNames) {
+                out.writeByte(ENTRY);
+                writeQName(out, childName);
+            }
+            out.writeByte(END);
+        } else if (pathArgument instanceof NodeIdentifier) {
+            out.writeByte(NODE_IDENTIFIER | coded);
+            writeQName(out, pathArgument.getNodeType());
+        } else {
+            throw new IllegalArgumentException("Unknown type of PathArgument: " + pathArgument);
+        }
+    }
+
+    private PathArgument readPathArgument(Reader reader) throws EtcdException {
+        byte type = reader.readByte();
+        reader.isCoded = (type & CODED) != 0;
+        switch (type & ~CODED) {
+            case NODE_IDENTIFIER:
+                return new NodeIdentifier(readQName(reader));
+
+            case NODE_IDENTIFIER_WITH_PREDICATES:
+                QName nodeType = readQName(reader);
+                Map<QName, Object> keyValues = new TreeMap<>(QNAME_ORDER);
+                while (reader.readByte() == ENTRY) {
+                    keyValues.put(readQName(reader), readValue(reader));
+                }
+                return new NodeIdentifierWithPredicates(nodeType, keyValues);
+
+            case NODE_WITH_VALUE:
+                return new NodeWithValue<>(readQName(reader), readValue(reader));
+
+            case AUGMENTATION_IDENTIFIER:
+                Set<QName> childNames = new HashSet<>();
+                while (reader.readByte() == ENTRY) {
+                    childNames.add(readQName(reader));
+                }
+                return new AugmentationIdentifier(childNames);
+
+            default:
+                throw new IllegalArgumentException("Unknown type of PathArgument: " + type);
+        }
+    }
+
+    private void writeQName(ByteArrayDataOutput out, QName qname) throws EtcdException {
+        String namespace = qname.getNamespace().toString();
+        String revision = qname.getRevision().map(Revision::toString).orElse("");
+        String localName = qname.getLocalName();
+        if (dictionary != null) {
+            writeVarInt(out, dictionary.code(namespace));
+            writeVarInt(out, dictionary.code(revision));
+            writeVarInt(out, dictionary.code(localName));
+        } else {
+            writeString(out, namespace);
+            writeString(out, revision);
+            writeString(out, localName);
+        }
+    }
+
+    private QName readQName(Reader reader) throws EtcdException {
+        String namespace = readQNameString(reader);
+        String revision = readQNameString(reader);
+        String localName = readQNameString(reader);
+        // same format as NormalizedNodeInputStreamReader, so that QNameFactory can cache them
+        return QNameFactory.create(revision.isEmpty() ? "(" + namespace + ")" + localName
+                : "(" + namespace + "?revision=" + revision + ")" + localName);
+    }
+
+    private String readQNameString(Reader reader) throws EtcdException {
+        if (!reader.isCoded) {
+            return readString(reader);
+        }
+        if (dictionary == null) {
+            throw new EtcdException("Key with QName dictionary codes, but no QName dictionary configured");
+        }
+        return dictionary.string(readVarInt(reader));
+    }
+
+    @SuppressWarnings("checkstyle:CyclomaticComplexity")
+    private void writeValue(ByteArrayDataOutput out, Object value) throws EtcdException {
+        if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT_VALUE);
+            out.writeInt((Integer) value ^ Integer.MIN_VALUE);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value ^ Long.MIN_VALUE);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT_VALUE);
+            out.writeShort((Short) value ^ Short.MIN_VALUE);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE_VALUE);
+            out.writeByte((Byte) value ^ Byte.MIN_VALUE);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof QName) {
+            out.writeByte(QNAME_VALUE);
+            writeQName(out, (QName) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER_VALUE);
+            writeBigInteger(out, (BigInteger) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(BIG_DECIMAL_VALUE);
+            writeString(out, value.toString());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BINARY_VALUE);
+            writeEscaped(out, (byte[]) value);
+        } else if (value instanceof Empty) {
+            out.writeByte(EMPTY_VALUE);
+        } else if (value instanceof Set) {
+            out.writeByte(BITS_VALUE);
+            Set<String> bits = new TreeSet<>();
+            for (Object bit : (Set<?>) value) {
+                bits.add((String) bit);
+            }
+            for (String bit : bits) {
+                out.writeByte(ENTRY);
+                writeString(out, bit);
+            }
+            out.writeByte(END);
+        } else if (value instanceof YangInstanceIdentifier) {
+            out.writeByte(YANG_IDENTIFIER_VALUE);
+            for (PathArgument pathArgument : ((YangInstanceIdentifier) value).getPathArguments()) {
+                writePathArgument(out, pathArgument);
+            }
+            out.writeByte(END);
+        } else {
+            throw new IllegalArgumentException("Unknown value type: " + value.getClass());
+        }
+    }
+
+    @SuppressWarnings("checkstyle:CyclomaticComplexity")
+    private Object readValue(Reader reader) throws EtcdException {
+        byte type = reader.readByte();
+        switch (type) {
+            case STRING_VALUE:
+                return readString(reader);
+            case INT_VALUE:
+                return reader.readInt() ^ Integer.MIN_VALUE;
+            case LONG_VALUE:
+                return reader.readLong() ^ Long.MIN_VALUE;
+            case SHORT_VALUE:
+                return (short) (reader.readShort() ^ Short.MIN_VALUE);
+            case BYTE_VALUE:
+                return (byte) (reader.readByte() ^ Byte.MIN_VALUE);
+            case BOOLEAN_VALUE:
+                return reader.readByte() != 0;
+            case QNAME_VALUE:
+                return readQName(reader);
+            case BIG_INTEGER_VALUE:
+                return readBigInteger(reader);
+            case BIG_DECIMAL_VALUE:
+                return new BigDecimal(readString(reader));
+            case BINARY_VALUE:
+                return readEscaped(reader);
+            case EMPTY_VALUE:
+                return Empty.getInstance();
+            case BITS_VALUE:
+                Set<String> bits = new HashSet<>();
+                while (reader.readByte() == ENTRY) {
+                    bits.add(readString(reader));
+                }
+                return bits;
+            case YANG_IDENTIFIER_VALUE:
+                List<PathArgument> pathArguments = new ArrayList<>();
+                while (reader.peekByte() != END) {
+                    pathArguments.add(readPathArgument(reader));
+                }
+                reader.readByte();
+                return YangInstanceIdentifier.create(pathArguments);
+            default:
+                throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    /**
+     * BigInteger as signum (0 for negative, 1 for zero, 2 for positive) followed, unless zero, by the length and
+     * then the bytes of the magnitude; for negative numbers, the length and the bytes are inverted.
+     */
+    private static void writeBigInteger(ByteArrayDataOutput out, BigInteger value) {
+        int signum = value.signum();
+        out.writeByte(signum + 1);
+        if (signum != 0) {
+            byte[] magnitude = value.abs().toByteArray();
+            out.writeInt(signum > 0 ? magnitude.length : ~magnitude.length);
+            for (byte magnitudeByte : magnitude) {
+                out.writeByte(signum > 0 ? magnitudeByte : ~magnitudeByte);
+            }
+        }
+    }
+
+    private static BigInteger readBigInteger(Reader reader) {
+        int signum = reader.readByte() - 1;
+        if (signum == 0) {
+            return BigInteger.ZERO;
+        }
+        int length = signum > 0 ? reader.readInt() : ~reader.readInt();
+        byte[] magnitude = new byte[length];
+        for (int i = 0; i < length; i++) {
+            magnitude[i] = signum > 0 ? reader.readByte() : (byte) ~reader.readByte();
+        }
+        BigInteger abs = new BigInteger(magnitude);
+        return signum > 0 ? abs : abs.negate();
+    }
+
+    private static void writeVarInt(ByteArrayDataOutput out, int value) {
+        @Var int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    private static int readVarInt(Reader reader) {
+        @Var int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = reader.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length int");
+    }
+
+    private static void writeString(ByteArrayDataOutput out, String string) {
+        writeEscaped(out, string.getBytes(UTF_8));
+    }
+
+    private static String readString(Reader reader) {
+        return new String(readEscaped(reader), UTF_8);
+    }
+
+    private static void writeEscaped(ByteArrayDataOutput out, byte[] bytes) {
+        for (byte b : bytes) {
+            out.writeByte(b);
+            if (b == ESCAPE) {
+                out.writeByte(ESCAPED_ZERO);
+            }
+        }
+        out.writeByte(ESCAPE);
+        out.writeByte(TERMINATOR);
+    }
+
+    private static byte[] readEscaped(Reader reader) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        while (true) {
+            byte b = reader.readByte();
+            if (b != ESCAPE) {
+                out.writeByte(b);
+            } else if (reader.readByte() == ESCAPED_ZERO) {
+                out.writeByte(ESCAPE);
+            } else {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+        // whether the QNames of the path argument being read are dictionary codes, see writePathArgument()
+        boolean isCoded;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasMore() {
+            return position < bytes.length;
+        }
+
+        byte peekByte() {
+            checkAvailable(1);
+            return bytes[position];
+        }
+
+        byte readByte() {
+            checkAvailable(1);
+            return bytes[position++];
+        }
+
+        short readShort() {
+            return (short) (((readByte() & 0xFF) << 8) | (readByte() & 0xFF));
+        }
+
+        int readInt() {
+            return ((readShort() & 0xFFFF) << 16) | (readShort() & 0xFFFF);
+        }
+
+        long readLong() {
+            return ((readInt() & 0xFFFFFFFFL) << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        private void checkAvailable(int length) {
+            if (position + length > bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of key at position " + position);
+            }
+        }
+    }
+}
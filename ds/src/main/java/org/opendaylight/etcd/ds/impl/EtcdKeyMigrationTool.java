@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.Lists;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.DeleteOption;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Migrates keys from the legacy formats to the current {@link EtcdKeyCodec} format, with or without
+ * {@link QNameDictionary} codes.
+ *
+ * <p>There are two legacy formats, both based on the NormalizedNodeDataOutput's path argument serialization:
+ * the original one, starting with the (int) number of path arguments (so with 0x00), and the one without that count
+ * (starting with one of the small PathArgumentTypes).  Keys which already are in the current format, as well as
+ * reserved keys, are left alone.  Keys in the current format but with(out) QName dictionary codes are re-encoded
+ * without (with) them.  Values are unchanged; because values written without codes remain readable with a dictionary
+ * but not vice versa, this can enable but not disable the QName dictionary once nodes have written data with it.
+ * Each key is moved with a TXN which puts the new and deletes the old key, guarded on the old key's modRevision.
+ *
+ * <p>This is intended to be run while no ODL nodes are connected to etcd, and can safely be re-run.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("checkstyle:RegexpSingleLineJava")
+public final class EtcdKeyMigrationTool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdKeyMigrationTool.class);
+
+    private static final String QNAME_DICTIONARY_OPTION = "--qname-dictionary";
+
+    private static final int PAGE_SIZE = 1000;
+    // each key moved is a put and a delete, and etcd's default --max-txn-ops is 128
+    private static final int KEYS_PER_TXN = 64;
+
+    private final KV kv;
+    private final QNameDictionary dictionary;
+    private final boolean isQNameDictionaryEnabled;
+
+    EtcdKeyMigrationTool(Client client, boolean isQNameDictionaryEnabled) {
+        this.kv = client.getKVClient();
+        // always needed, to read keys which already have codes
+        this.dictionary = new QNameDictionary(EtcdKeyMigrationTool.class.getSimpleName(), client);
+        this.isQNameDictionaryEnabled = isQNameDictionaryEnabled;
+    }
+
+    /**
+     * Migrates the keys of both the configuration and the operational data store.
+     * @return the number of migrated keys
+     */
+    long migrate() throws EtcdException {
+        // load the dictionary once, instead of reading every code from etcd when first seen in a key
+        dictionary.init(EtcdServerUtils.getServerHeader(kv).getRevision());
+        return migrate(EtcdDataStore.CONFIGURATION_PREFIX) + migrate(EtcdDataStore.OPERATIONAL_PREFIX);
+    }
+
+    long migrate(ByteSequence prefix) throws EtcdException {
+        EtcdKeyCodec plainCodec = new EtcdKeyCodec(prefix);
+        EtcdKeyCodec codedCodec = new EtcdKeyCodec(prefix, dictionary);
+        EtcdKeyCodec keyCodec = isQNameDictionaryEnabled ? codedCodec : plainCodec;
+        ByteSequence rangeEnd = ByteSequences.append(prefix, EtcdYangKV.RESERVED_KEY_MARKER);
+        @Var long migrated = 0;
+        @Var ByteSequence fromKey = prefix;
+        while (true) {
+            GetOption getOption = GetOption.newBuilder().withRange(rangeEnd).withLimit(PAGE_SIZE).build();
+            GetResponse response = get(fromKey, getOption);
+            List<KeyValue> toMigrate = new ArrayList<>();
+            for (KeyValue keyValue : response.getKvs()) {
+                if (!keyCodec.isEncodedKey(keyValue.getKey())) {
+                    toMigrate.add(keyValue);
+                }
+            }
+            for (List<KeyValue> batch : Lists.partition(toMigrate, KEYS_PER_TXN)) {
+                migrated += move(prefix, plainCodec, codedCodec, keyCodec, batch);
+            }
+            if (!response.isMore() || response.getKvs().isEmpty()) {
+                LOG.info("Migrated {} keys with prefix {}", migrated, ByteSequences.asString(prefix));
+                return migrated;
+            }
+            // the next page starts right after the last key of this one
+            fromKey = ByteSequences.append(response.getKvs().get(response.getKvs().size() - 1).getKey(), (byte) 0);
+        }
+    }
+
+    private int move(ByteSequence prefix, EtcdKeyCodec plainCodec, EtcdKeyCodec codedCodec, EtcdKeyCodec keyCodec,
+            List<KeyValue> keyValues) throws EtcdException {
+        List<Cmp> cmps = new ArrayList<>(keyValues.size());
+        List<Op> ops = new ArrayList<>(keyValues.size() * 2);
+        for (KeyValue keyValue : keyValues) {
+            ByteSequence oldKey = keyValue.getKey();
+            // the codec with the dictionary can read keys both with and without codes
+            YangInstanceIdentifier path = plainCodec.isEncodedKey(oldKey) || codedCodec.isEncodedKey(oldKey)
+                    ? codedCodec.fromKey(oldKey) : fromLegacyKey(prefix, oldKey);
+            ByteSequence newKey = keyCodec.toKey(path);
+            LOG.debug("Moving {} to {}", ByteSequences.asString(oldKey), ByteSequences.asString(newKey));
+            cmps.add(new Cmp(oldKey, Cmp.Op.EQUAL, CmpTarget.modRevision(keyValue.getModRevision())));
+            ops.add(Op.put(newKey, keyValue.getValue(), PutOption.DEFAULT));
+            ops.add(Op.delete(oldKey, DeleteOption.DEFAULT));
+        }
+        try {
+            TxnResponse response = kv.txn().If(cmps.toArray(new Cmp[cmps.size()]))
+                    .Then(ops.toArray(new Op[ops.size()])).commit().get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+            if (!response.isSucceeded()) {
+                throw new EtcdException("Keys were concurrently modified during migration; are ODL nodes running?");
+            }
+            return keyValues.size();
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("Migration TXN failed", e);
+        }
+    }
+
+    private GetResponse get(ByteSequence key, GetOption option) throws EtcdException {
+        try {
+            return kv.get(key, option).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("Migration read failed: " + ByteSequences.asString(key), e);
+        }
+    }
+
+    static YangInstanceIdentifier fromLegacyKey(ByteSequence prefix, ByteSequence key) throws EtcdException {
+        byte[] bytes = key.getBytes();
+        int prefixLength = prefix.getBytes().length;
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes, prefixLength, bytes.length - prefixLength)) {
+            try (DataInputStream dataInput = new DataInputStream(bais)) {
+                NormalizedNodeDataInput nodeDataInput = new ShallowNormalizedNodeInputStreamReader(dataInput);
+                if (bytes[prefixLength] == 0) {
+                    // original format, starting with the number of path arguments
+                    return nodeDataInput.readYangInstanceIdentifier();
+                }
+                // format without the number of path arguments, so read until the end
+                List<PathArgument> pathArguments = new ArrayList<>();
+                while (bais.available() > 0) {
+                    PathArgument pathArgument = nodeDataInput.readPathArgument();
+                    if (pathArgument == null) {
+                        throw new EtcdException("Unknown legacy key format: " + ByteSequences.asString(key));
+                    }
+                    pathArguments.add(pathArgument);
+                }
+                return YangInstanceIdentifier.create(pathArguments);
+            }
+        } catch (IOException e) {
+            throw new EtcdException("Legacy key could not be read: " + ByteSequences.asString(key), e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean isQNameDictionaryEnabled = args.length > 0 && QNAME_DICTIONARY_OPTION.equals(args[0]);
+        String[] endpoints = isQNameDictionaryEnabled ? Arrays.copyOfRange(args, 1, args.length) : args;
+        if (endpoints.length < 1) {
+            System.err.println("USAGE: [" + QNAME_DICTIONARY_OPTION + "] etcd-server-host:port (list of)\n"
+                    + "EXAMPLE: http://localhost:2379");
+            return;
+        }
+        try (Client client = Client.builder().endpoints(endpoints).build()) {
+            long migrated = new EtcdKeyMigrationTool(client, isQNameDictionaryEnabled).migrate();
+            System.out.println("Migrated " + migrated + " keys to the current key format");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import io.etcd.jetcd.KV;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches the current revision of the etcd server, sharing each request among all concurrent callers
+ * ("single-flight").
+ *
+ * <p>A caller must not simply use the result of a request which is already in flight when it arrives, because that
+ * request may have been processed by etcd before a write which completed before the caller arrived (which would break
+ * linearizability).  Callers arriving while a request is in flight therefore all wait for the next one, which is sent
+ * as soon as the in-flight one completes.  So there are at most two requests per round-trip, however many callers.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdRevisionFetcher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdRevisionFetcher.class);
+
+    private final String name;
+    private final KV etcd;
+
+    @GuardedBy("this")
+    private @Nullable CompletableFuture<Long> inFlight;
+    @GuardedBy("this")
+    private int inFlightCallers;
+    @GuardedBy("this")
+    private @Nullable CompletableFuture<Long> next;
+    @GuardedBy("this")
+    private int nextCallers;
+
+    // count is the number of requests sent to etcd, sum the number of callers; so sum - count requests were saved
+    private final LongStatistics callersPerRequest = new LongStatistics("callers per revision request");
+
+    EtcdRevisionFetcher(String name, KV etcd) {
+        this.name = name;
+        this.etcd = requireNonNull(etcd, "etcd");
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        LOG.info("{} revision fetch statistics: {}; saved requests: {}", name, callersPerRequest, getSavedRequests());
+    }
+
+    /**
+     * Current revision of the etcd server, as of (at least) the time this method was called.
+     */
+    @CheckReturnValue
+    CompletionStage<Long> fetch() {
+        CompletableFuture<Long> toSend;
+        synchronized (this) {
+            if (inFlight != null) {
+                if (next == null) {
+                    next = new CompletableFuture<>();
+                }
+                nextCallers++;
+                return next;
+            }
+            inFlight = new CompletableFuture<>();
+            inFlightCallers = 1;
+            toSend = inFlight;
+        }
+        send(toSend);
+        return toSend;
+    }
+
+    /**
+     * Blocking variant of {@link #fetch()}.
+     */
+    long getServerRevision() throws EtcdException {
+        try {
+            return fetch().toCompletableFuture().get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("failed to connect (in time) to etcd server", e);
+        }
+    }
+
+    long getSavedRequests() {
+        return callersPerRequest.getSum() - callersPerRequest.getCount();
+    }
+
+    @SuppressWarnings({ "FutureReturnValueIgnored", "checkstyle:IllegalCatch" })
+    private void send(CompletableFuture<Long> future) {
+        try {
+            EtcdServerUtils.getServerHeaderAsync(etcd).whenComplete((header, throwable) -> {
+                onComplete();
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    future.complete(header.getRevision());
+                }
+            });
+        } catch (RuntimeException e) {
+            onComplete();
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void onComplete() {
+        CompletableFuture<Long> toSend;
+        synchronized (this) {
+            callersPerRequest.record(inFlightCallers);
+            // the callers which arrived while this request was in flight now get their own
+            inFlight = next;
+            inFlightCallers = nextCallers;
+            next = null;
+            nextCallers = 0;
+            toSend = inFlight;
+        }
+        if (toSend != null) {
+            send(toSend);
+        }
+    }
+}
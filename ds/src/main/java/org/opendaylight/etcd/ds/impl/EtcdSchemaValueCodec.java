@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.QNameFactory;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yangtools.yang.common.Empty;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.Revision;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeWithValue;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.opendaylight.yangtools.yang.data.api.schema.AugmentationNode;
+import org.opendaylight.yangtools.yang.data.api.schema.ChoiceNode;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafSetEntryNode;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafSetNode;
+import org.opendaylight.yangtools.yang.data.api.schema.MapEntryNode;
+import org.opendaylight.yangtools.yang.data.api.schema.MapNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.OrderedLeafSetNode;
+import org.opendaylight.yangtools.yang.data.api.schema.OrderedMapNode;
+import org.opendaylight.yangtools.yang.data.api.schema.UnkeyedListEntryNode;
+import org.opendaylight.yangtools.yang.data.api.schema.UnkeyedListNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextNode;
+import org.opendaylight.yangtools.yang.data.util.DataSchemaContextTree;
+import org.opendaylight.yangtools.yang.model.api.DataSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.IdentitySchemaNode;
+import org.opendaylight.yangtools.yang.model.api.LeafSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.BinaryTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.BitsTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.BitsTypeDefinition.Bit;
+import org.opendaylight.yangtools.yang.model.api.type.BooleanTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.DecimalTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EmptyTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.EnumTypeDefinition.EnumPair;
+import org.opendaylight.yangtools.yang.model.api.type.IdentityrefTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Int8TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.StringTypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint16TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint32TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint64TypeDefinition;
+import org.opendaylight.yangtools.yang.model.api.type.Uint8TypeDefinition;
+
+/**
+ * Schema-aware encoding of the (shallow) values of etcd key values, which is more compact than the one of
+ * {@link ShallowNormalizedNodeDataOutputWriter}.
+ *
+ * <p>A value is a single byte with the kind of node, and for leafs then the leaf's value; everything else which a
+ * (shallow) node has, i.e. its identifier with e.g. the key values of a list entry or the value of a leaf-list entry,
+ * is already in the key, and not repeated in the value.  The value of a leaf is written without any type tag, because
+ * the type is that of the leaf's schema node: integers, lengths and counts as variable length ints (signed integers
+ * zig-zag encoded), enumerations as the value of the enum, bits as the positions of the set bits, and identityrefs as
+ * the QName of the identity, without its module if that is the one of the identityref's base, see writeIdentity().
+ *
+ * <p>The kinds of nodes are 0x41 to 0x4F, while values written by {@link ShallowNormalizedNodeDataOutputWriter} start
+ * with one of the NodeTypes 1 to 15, so either can be read.  Nodes which this codec cannot encode, e.g. anyxml, or
+ * leafs of types such as union, leafref or instance-identifier (or leafs whose value's class is not that of its
+ * type), are written by the ShallowNormalizedNodeDataOutputWriter instead; see {@link #encode}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class EtcdSchemaValueCodec {
+
+    // kinds of nodes; intentionally different from the NodeTypes of ShallowNormalizedNodeDataOutputWriter
+    private static final byte KIND_MASK = (byte) 0xF0;
+    private static final byte KINDS = 0x40;
+    private static final byte LEAF = 0x41;
+    private static final byte LEAF_SET_ENTRY = 0x42;
+    private static final byte CONTAINER = 0x43;
+    private static final byte MAP = 0x44;
+    private static final byte ORDERED_MAP = 0x45;
+    private static final byte MAP_ENTRY = 0x46;
+    private static final byte LEAF_SET = 0x47;
+    private static final byte ORDERED_LEAF_SET = 0x48;
+    private static final byte UNKEYED_LIST = 0x49;
+    private static final byte UNKEYED_LIST_ENTRY = 0x4A;
+    private static final byte CHOICE = 0x4B;
+    private static final byte AUGMENTATION = 0x4C;
+
+    private static final byte UNSUPPORTED = 0;
+
+    // how identityref values are written, see writeIdentity()
+    private static final byte IDENTITY_OF_BASE_MODULE = 0;
+    private static final byte IDENTITY_OF_OTHER_MODULE = 1;
+
+    private final DataSchemaContextTree schemaContextTree;
+
+    EtcdSchemaValueCodec(SchemaContext schemaContext) {
+        this.schemaContextTree = DataSchemaContextTree.from(requireNonNull(schemaContext, "schemaContext"));
+    }
+
+    /**
+     * Whether the given value was written by this codec, instead of by the ShallowNormalizedNodeDataOutputWriter.
+     */
+    static boolean isEncodedValue(ByteSequence value) {
+        byte[] bytes = value.getBytes();
+        return bytes.length > 0 && (bytes[0] & KIND_MASK) == KINDS;
+    }
+
+    /**
+     * Encode the value of the node at the given path.
+     * @return the value, or null if this codec cannot encode the node
+     */
+    @Nullable ByteSequence encode(YangInstanceIdentifier path, NormalizedNode<?, ?> node) {
+        if (path.getLastPathArgument() == null) {
+            // the root node has no path argument to take its identifier from
+            return null;
+        }
+        byte kind = kind(node);
+        if (kind == UNSUPPORTED) {
+            return null;
+        }
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeByte(kind);
+        if (kind == LEAF) {
+            TypeDefinition<?> type = leafType(path);
+            if (type == null || !writeValue(out, type, node.getValue())) {
+                return null;
+            }
+        }
+        return ByteSequence.from(out.toByteArray());
+    }
+
+    /**
+     * Decode a value which {@link #isEncodedValue(ByteSequence)} of the node at the given path.
+     */
+    NormalizedNode<?, ?> decode(YangInstanceIdentifier path, ByteSequence value) throws EtcdException {
+        try {
+            Reader reader = new Reader(value.getBytes());
+            return readNode(reader, path);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            throw new EtcdException("Value decode failed: " + path + " ➠ " + ByteSequences.asString(value), e);
+        }
+    }
+
+    private static byte kind(NormalizedNode<?, ?> node) {
+        if (node instanceof LeafNode) {
+            return LEAF;
+        } else if (node instanceof LeafSetEntryNode) {
+            return LEAF_SET_ENTRY;
+        } else if (node instanceof ContainerNode) {
+            return CONTAINER;
+        } else if (node instanceof MapEntryNode) {
+            return MAP_ENTRY;
+        } else if (node instanceof OrderedMapNode) {
+            return ORDERED_MAP;
+        } else if (node instanceof MapNode) {
+            return MAP;
+        } else if (node instanceof OrderedLeafSetNode) {
+            return ORDERED_LEAF_SET;
+        } else if (node instanceof LeafSetNode) {
+            return LEAF_SET;
+        } else if (node instanceof UnkeyedListEntryNode) {
+            return UNKEYED_LIST_ENTRY;
+        } else if (node instanceof UnkeyedListNode) {
+            return UNKEYED_LIST;
+        } else if (node instanceof ChoiceNode) {
+            return CHOICE;
+        } else if (node instanceof AugmentationNode) {
+            return AUGMENTATION;
+        } else {
+            return UNSUPPORTED;
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes", "checkstyle:CyclomaticComplexity" })
+    private NormalizedNode<?, ?> readNode(Reader reader, YangInstanceIdentifier path) throws EtcdException {
+        PathArgument pathArgument = path.getLastPathArgument();
+        byte kind = reader.readByte();
+        switch (kind) {
+            case LEAF:
+                TypeDefinition<?> type = leafType(path);
+                if (type == null) {
+                    throw new EtcdException("No leaf (of supported type) in SchemaContext: " + path);
+                }
+                return ImmutableNodes.leafNode((NodeIdentifier) pathArgument, readValue(reader, type));
+            case LEAF_SET_ENTRY:
+                NodeWithValue identifier = (NodeWithValue) pathArgument;
+                return Builders.leafSetEntryBuilder().withNodeIdentifier(identifier).withValue(identifier.getValue())
+                        .build();
+            case CONTAINER:
+                return Builders.containerBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case MAP:
+                return Builders.mapBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case ORDERED_MAP:
+                return Builders.orderedMapBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case MAP_ENTRY:
+                return Builders.mapEntryBuilder().withNodeIdentifier((NodeIdentifierWithPredicates) pathArgument)
+                        .build();
+            case LEAF_SET:
+                return Builders.leafSetBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case ORDERED_LEAF_SET:
+                return Builders.orderedLeafSetBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case UNKEYED_LIST:
+                return Builders.unkeyedListBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case UNKEYED_LIST_ENTRY:
+                return Builders.unkeyedListEntryBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case CHOICE:
+                return Builders.choiceBuilder().withNodeIdentifier((NodeIdentifier) pathArgument).build();
+            case AUGMENTATION:
+                return Builders.augmentationBuilder().withNodeIdentifier((AugmentationIdentifier) pathArgument)
+                        .build();
+            default:
+                throw new IllegalArgumentException("Unknown kind of node: " + kind);
+        }
+    }
+
+    private @Nullable TypeDefinition<?> leafType(YangInstanceIdentifier path) {
+        DataSchemaContextNode<?> schemaContextNode = schemaContextTree.getChild(path);
+        if (schemaContextNode == null) {
+            return null;
+        }
+        DataSchemaNode schemaNode = schemaContextNode.getDataSchemaNode();
+        return schemaNode instanceof LeafSchemaNode ? ((LeafSchemaNode) schemaNode).getType() : null;
+    }
+
+    /**
+     * Write the value of a leaf of the given type.
+     * @return false (without having written anything) if the type is not supported, or the value not of its class
+     */
+    @SuppressWarnings("checkstyle:CyclomaticComplexity")
+    private boolean writeValue(ByteArrayDataOutput out, TypeDefinition<?> type, Object value) {
+        if (type instanceof Int8TypeDefinition && value instanceof Byte
+                || type instanceof Int16TypeDefinition && value instanceof Short
+                || type instanceof Int32TypeDefinition && value instanceof Integer
+                || type instanceof Int64TypeDefinition && value instanceof Long) {
+            writeZigZagVarLong(out, ((Number) value).longValue());
+        } else if (type instanceof Uint8TypeDefinition && value instanceof Short
+                || type instanceof Uint16TypeDefinition && value instanceof Integer
+                || type instanceof Uint32TypeDefinition && value instanceof Long) {
+            writeVarLong(out, ((Number) value).longValue());
+        } else if (type instanceof Uint64TypeDefinition && value instanceof BigInteger) {
+            BigInteger bigInteger = (BigInteger) value;
+            if (bigInteger.signum() < 0 || bigInteger.bitLength() > Long.SIZE) {
+                return false;
+            }
+            // the (unsigned) long of values > Long.MAX_VALUE is negative, which writeVarLong() writes in 10 bytes
+            writeVarLong(out, bigInteger.longValue());
+        } else if (type instanceof BooleanTypeDefinition && value instanceof Boolean) {
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (type instanceof EmptyTypeDefinition && value instanceof Empty) {
+            // nothing to write
+            return true;
+        } else if (type instanceof StringTypeDefinition && value instanceof String) {
+            writeBytes(out, ((String) value).getBytes(UTF_8));
+        } else if (type instanceof BinaryTypeDefinition && value instanceof byte[]) {
+            writeBytes(out, (byte[]) value);
+        } else if (type instanceof DecimalTypeDefinition && value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            if (decimal.scale() < 0 || decimal.unscaledValue().bitLength() >= Long.SIZE) {
+                return false;
+            }
+            writeVarLong(out, decimal.scale());
+            writeZigZagVarLong(out, decimal.unscaledValue().longValue());
+        } else if (type instanceof EnumTypeDefinition && value instanceof String) {
+            EnumPair enumPair = findEnum((EnumTypeDefinition) type, (String) value);
+            if (enumPair == null) {
+                return false;
+            }
+            writeZigZagVarLong(out, enumPair.getValue());
+        } else if (type instanceof BitsTypeDefinition && value instanceof Set) {
+            return writeBits(out, (BitsTypeDefinition) type, (Set<?>) value);
+        } else if (type instanceof IdentityrefTypeDefinition && value instanceof QName) {
+            writeIdentity(out, (IdentityrefTypeDefinition) type, (QName) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    @SuppressWarnings("checkstyle:CyclomaticComplexity")
+    private Object readValue(Reader reader, TypeDefinition<?> type) throws EtcdException {
+        if (type instanceof Int8TypeDefinition) {
+            return (byte) readZigZagVarLong(reader);
+        } else if (type instanceof Int16TypeDefinition) {
+            return (short) readZigZagVarLong(reader);
+        } else if (type instanceof Int32TypeDefinition) {
+            return (int) readZigZagVarLong(reader);
+        } else if (type instanceof Int64TypeDefinition) {
+            return readZigZagVarLong(reader);
+        } else if (type instanceof Uint8TypeDefinition) {
+            return (short) readVarLong(reader);
+        } else if (type instanceof Uint16TypeDefinition) {
+            return (int) readVarLong(reader);
+        } else if (type instanceof Uint32TypeDefinition) {
+            return readVarLong(reader);
+        } else if (type instanceof Uint64TypeDefinition) {
+            return new BigInteger(Long.toUnsignedString(readVarLong(reader)));
+        } else if (type instanceof BooleanTypeDefinition) {
+            return reader.readByte() != 0;
+        } else if (type instanceof EmptyTypeDefinition) {
+            return Empty.getInstance();
+        } else if (type instanceof StringTypeDefinition) {
+            return new String(readBytes(reader), UTF_8);
+        } else if (type instanceof BinaryTypeDefinition) {
+            return readBytes(reader);
+        } else if (type instanceof DecimalTypeDefinition) {
+            int scale = (int) readVarLong(reader);
+            return BigDecimal.valueOf(readZigZagVarLong(reader), scale);
+        } else if (type instanceof EnumTypeDefinition) {
+            int enumValue = (int) readZigZagVarLong(reader);
+            for (EnumPair enumPair : ((EnumTypeDefinition) type).getValues()) {
+                if (enumPair.getValue() == enumValue) {
+                    return enumPair.getName();
+                }
+            }
+            throw new EtcdException("Unknown value of enum " + type.getQName() + ": " + enumValue);
+        } else if (type instanceof BitsTypeDefinition) {
+            return readBits(reader, (BitsTypeDefinition) type);
+        } else if (type instanceof IdentityrefTypeDefinition) {
+            return readIdentity(reader, (IdentityrefTypeDefinition) type);
+        } else {
+            throw new EtcdException("Unsupported type of leaf: " + type);
+        }
+    }
+
+    private static @Nullable EnumPair findEnum(EnumTypeDefinition type, String name) {
+        for (EnumPair enumPair : type.getValues()) {
+            if (enumPair.getName().equals(name)) {
+                return enumPair;
+            }
+        }
+        return null;
+    }
+
+    private static boolean writeBits(ByteArrayDataOutput out, BitsTypeDefinition type, Set<?> bits) {
+        List<Long> positions = new ArrayList<>(bits.size());
+        for (Bit bit : type.getBits()) {
+            if (bits.contains(bit.getName())) {
+                positions.add(bit.getPosition());
+            }
+        }
+        if (positions.size() != bits.size()) {
+            // some of the bits are not bits of the type
+            return false;
+        }
+        writeVarLong(out, positions.size());
+        for (long position : positions) {
+            writeVarLong(out, position);
+        }
+        return true;
+    }
+
+    private static Set<String> readBits(Reader reader, BitsTypeDefinition type) throws EtcdException {
+        long size = readVarLong(reader);
+        ImmutableSet.Builder<String> bits = ImmutableSet.builder();
+        for (long i = 0; i < size; i++) {
+            long position = readVarLong(reader);
+            bits.add(findBit(type, position).getName());
+        }
+        return bits.build();
+    }
+
+    private static Bit findBit(BitsTypeDefinition type, long position) throws EtcdException {
+        for (Bit bit : type.getBits()) {
+            if (bit.getPosition() == position) {
+                return bit;
+            }
+        }
+        throw new EtcdException("Unknown position of bit " + type.getQName() + ": " + position);
+    }
+
+    /**
+     * Write an identityref value as the QName of the identity, and not e.g. as its ordinal among the identities derived
+     * from the identityref's base in the SchemaContext, because loading a module which derives another identity from
+     * the base would change those ordinals, but not the values already in etcd.  An identity of the same module as the
+     * (single) base identity, which is the typical case, is written as just its local name.
+     */
+    private static void writeIdentity(ByteArrayDataOutput out, IdentityrefTypeDefinition type, QName identity) {
+        QName base = singleBase(type);
+        if (base != null && base.getModule().equals(identity.getModule())) {
+            out.writeByte(IDENTITY_OF_BASE_MODULE);
+        } else {
+            out.writeByte(IDENTITY_OF_OTHER_MODULE);
+            writeBytes(out, identity.getNamespace().toString().getBytes(UTF_8));
+            writeBytes(out, identity.getRevision().map(Revision::toString).orElse("").getBytes(UTF_8));
+        }
+        writeBytes(out, identity.getLocalName().getBytes(UTF_8));
+    }
+
+    private static QName readIdentity(Reader reader, IdentityrefTypeDefinition type) throws EtcdException {
+        byte format = reader.readByte();
+        if (format == IDENTITY_OF_BASE_MODULE) {
+            QName base = singleBase(type);
+            if (base == null) {
+                throw new EtcdException("Identityref without a single base: " + type.getQName());
+            }
+            return QName.create(base, new String(readBytes(reader), UTF_8));
+        } else if (format == IDENTITY_OF_OTHER_MODULE) {
+            String namespace = new String(readBytes(reader), UTF_8);
+            String revision = new String(readBytes(reader), UTF_8);
+            String localName = new String(readBytes(reader), UTF_8);
+            // same format as NormalizedNodeInputStreamReader, so that QNameFactory can cache them
+            return QNameFactory.create(revision.isEmpty() ? "(" + namespace + ")" + localName
+                    : "(" + namespace + "?revision=" + revision + ")" + localName);
+        } else {
+            throw new EtcdException("Unknown format of identityref " + type.getQName() + ": " + format);
+        }
+    }
+
+    private static @Nullable QName singleBase(IdentityrefTypeDefinition type) {
+        Set<IdentitySchemaNode> bases = type.getIdentities();
+        // YANG 1.1 identityrefs can have several bases; their identities are then always written with their module
+        return bases.size() == 1 ? bases.iterator().next().getQName() : null;
+    }
+
+    private static void writeBytes(ByteArrayDataOutput out, byte[] bytes) {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(Reader reader) {
+        long length = readVarLong(reader);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Malformed length: " + length);
+        }
+        return reader.readBytes((int) length);
+    }
+
+    private static void writeZigZagVarLong(ByteArrayDataOutput out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readZigZagVarLong(Reader reader) {
+        long value = readVarLong(reader);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayDataOutput out, long value) {
+        @Var long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.writeByte((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.writeByte((int) remaining);
+    }
+
+    private static long readVarLong(Reader reader) {
+        @Var long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = reader.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length long");
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        byte readByte() {
+            checkAvailable(1);
+            return bytes[position++];
+        }
+
+        byte[] readBytes(int length) {
+            checkAvailable(length);
+            byte[] read = new byte[length];
+            System.arraycopy(bytes, position, read, 0, length);
+            position += length;
+            return read;
+        }
+
+        private void checkAvailable(int length) {
+            if (length < 0 || position + length > bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of value at position " + position);
+            }
+        }
+    }
+}
@@ -12,7 +12,9 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.options.GetOption;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
@@ -35,9 +37,13 @@ final class EtcdServerUtils {
 
     public static Header getServerHeader(KV etcdKV) throws EtcdException {
         try {
-            return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS).getHeader();
+            return getServerHeaderAsync(etcdKV).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
         } catch (InterruptedException | ExecutionException | TimeoutException e) {
             throw new EtcdException("failed to connect (in time) to etcd server", e);
         }
     }
+
+    public static CompletableFuture<Header> getServerHeaderAsync(KV etcdKV) {
+        return etcdKV.get(ANY_KEY, MINIMAL_GET_OPTION).thenApply(GetResponse::getHeader);
+    }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+
+/**
+ * Local file with the content of a data store's DataTree, and the etcd revision it corresponds to.
+ *
+ * <p>The format is a fixed size header (magic, format version, etcd cluster ID, revision, payload length and CRC32 of
+ * the payload), followed by the payload: the entire DataTree, as a single NormalizedNode stream (with its own string
+ * code table, so independent of the {@link QNameDictionary}).  The payload is contiguous and length prefixed, so it can
+ * be checksummed and read directly from a memory-mapped buffer, without copying the file into the heap first.
+ *
+ * <p>Files are written to a temporary file which is then atomically moved, so a crash while writing never leaves a
+ * truncated snapshot; any other corruption is detected by the checksum, see {@link #read(long)}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class EtcdSnapshotFile {
+
+    private static final int MAGIC = 0x4F444C45; // "ODLE"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8;
+
+    private final Path path;
+
+    EtcdSnapshotFile(Path path) {
+        this.path = requireNonNull(path, "path");
+    }
+
+    /**
+     * Read the snapshot.
+     *
+     * @param clusterId the ID of the etcd cluster which the snapshot must have been taken from
+     * @return the snapshot, or empty if there is no file, or it is of another cluster
+     * @throws IOException if the file could not be read, or is corrupt (e.g. its checksum does not match)
+     */
+    Optional<Snapshot> read(long clusterId) throws IOException {
+        if (!Files.exists(path)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Snapshot file too short: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a snapshot file (of this version): " + path);
+            }
+            if (buffer.getLong() != clusterId) {
+                return Optional.empty();
+            }
+            long revision = buffer.getLong();
+            long payloadLength = buffer.getLong();
+            long checksum = buffer.getLong();
+            if (payloadLength != channel.size() - HEADER_SIZE) {
+                throw new IOException("Snapshot file truncated: " + path);
+            }
+
+            ByteBuffer payload = buffer.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Snapshot file checksum mismatch: " + path);
+            }
+
+            DataInputStream dataInput = new DataInputStream(new ByteBufferInputStream(payload));
+            NormalizedNode<?, ?> root = new NormalizedNodeInputStreamReader(dataInput, false) { }.readNormalizedNode();
+            if (root == null) {
+                throw new IOException("Snapshot file has no content: " + path);
+            }
+            return Optional.of(new Snapshot(revision, root));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Snapshot file could not be decoded: " + path, e);
+        }
+    }
+
+    /**
+     * Write the snapshot, replacing any existing one.
+     */
+    void write(long clusterId, long revision, NormalizedNode<?, ?> root) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            channel.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            // not closed, as that would close the channel, before the header is written
+            OutputStream payloadOutput = new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc));
+            DataOutputStream dataOutput = new DataOutputStream(payloadOutput);
+            NormalizedNodeDataOutput nodeDataOutput = new NormalizedNodeOutputStreamWriter(dataOutput) { };
+            nodeDataOutput.writeNormalizedNode(root);
+            dataOutput.flush();
+            long payloadLength = channel.position() - HEADER_SIZE;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(clusterId).putLong(revision).putLong(payloadLength)
+                    .putLong(crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        return "EtcdSnapshotFile{" + path + "}";
+    }
+
+    static final class Snapshot {
+        final long revision;
+        final NormalizedNode<?, ?> root;
+
+        Snapshot(long revision, NormalizedNode<?, ?> root) {
+            this.revision = revision;
+            this.root = root;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, length);
+            return length;
+        }
+    }
+}
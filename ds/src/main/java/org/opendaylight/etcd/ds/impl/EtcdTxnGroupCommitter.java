@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.Op;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.LoggingKV;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Group commit of {@link EtcdTxn}s from concurrent DOM transactions into a single etcd TXN.
+ *
+ * <p>Transactions are queued, and sent to etcd as soon as less than maxInFlightBatches batches are outstanding;
+ * so the "window" in which transactions are coalesced is adaptive: it's zero when there is no load, and
+ * as long as an etcd round-trip while there is.  A batch is the ordered union of all compares and all
+ * operations of its members, bounded by maxOps (etcd server's --max-txn-ops) and maxBytes (its
+ * --max-request-bytes).  Transactions which put or delete a key (or a subtree containing a key) which an earlier
+ * still queued or in-flight transaction also writes are never batched ahead of it, so the order of writes to any
+ * given key is preserved, and etcd never sees a duplicate or a put into a deleted range in a TXN (which it rejects).
+ *
+ * <p>Because etcd evaluates the compares of a TXN together, a batch in which the guard of any member failed
+ * is not applied at all; its members are then re-sent individually, so that each gets its own result.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdTxnGroupCommitter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdTxnGroupCommitter.class);
+
+    // same as etcd server's default --max-txn-ops
+    static final int DEFAULT_MAX_OPS = 128;
+
+    // a bit less than etcd server's default --max-request-bytes (1.5 MiB), to leave room for the gRPC envelope
+    static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 1;
+
+    private final String name;
+    private final KV etcd;
+    private final int maxOps;
+    private final long maxBytes;
+    private final int maxInFlightBatches;
+
+    @GuardedBy("this")
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    @GuardedBy("this")
+    private final List<Batch> inFlightBatches = new ArrayList<>();
+
+    private final LongStatistics batchTxns = new LongStatistics("TXNs per batch");
+    private final LongStatistics batchOps = new LongStatistics("ops per batch");
+    private final LongStatistics batchBytes = new LongStatistics("bytes per batch");
+    private final LongStatistics waitMicros = new LongStatistics("queue wait µs");
+    private final LongStatistics retriedTxns = new LongStatistics("TXNs retried individually per failed batch");
+
+    EtcdTxnGroupCommitter(String name, Client client) {
+        this(name, client, DEFAULT_MAX_OPS, DEFAULT_MAX_BYTES, DEFAULT_MAX_IN_FLIGHT_BATCHES);
+    }
+
+    EtcdTxnGroupCommitter(String name, Client client, int maxOps, long maxBytes, int maxInFlightBatches) {
+        this.name = name;
+        // TODO make the LoggingKV a configuration option (for performance)
+        this.etcd = new LoggingKV(name + " ", requireNonNull(client, "client").getKVClient());
+        if (maxOps < 1 || maxBytes < 1 || maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("maxOps, maxBytes and maxInFlightBatches must all be > 0");
+        }
+        this.maxOps = maxOps;
+        this.maxBytes = maxBytes;
+        this.maxInFlightBatches = maxInFlightBatches;
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        LOG.info("{} group commit statistics: {}", name, getStatistics());
+        etcd.close();
+    }
+
+    /**
+     * Commit a transaction, possibly together with other transactions.
+     * The TxnResponse of the returned CompletionStage is that of the etcd TXN which the given transaction
+     * was part of; its {@link TxnResponse#isSucceeded()} reflects the guards of the given transaction.
+     */
+    @CheckReturnValue
+    CompletionStage<TxnResponse> commit(EtcdTxn txn) {
+        Pending pending = new Pending(txn);
+        synchronized (this) {
+            queue.add(pending);
+        }
+        flush();
+        return pending.future;
+    }
+
+    int getMaxOps() {
+        return maxOps;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    String getStatistics() {
+        return batchTxns + "; " + batchOps + "; " + batchBytes + "; " + waitMicros + "; " + retriedTxns;
+    }
+
+    private void flush() {
+        List<Batch> batches = new ArrayList<>();
+        synchronized (this) {
+            while (inFlightBatches.size() < maxInFlightBatches) {
+                Batch batch = nextBatch();
+                if (batch == null) {
+                    break;
+                }
+                inFlightBatches.add(batch);
+                batches.add(batch);
+            }
+        }
+        // sending happens outside of the lock, so that others can continue to enqueue meanwhile
+        for (Batch batch : batches) {
+            send(batch);
+        }
+    }
+
+    @GuardedBy("this")
+    private @Nullable Batch nextBatch() {
+        Batch batch = new Batch();
+        // keys written by in-flight batches, and by queued transactions which were skipped
+        WrittenKeys blockedKeys = new WrittenKeys();
+        for (Batch inFlightBatch : inFlightBatches) {
+            blockedKeys.addAll(inFlightBatch.keys);
+        }
+        Iterator<Pending> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+            if (!blockedKeys.overlaps(pending.txn) && !batch.keys.overlaps(pending.txn)) {
+                if (!batch.members.isEmpty()
+                        && (pending.isAlone || batch.members.get(0).isAlone || !batch.fits(pending.txn))) {
+                    // FIFO; we don't let smaller later transactions overtake one which does not fit anymore
+                    break;
+                }
+                iterator.remove();
+                batch.add(pending);
+            } else {
+                blockedKeys.add(pending.txn);
+            }
+        }
+        return batch.members.isEmpty() ? null : batch;
+    }
+
+    @SuppressWarnings({ "FutureReturnValueIgnored", "checkstyle:IllegalCatch" })
+    private void send(Batch batch) {
+        long now = System.nanoTime();
+        for (Pending pending : batch.members) {
+            if (!pending.isAlone) {
+                waitMicros.record(TimeUnit.NANOSECONDS.toMicros(now - pending.enqueuedNanos));
+            }
+        }
+        batchTxns.record(batch.members.size());
+        batchOps.record(batch.ops.size());
+        batchBytes.record(batch.bytes);
+        LOG.debug("{} sending batch of {} TXNs with {} compares and {} ops ({} bytes)", name, batch.members.size(),
+                batch.cmps.size(), batch.ops.size(), batch.bytes);
+
+        try {
+            Txn txn = etcd.txn();
+            txn.If(batch.cmps.toArray(new Cmp[batch.cmps.size()]));
+            txn.Then(batch.ops.toArray(new Op[batch.ops.size()]));
+            txn.commit().whenComplete((txnResponse, throwable) -> onComplete(batch, txnResponse, throwable));
+        } catch (RuntimeException e) {
+            onComplete(batch, null, e);
+        }
+    }
+
+    private void onComplete(Batch batch, @Nullable TxnResponse txnResponse, @Nullable Throwable throwable) {
+        boolean isRetried = false;
+        synchronized (this) {
+            inFlightBatches.remove(batch);
+            if (throwable == null && !txnResponse.isSucceeded() && batch.members.size() > 1) {
+                // re-send each member on its own, ahead of everything else, still in their original order
+                isRetried = true;
+                retriedTxns.record(batch.members.size());
+                for (int i = batch.members.size() - 1; i >= 0; i--) {
+                    queue.addFirst(batch.members.get(i).alone());
+                }
+            }
+        }
+        if (!isRetried) {
+            for (Pending pending : batch.members) {
+                if (throwable != null) {
+                    pending.future.completeExceptionally(throwable);
+                } else {
+                    pending.future.complete(txnResponse);
+                }
+            }
+        }
+        flush();
+    }
+
+    private static final class Pending {
+        final EtcdTxn txn;
+        final CompletableFuture<TxnResponse> future;
+        final long enqueuedNanos;
+        final boolean isAlone;
+
+        Pending(EtcdTxn txn) {
+            this(txn, new CompletableFuture<>(), System.nanoTime(), false);
+        }
+
+        private Pending(EtcdTxn txn, CompletableFuture<TxnResponse> future, long enqueuedNanos, boolean isAlone) {
+            this.txn = txn;
+            this.future = future;
+            this.enqueuedNanos = enqueuedNanos;
+            this.isAlone = isAlone;
+        }
+
+        Pending alone() {
+            return new Pending(txn, future, enqueuedNanos, true);
+        }
+    }
+
+    private final class Batch {
+        final List<Pending> members = new ArrayList<>();
+        final List<Cmp> cmps = new ArrayList<>();
+        final List<Op> ops = new ArrayList<>();
+        final WrittenKeys keys = new WrittenKeys();
+        long bytes;
+
+        boolean fits(EtcdTxn txn) {
+            // etcd separately limits the number of compares and of operations in a TXN to --max-txn-ops
+            return cmps.size() + txn.cmps().size() <= maxOps && ops.size() + txn.ops().size() <= maxOps
+                    && bytes + txn.byteSize() <= maxBytes;
+        }
+
+        void add(Pending pending) {
+            // the first member is always accepted, even if it alone is too big; etcd will tell if it really is
+            members.add(pending);
+            cmps.addAll(pending.txn.cmps());
+            ops.addAll(pending.txn.ops());
+            keys.add(pending.txn);
+            bytes += pending.txn.byteSize();
+        }
+    }
+
+    /**
+     * Keys written by EtcdTxns, including the subtrees which they delete with range deletes.
+     */
+    private static final class WrittenKeys {
+        private final NavigableSet<ByteSequence> keys = new TreeSet<>(ByteSequences.KEY_ORDER);
+        private final List<ByteSequence> deletedSubtrees = new ArrayList<>();
+
+        void add(EtcdTxn txn) {
+            keys.addAll(txn.writtenKeys());
+            deletedSubtrees.addAll(txn.deletedSubtrees());
+        }
+
+        void addAll(WrittenKeys other) {
+            keys.addAll(other.keys);
+            deletedSubtrees.addAll(other.deletedSubtrees);
+        }
+
+        boolean overlaps(EtcdTxn txn) {
+            for (ByteSequence key : txn.writtenKeys()) {
+                if (keys.contains(key)) {
+                    return true;
+                }
+                // there are typically only few (if any) deleted subtrees, so we can just iterate them
+                for (ByteSequence deletedSubtree : deletedSubtrees) {
+                    if (ByteSequences.startsWith(key, deletedSubtree)) {
+                        return true;
+                    }
+                }
+            }
+            for (ByteSequence deletedSubtree : txn.deletedSubtrees()) {
+                // all keys within a subtree sort right after its own key
+                ByteSequence ceiling = keys.ceiling(deletedSubtree);
+                if (ceiling != null && ByteSequences.startsWith(ceiling, deletedSubtree)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
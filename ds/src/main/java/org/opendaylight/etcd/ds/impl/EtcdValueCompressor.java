@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.LoggingKV;
+import org.opendaylight.infrautils.utils.function.CheckedConsumer;
+import org.opendaylight.yangtools.yang.common.QNameModule;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compression of large values, with a preset dictionary per top-level module shared by the cluster.
+ *
+ * <p>Values of at least the threshold size are compressed with a {@link Deflater}, unless that does not make them
+ * smaller.  A compressed value starts with a marker byte (which no other value format starts with, see EtcdYangKV),
+ * followed by the ID of the preset dictionary it was compressed with (or 0 for none), and the uncompressed length.
+ * Compressed and uncompressed values can therefore be mixed, and values are read regardless of the threshold.
+ *
+ * <p>The values of each top-level module (i.e. of the module of the first path argument) are sampled until there are
+ * enough to train a preset dictionary from, by concatenating the beginnings of the samples, see
+ * {@link #trainDictionary(List)}; until then, they are compressed without one.  Dictionaries are stored in etcd under
+ * {@link #COMPRESSION_PREFIX}, keyed by their ID (a hash of their content), and never changed or removed; the first
+ * node which trains one for a module sets it as that module's dictionary, with a TXN, and all nodes then use it.
+ * Dictionaries are loaded on start-up and kept up to date by watching, like the {@link QNameDictionary}.  A
+ * dictionary is put in etcd before (or in the same TXN as) the first value compressed with it, and this watch consumer
+ * is registered before the data stores, so it always sees the dictionary before they see such a value; decompress()
+ * therefore never reads from etcd, which would block the pool decoding watch events, see EtcdWatchEventDecoder.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdValueCompressor implements CheckedConsumer<List<WatchEvent>, EtcdException>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EtcdValueCompressor.class);
+
+    public static final ByteSequence COMPRESSION_PREFIX = ByteSequences.append(EtcdDataStore.BASE_PREFIX, (byte) 'Z');
+
+    private static final byte DICTIONARY = 'd';
+    private static final byte MODULE_DICTIONARY = 'm';
+
+    // First byte of compressed values; this cannot clash with the first byte of any other value format, see EtcdYangKV
+    static final byte COMPRESSED_VALUE_MARKER = 0x21;
+
+    private static final long NO_DICTIONARY = 0;
+    private static final int HEADER_SIZE = 1 + 8 + 4;
+
+    // the Deflater only finds matches within its 32 KiB window, so a larger dictionary would be useless
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // how much of each sampled value goes into a dictionary; so that it is made of at least 8 different values
+    private static final int MAX_SAMPLE_CONTRIBUTION = MAX_DICTIONARY_SIZE / 8;
+
+    static final int DEFAULT_SAMPLE_BYTES = 256 * 1024;
+
+    // The max. uncompressed length of a value; far more than what (compressed) fits into etcd's default
+    // --max-request-bytes of 1.5 MiB, but bounds what decompress() allocates for the length of a corrupt header.
+    static final int MAX_VALUE_SIZE = 64 * 1024 * 1024;
+
+    private final @Nullable KV etcd;
+    private final String name;
+    private final int threshold;
+    private final int sampleBytes;
+
+    private final ConcurrentMap<Long, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> moduleDictionaries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Sampler> samplers = new ConcurrentHashMap<>();
+
+    private final LongStatistics compressedPercent = new LongStatistics("compressed size in % of value size");
+
+    /**
+     * Constructor.
+     *
+     * @param threshold the min. size in bytes of values which are compressed; 0 to not compress, but still read
+     *                  values which other nodes compressed (though EtcdDOMDataBrokerProvider does not create an
+     *                  instance at all if compression is disabled)
+     */
+    EtcdValueCompressor(String name, Client client, int threshold) {
+        this(name, new LoggingKV(name + " ", client.getKVClient()), threshold, DEFAULT_SAMPLE_BYTES);
+    }
+
+    private EtcdValueCompressor(String name, @Nullable KV etcd, int threshold, int sampleBytes) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.name = name;
+        this.etcd = etcd;
+        this.threshold = threshold;
+        this.sampleBytes = sampleBytes;
+    }
+
+    /**
+     * Compressor whose dictionaries are not stored in etcd, e.g. for benchmarks and tests.
+     */
+    static EtcdValueCompressor inMemory(int threshold, int sampleBytes) {
+        return new EtcdValueCompressor("inMemory", null, threshold, sampleBytes);
+    }
+
+    @Override
+    @PreDestroy
+    public void close() {
+        LOG.info("{} value compression statistics: {}", name, compressedPercent);
+    }
+
+    /**
+     * Load all dictionaries at the given revision; watch events for later revisions must then be passed to accept().
+     */
+    void init(long revision) throws EtcdException {
+        if (etcd == null) {
+            return;
+        }
+        GetOption getOption = GetOption.newBuilder().withPrefix(COMPRESSION_PREFIX).withRevision(revision).build();
+        for (KeyValue keyValue : get(COMPRESSION_PREFIX, getOption).getKvs()) {
+            cache(keyValue);
+        }
+        LOG.info("{} loaded {} value compression dictionaries at revision {}", name, dictionaries.size(), revision);
+    }
+
+    @Override
+    public void accept(List<WatchEvent> events) {
+        for (WatchEvent event : events) {
+            if (event.getEventType() == WatchEvent.EventType.PUT) {
+                cache(event.getKeyValue());
+            }
+        }
+    }
+
+    static boolean isCompressedValue(ByteSequence value) {
+        byte[] bytes = value.getBytes();
+        return bytes.length > 0 && bytes[0] == COMPRESSED_VALUE_MARKER;
+    }
+
+    /**
+     * Compress the value of the node at the given path, if it is large enough, and that makes it smaller.
+     * @return the compressed value, or the given value as is
+     */
+    ByteSequence compress(YangInstanceIdentifier path, ByteSequence value) {
+        if (threshold == 0) {
+            return value;
+        }
+        byte[] bytes = value.getBytes();
+        if (bytes.length < threshold || bytes.length <= HEADER_SIZE || bytes.length > MAX_VALUE_SIZE) {
+            return value;
+        }
+        @Var long dictionaryId = NO_DICTIONARY;
+        @Var byte[] dictionary = null;
+        String module = module(path);
+        if (module != null) {
+            Long moduleDictionaryId = moduleDictionaries.get(module);
+            if (moduleDictionaryId != null) {
+                dictionary = dictionaries.get(moduleDictionaryId);
+                if (dictionary != null) {
+                    dictionaryId = moduleDictionaryId;
+                }
+            } else {
+                samplers.computeIfAbsent(module, Sampler::new).sample(bytes);
+            }
+        }
+
+        byte[] compressed = deflate(bytes, dictionaryId, dictionary);
+        if (compressed == null) {
+            return value;
+        }
+        compressedPercent.record(compressed.length * 100L / bytes.length);
+        return ByteSequence.from(compressed);
+    }
+
+    /**
+     * Decompress a value which {@link #isCompressedValue(ByteSequence)}.  This can safely be called concurrently.
+     */
+    ByteSequence decompress(ByteSequence value) throws EtcdException {
+        byte[] bytes = value.getBytes();
+        if (bytes.length < HEADER_SIZE) {
+            throw new EtcdException("Compressed value too short: " + bytes.length);
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes, 1, HEADER_SIZE - 1);
+        long dictionaryId = header.getLong();
+        int length = header.getInt();
+        if (length < 0) {
+            throw new EtcdException("Compressed value has a negative length: " + length);
+        }
+        if (length > MAX_VALUE_SIZE) {
+            throw new EtcdException("Compressed value has a length above " + MAX_VALUE_SIZE + ": " + length);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            byte[] result = new byte[length];
+            @Var int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(result, inflated, length - inflated);
+                if (count == 0) {
+                    if (inflater.needsDictionary() && dictionaryId != NO_DICTIONARY) {
+                        inflater.setDictionary(dictionary(dictionaryId));
+                    } else {
+                        throw new EtcdException("Compressed value is truncated or corrupt");
+                    }
+                }
+                inflated += count;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new EtcdException("Compressed value has " + inflated + " instead of " + length + " bytes");
+            }
+            return ByteSequence.from(result);
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new EtcdException("Compressed value is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The compressed value with header, or null if compressing does not make the value smaller.
+     */
+    private static @Nullable byte[] deflate(byte[] bytes, long dictionaryId, @Nullable byte[] dictionary) {
+        Deflater deflater = new Deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] compressed = new byte[bytes.length];
+            ByteBuffer.wrap(compressed).put(COMPRESSED_VALUE_MARKER).putLong(dictionaryId).putInt(bytes.length);
+            int length = deflater.deflate(compressed, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(compressed, HEADER_SIZE + length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Train a preset dictionary from sampled values.  This is a simple heuristic, which only concatenates the
+     * beginnings of the most recent samples; it does not search for the substrings most frequent across them (like
+     * e.g. zstd's dictionary builder does), so content repeated in the dictionary is not deduplicated, and what values
+     * have in common beyond their first {@link #MAX_SAMPLE_CONTRIBUTION} bytes is not used.  The beginning of a sample
+     * (e.g. its header and first strings) is what values typically have in common, and this way a dictionary is made
+     * of several samples.  The Deflater prefers matches at short distances, and the dictionary precedes the value, so
+     * the most recent samples (which are likely most alike the values compressed next) are placed last.
+     */
+    static byte[] trainDictionary(List<byte[]> samples) {
+        @Var int size = 0;
+        for (byte[] sample : samples) {
+            size += Math.min(sample.length, MAX_SAMPLE_CONTRIBUTION);
+        }
+        byte[] dictionary = new byte[Math.min(size, MAX_DICTIONARY_SIZE)];
+        @Var int position = dictionary.length;
+        for (int i = samples.size() - 1; i >= 0 && position > 0; i--) {
+            byte[] sample = samples.get(i);
+            int length = Math.min(Math.min(sample.length, MAX_SAMPLE_CONTRIBUTION), position);
+            System.arraycopy(sample, 0, dictionary, position - length, length);
+            position -= length;
+        }
+        return dictionary;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+    private void train(String module, List<byte[]> samples) {
+        byte[] dictionary = trainDictionary(samples);
+        // never NO_DICTIONARY
+        long dictionaryId = Hashing.sha256().hashBytes(dictionary).asLong() | 1;
+        if (etcd == null) {
+            dictionaries.put(dictionaryId, dictionary);
+            moduleDictionaries.put(module, dictionaryId);
+            return;
+        }
+
+        ByteSequence moduleKey = moduleDictionaryKey(module);
+        etcd.txn().If(new Cmp(moduleKey, Cmp.Op.EQUAL, CmpTarget.version(0)))
+                .Then(Op.put(dictionaryKey(dictionaryId), ByteSequence.from(dictionary), PutOption.DEFAULT),
+                      Op.put(moduleKey, ByteSequence.from(Longs.toByteArray(dictionaryId)), PutOption.DEFAULT))
+                .Else(Op.get(moduleKey, GetOption.DEFAULT))
+                .commit().whenComplete((response, throwable) -> {
+                    if (throwable != null) {
+                        // this node then just keeps compressing the module's values without a dictionary
+                        LOG.warn("{} storing value compression dictionary failed: {}", name, module, throwable);
+                    } else if (response.isSucceeded()) {
+                        LOG.info("{} trained value compression dictionary {} ({} bytes) for: {}", name,
+                                Long.toHexString(dictionaryId), dictionary.length, module);
+                        dictionaries.put(dictionaryId, dictionary);
+                        moduleDictionaries.put(module, dictionaryId);
+                    } else {
+                        // another node already set the module's dictionary; it is read if needed, see compress()
+                        for (GetResponse getResponse : response.getGetResponses()) {
+                            getResponse.getKvs().forEach(this::cache);
+                        }
+                    }
+                });
+    }
+
+    private byte[] dictionary(long dictionaryId) throws EtcdException {
+        byte[] dictionary = dictionaries.get(dictionaryId);
+        if (dictionary == null) {
+            // only if the events were not passed in order, see class Javadoc; the EtcdWatcher then resyncs
+            throw new EtcdException("Unknown value compression dictionary: " + Long.toHexString(dictionaryId));
+        }
+        return dictionary;
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored") // the returned future of thenAccept() is intentionally not used
+    private void cache(KeyValue keyValue) {
+        byte[] key = keyValue.getKey().getBytes();
+        byte[] value = keyValue.getValue().getBytes();
+        int prefixLength = COMPRESSION_PREFIX.getBytes().length;
+        if (key.length <= prefixLength) {
+            return;
+        }
+        if (key[prefixLength] == DICTIONARY) {
+            dictionaries.put(Longs.fromByteArray(Arrays.copyOfRange(key, prefixLength + 1, key.length)), value);
+        } else if (key[prefixLength] == MODULE_DICTIONARY) {
+            String module = new String(key, prefixLength + 1, key.length - prefixLength - 1, UTF_8);
+            long dictionaryId = Longs.fromByteArray(value);
+            if (!dictionaries.containsKey(dictionaryId) && etcd != null) {
+                // normally already cached, because the dictionary is put before (or in the same TXN as) the module's
+                etcd.get(dictionaryKey(dictionaryId)).thenAccept(response -> response.getKvs().forEach(this::cache));
+            }
+            moduleDictionaries.put(module, dictionaryId);
+        }
+    }
+
+    private static @Nullable String module(YangInstanceIdentifier path) {
+        List<PathArgument> pathArguments = path.getPathArguments();
+        if (pathArguments.isEmpty() || pathArguments.get(0) instanceof AugmentationIdentifier) {
+            return null;
+        }
+        QNameModule module = pathArguments.get(0).getNodeType().getModule();
+        return module.getNamespace() + module.getRevision().map(revision -> "@" + revision).orElse("");
+    }
+
+    private GetResponse get(ByteSequence key, GetOption option) throws EtcdException {
+        try {
+            return etcd.get(key, option).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("Value compression dictionary read failed: " + ByteSequences.asString(key), e);
+        }
+    }
+
+    private static ByteSequence dictionaryKey(long dictionaryId) {
+        return ByteSequences.append(ByteSequences.append(COMPRESSION_PREFIX, DICTIONARY),
+                Longs.toByteArray(dictionaryId));
+    }
+
+    private static ByteSequence moduleDictionaryKey(String module) {
+        return ByteSequences.append(ByteSequences.append(COMPRESSION_PREFIX, MODULE_DICTIONARY),
+                module.getBytes(UTF_8));
+    }
+
+    /**
+     * Sampled values of a module, until there are enough to train its dictionary from.
+     */
+    private final class Sampler {
+        private final String module;
+
+        @GuardedBy("this")
+        private List<byte[]> samples = new ArrayList<>();
+        @GuardedBy("this")
+        private int sampledBytes;
+
+        Sampler(String module) {
+            this.module = module;
+        }
+
+        void sample(byte[] value) {
+            List<byte[]> trainingSamples;
+            synchronized (this) {
+                if (samples == null) {
+                    // already trained (or training) a dictionary
+                    return;
+                }
+                samples.add(value);
+                sampledBytes += value.length;
+                if (sampledBytes < sampleBytes) {
+                    return;
+                }
+                trainingSamples = samples;
+                samples = null;
+            }
+            train(module, trainingSamples);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedPut;
+
+/**
+ * Decodes the keys and values of PUT watch events, in parallel for large batches (e.g. a peer's bulk import);
+ * and the same for the pages of key values read during the initial load, see {@link EtcdYangKV#readAllInto}.
+ * The result preserves the order of the events, so that they can then be applied sequentially.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class EtcdWatchEventDecoder {
+
+    // below this, the overhead of handing events over to other threads is not worth it
+    static final int DEFAULT_MIN_PARALLEL_EVENTS = 64;
+
+    private final EtcdYangKV kv;
+    private final Executor executor;
+    private final int parallelism;
+    private final int minParallelEvents;
+
+    EtcdWatchEventDecoder(EtcdYangKV kv) {
+        this(kv, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism(), DEFAULT_MIN_PARALLEL_EVENTS);
+    }
+
+    EtcdWatchEventDecoder(EtcdYangKV kv, Executor executor, int parallelism, int minParallelEvents) {
+        this.kv = requireNonNull(kv, "kv");
+        this.executor = requireNonNull(executor, "executor");
+        if (parallelism < 1 || minParallelEvents < 1) {
+            throw new IllegalArgumentException("parallelism and minParallelEvents must be > 0");
+        }
+        this.parallelism = parallelism;
+        this.minParallelEvents = minParallelEvents;
+    }
+
+    /**
+     * Decode the PUT events.
+     * @return list of the same size as the events, with the decoded PUT at the index of each PUT event, else null
+     */
+    List<DecodedPut> decode(List<WatchEvent> events) throws EtcdException {
+        return decode(events.size(), index -> {
+            WatchEvent event = events.get(index);
+            return event.getEventType() == WatchEvent.EventType.PUT ? event.getKeyValue() : null;
+        });
+    }
+
+    /**
+     * Decode key values (which are not staging markers).
+     * @return list of the same size as the key values, with the decoded PUT at the index of each, or null for markers
+     */
+    List<DecodedPut> decodeKeyValues(List<KeyValue> keyValues) throws EtcdException {
+        return decode(keyValues.size(), index -> {
+            KeyValue keyValue = keyValues.get(index);
+            return kv.isStagingMarkerKey(keyValue.getKey()) ? null : keyValue;
+        });
+    }
+
+    /**
+     * Decode size key values, obtained by index from the given function; which returns null for those to skip.
+     */
+    private List<DecodedPut> decode(int size, IntFunction<KeyValue> keyValues) throws EtcdException {
+        DecodedPut[] decoded = new DecodedPut[size];
+        int chunks = Math.min(parallelism, size / minParallelEvents);
+        if (chunks <= 1) {
+            decode(keyValues, decoded, 0, size);
+            return Arrays.asList(decoded);
+        }
+
+        int chunkSize = (size + chunks - 1) / chunks;
+        List<CompletableFuture<Void>> futures = new ArrayList<>(chunks);
+        for (int from = chunkSize; from < size; from += chunkSize) {
+            int chunkFrom = from;
+            int chunkTo = Math.min(from + chunkSize, size);
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    decode(keyValues, decoded, chunkFrom, chunkTo);
+                } catch (EtcdException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        // the calling thread does the first chunk itself, instead of just waiting
+        decode(keyValues, decoded, 0, chunkSize);
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof EtcdException) {
+                throw (EtcdException) e.getCause();
+            }
+            throw new EtcdException("Parallel decoding of watch events failed", e.getCause());
+        }
+        return Arrays.asList(decoded);
+    }
+
+    private void decode(IntFunction<KeyValue> keyValues, DecodedPut[] decoded, int from, int to)
+            throws EtcdException {
+        for (int i = from; i < to; i++) {
+            KeyValue keyValue = keyValues.apply(i);
+            if (keyValue != null) {
+                decoded[i] = kv.decodePut(keyValue.getKey(), keyValue.getValue());
+            }
+        }
+    }
+}
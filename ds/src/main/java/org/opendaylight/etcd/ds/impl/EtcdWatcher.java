@@ -8,16 +8,28 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
 import io.etcd.jetcd.Watch;
 import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.common.exception.CompactedException;
 import io.etcd.jetcd.options.WatchOption;
 import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import org.opendaylight.etcd.utils.KeyValues;
 import org.opendaylight.infrautils.utils.concurrent.Executors;
@@ -28,64 +40,394 @@ import org.slf4j.LoggerFactory;
 /**
  * Utility with background thread to continuously watch for changes from etcd.
  *
+ * <p>Watch responses are received on the jetcd (gRPC) thread, and only put into a bounded queue there.  They are
+ * passed to the consumer, in order, by a dedicated apply thread; so slow DataTree commits or listener notifications
+ * do not stall the gRPC thread, unless the queue is full (then it blocks, as backpressure; but never beyond close()).
+ *
+ * <p>Normally, the events of a response are passed to the consumer per etcd revision (i.e. per remote TXN), so that
+ * each DataTreeCandidate corresponds to exactly one remote commit.
+ *
+ * <p>When this node lags behind, i.e. when at least catchUpLagThreshold responses are queued, it switches to a catch-up
+ * mode, in which the events of up to maxFold consecutive responses are passed to the consumer together, with the
+ * revision of the last event; so they are applied in a single DataTree modification, instead of one per revision.
+ *
+ * <p>If the watch fails (with an error which jetcd does not recover from itself), it is resumed from the revision
+ * after the last applied one.  If that revision was meanwhile compacted by
+ * etcd, the missed events are gone; then the {@link Resync} reads the current state from etcd and applies only the
+ * differences, and the watch resumes from there.  Errors are queued like responses, so recovery happens on the apply
+ * thread, once everything received before the error was applied.  If the consumer fails to accept the events of a
+ * response, then the DataTree may be missing (some of) them; so that is recovered from with a resync as well, instead
+ * of carrying on (and advancing the applied revision) as if they had been applied.
+ *
  * @author Michael Vorburger.ch
  */
 class EtcdWatcher implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(EtcdWatcher.class);
 
+    static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    static final int DEFAULT_CATCH_UP_LAG_THRESHOLD = 10;
+    static final int DEFAULT_MAX_FOLD = 100;
+
+    // delay before retrying a failed recovery, e.g. while the etcd server is not reachable
+    private static final long RECOVERY_RETRY_DELAY_MS = 1000;
+
+    // how long the gRPC thread waits for space in the full queue before it checks again whether this was closed
+    private static final long ENQUEUE_RETRY_DELAY_MS = 100;
+
+    /**
+     * Incrementally resynchronizes the consumer with etcd, after watch events were lost due to compaction.
+     */
+    @FunctionalInterface
+    interface Resync {
+        /**
+         * Resynchronize with etcd.
+         *
+         * @param revision the (current) etcd revision to resynchronize to
+         * @param appliedRevision the revision up to which all watch events were applied
+         * @return the number of bytes read from etcd
+         */
+        long resync(long revision, long appliedRevision) throws EtcdException;
+    }
+
     private final Watch etcdWatch;
+    private final KV kvClient;
     private final ListeningExecutorService executor;
     private final String name;
     private final AtomicBoolean isOpen = new AtomicBoolean(true);
 
     private final ByteSequence prefix;
     private final CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer;
+    private final Resync resync;
+    private final BlockingQueue<Response> queue;
+    private final int catchUpLagThreshold;
+    private final int maxFold;
+
+    private final LongStatistics queueDepth = new LongStatistics("queue depth");
+    private final LongStatistics queueMicros = new LongStatistics("queued µs");
+    private final LongStatistics applyMicros = new LongStatistics("apply µs");
+    private final LongStatistics stallMicros = new LongStatistics("receiving thread stalled µs (queue full)");
+    private final LongStatistics foldedResponses = new LongStatistics("responses folded per catch-up apply");
+    private final LongStatistics recoveryMillis = new LongStatistics("watch recovery ms");
+    private final LongStatistics resyncBytes = new LongStatistics("bytes read per resync after compaction");
 
-    private Watcher theWatcher;
+    private volatile @Nullable Watcher theWatcher;
+
+    // only used by the apply thread (after start)
+    private long appliedRevision;
+    // incremented for every new watch, so that responses still queued from a previous one (which recover() replaced)
+    // are skipped; they were either applied already, or are covered by the resync
+    private int watchGeneration;
 
     EtcdWatcher(String name, Client client, ByteSequence prefix,
-            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer) {
+            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer, Resync resync) {
+        this(name, client, prefix, consumer, resync, DEFAULT_QUEUE_CAPACITY, DEFAULT_CATCH_UP_LAG_THRESHOLD,
+                DEFAULT_MAX_FOLD);
+    }
+
+    EtcdWatcher(String name, Client client, ByteSequence prefix,
+            CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> consumer, Resync resync, int queueCapacity,
+            int catchUpLagThreshold, int maxFold) {
         this.name = name;
         this.prefix = prefix;
         this.consumer = consumer;
+        this.resync = requireNonNull(resync, "resync");
         this.etcdWatch = requireNonNull(client, "client").getWatchClient();
+        this.kvClient = client.getKVClient();
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (catchUpLagThreshold < 1 || maxFold < 1) {
+            throw new IllegalArgumentException("catchUpLagThreshold and maxFold must be > 0");
+        }
+        this.catchUpLagThreshold = catchUpLagThreshold;
+        this.maxFold = maxFold;
 
         this.executor = Executors.newListeningSingleThreadExecutor("EtcdWatcher-" + name, LOG);
     }
 
+    @SuppressWarnings("FutureReturnValueIgnored") // the apply loop only ends on close()
     public void start(long revision) {
+        this.appliedRevision = revision - 1;
+        executor.submit(this::applyLoop);
         this.theWatcher = watch(revision);
     }
 
+    String getStatistics() {
+        return queueDepth + "; " + queueMicros + "; " + applyMicros + "; " + stallMicros + "; " + foldedResponses
+                + "; " + recoveryMillis + "; " + resyncBytes;
+    }
+
     @Override
     @PreDestroy
     public void close() {
         // do not etcdWatch.close(); as that will happen when the Client gets closed
         isOpen.set(false);
         executor.shutdownNow(); // intentionally NOT Executors.shutdownAndAwaitTermination(executor);
-        if (theWatcher != null) {
-            theWatcher.close();
+        // nothing takes from the queue anymore; this frees any gRPC thread blocked in enqueue() without waiting
+        queue.clear();
+        Watcher watcher = theWatcher;
+        if (watcher != null) {
+            watcher.close();
         }
-        LOG.info("{} closed.", name);
+        LOG.info("{} closed; watch statistics: {}", name, getStatistics());
+    }
+
+    /**
+     * Await the end of the apply thread, after {@link #close()}; so that no more watch events are being applied.
+     * @return true if it ended, false if the timeout elapsed (or the calling thread was interrupted)
+     */
+    boolean awaitTermination(Duration timeout) {
+        try {
+            return executor.awaitTermination(timeout.toNanos(), NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * The revision up to which all watch events were passed to (and accepted by) the consumer.  Only to be used once
+     * the apply thread ended, see {@link #awaitTermination(Duration)}, which makes this safe to read.
+     */
+    long getAppliedRevision() {
+        return appliedRevision;
     }
 
     private Watcher watch(long revision) {
-        Watch.Listener listener = Watch.listener(response -> {
-            List<WatchEvent> events = response.getEvents();
-            for (WatchEvent event : events) {
-                LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
-                        KeyValues.toStringable(event.getKeyValue()));
+        int generation = watchGeneration;
+        Watch.Listener listener = new Watch.Listener() {
+            @Override
+            public void onNext(WatchResponse response) {
+                List<WatchEvent> events = response.getEvents();
+                if (events.isEmpty()) {
+                    LOG.debug("{} watch: progress notification, revision={}", name,
+                            response.getHeader().getRevision());
+                }
+                for (WatchEvent event : events) {
+                    LOG.info("{} watch: eventType={}, KV={}", name, event.getEventType(),
+                            KeyValues.toStringable(event.getKeyValue()));
+                }
+                enqueue(new Response(generation, response.getHeader().getRevision(), events));
             }
-            try {
-                consumer.accept(response.getHeader().getRevision(), events);
-            } catch (EtcdException e) {
-                LOG.error("watch consumer accept failed", e);
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (isOpen.get()) {
+                    LOG.warn("{} watch failed, will recover", name, throwable);
+                    enqueue(new Response(generation, throwable));
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                LOG.debug("{} watch completed", name);
             }
-        });
-        Watcher watcher = etcdWatch.watch(prefix,
-                WatchOption.newBuilder().withPrefix(prefix).withRevision(revision).build(), listener);
+        };
+        // Progress notifications are responses without events, which etcd periodically sends while the watched
+        // prefix is idle; they let the consumer know the server revision without a separate etcd GET request.
+        // (Requesting progress on demand is only possible with newer etcd and jetcd versions than we use.)
+        Watcher watcher = etcdWatch.watch(prefix, WatchOption.newBuilder().withPrefix(prefix).withRevision(revision)
+                .withProgressNotify(true).build(), listener);
         // TODO is .withRange(prefix + 1) needed?!
         return watcher;
     }
+
+    private void enqueue(Response response) {
+        queueDepth.record(queue.size());
+        if (queue.offer(response)) {
+            return;
+        }
+        long stalledAt = System.nanoTime();
+        try {
+            // not put(), which would block the gRPC thread forever if the apply thread is gone after close()
+            while (isOpen.get()) {
+                if (queue.offer(response, ENQUEUE_RETRY_DELAY_MS, MILLISECONDS)) {
+                    return;
+                }
+            }
+            LOG.debug("{} closed while waiting for space in the full watch queue; dropped: {}", name, response);
+        } catch (InterruptedException e) {
+            LOG.warn("{} interrupted while waiting for space in the full watch queue; dropped: {}", name, response);
+            Thread.currentThread().interrupt();
+        } finally {
+            stallMicros.record(NANOSECONDS.toMicros(System.nanoTime() - stalledAt));
+        }
+    }
+
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private void applyLoop() {
+        while (isOpen.get()) {
+            Response response;
+            try {
+                response = queue.take();
+            } catch (InterruptedException e) {
+                LOG.debug("{} apply thread interrupted, and stops", name);
+                return;
+            }
+            long startedAt = System.nanoTime();
+            queueMicros.record(NANOSECONDS.toMicros(startedAt - response.enqueuedNanos));
+            Throwable error = response.error;
+            if (response.generation != watchGeneration) {
+                LOG.debug("{} skipping {} of a previous watch", name, response);
+            } else if (error != null) {
+                recover(error instanceof CompactedException);
+            } else if (queue.size() + 1 >= catchUpLagThreshold) {
+                // responses always contain all events of a revision (we do not ask etcd for fragments), so this never
+                // splits a revision; but it intentionally merges many, see class JavaDoc
+                List<Response> folded = new ArrayList<>(maxFold);
+                folded.add(response);
+                // not drainTo(), because a queued error must be handled on its own, see recover()
+                while (folded.size() < maxFold) {
+                    Response next = queue.peek();
+                    if (next == null || next.error != null || next.generation != watchGeneration) {
+                        break;
+                    }
+                    // this is the only thread which takes from the queue, so this is the same as peeked
+                    folded.add(queue.poll());
+                }
+                List<WatchEvent> events = new ArrayList<>();
+                for (Response foldedResponse : folded) {
+                    events.addAll(foldedResponse.events);
+                }
+                foldedResponses.record(folded.size());
+                Response last = folded.get(folded.size() - 1);
+                if (events.isEmpty()) {
+                    accept(last.revision, events);
+                } else {
+                    long revision = events.get(events.size() - 1).getKeyValue().getModRevision();
+                    LOG.debug("{} catching up, folded {} responses up to revision {}", name, folded.size(), revision);
+                    if (accept(revision, events) && last.events.isEmpty()) {
+                        // the folded responses ended with a progress notification
+                        accept(last.revision, last.events);
+                    }
+                }
+            } else {
+                // a response may contain the events of several revisions (i.e. etcd TXNs), but we apply each on its
+                // own, so that every DataTreeCandidate, and so every DTCL notification, is exactly one remote commit;
+                // with the revision of its events, and not the response's header revision: that may be higher, e.g.
+                // while this watch catches up, and then events of the revisions in between still follow.  Only the
+                // header revision of a progress notification (without events) is passed on as such, see
+                // EtcdWatcherSplittingConsumer, because etcd only sends those once the watch has caught up.
+                if (response.events.isEmpty()) {
+                    accept(response.revision, response.events);
+                }
+                for (List<WatchEvent> revisionEvents : splitByRevision(response.events)) {
+                    if (!accept(revisionEvents.get(0).getKeyValue().getModRevision(), revisionEvents)) {
+                        // the rest of the response is covered by the resync
+                        break;
+                    }
+                }
+            }
+            applyMicros.record(NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+        }
+    }
+
+    /**
+     * Pass events to the consumer.  If it fails, the events are not (or only partially) applied, so the watch is
+     * replaced, after a resync, see recover(); the applied revision only advances if the consumer succeeded.
+     * @return true if the consumer succeeded, false if it failed (and recover() was done)
+     */
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private boolean accept(long revision, List<WatchEvent> events) {
+        try {
+            consumer.accept(revision, events);
+        } catch (EtcdException | RuntimeException e) {
+            // the apply thread must survive anything, or the DataTree would stop receiving changes
+            LOG.error("{} watch consumer accept failed for revision {}, will resync", name, revision, e);
+            recover(true);
+            return false;
+        }
+        appliedRevision = Math.max(appliedRevision, revision);
+        return true;
+    }
+
+    /**
+     * Watch again, after the watch failed (or its events could not be applied); retries until it succeeds, or this
+     * is closed.
+     * @param isResyncNeeded whether watch events after the applied revision are lost (e.g. compacted), so that the
+     *                       current state has to be read from etcd before the watch resumes
+     */
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    private void recover(boolean isResyncNeeded) {
+        long startedAt = System.nanoTime();
+        Watcher failedWatcher = theWatcher;
+        if (failedWatcher != null) {
+            failedWatcher.close();
+        }
+        // anything still queued from the failed watch is skipped, see applyLoop()
+        watchGeneration++;
+        @Var boolean isResyncPending = isResyncNeeded;
+        while (isOpen.get()) {
+            try {
+                if (isResyncPending) {
+                    long revision = EtcdServerUtils.getServerRevision(kvClient);
+                    LOG.warn("{} watch events after revision {} are lost, resynchronizing to revision {}",
+                            name, appliedRevision, revision);
+                    resyncBytes.record(resync.resync(revision, appliedRevision));
+                    appliedRevision = revision;
+                    isResyncPending = false;
+                }
+                LOG.info("{} resuming watch after revision {}", name, appliedRevision);
+                theWatcher = watch(appliedRevision + 1);
+                recoveryMillis.record(NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+                return;
+            } catch (EtcdException | RuntimeException e) {
+                LOG.error("{} watch recovery failed, will retry", name, e);
+                try {
+                    Thread.sleep(RECOVERY_RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    LOG.debug("{} apply thread interrupted during watch recovery, and stops", name);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Split events into lists of consecutive events with the same modRevision, i.e. of the same etcd TXN.
+     */
+    static List<List<WatchEvent>> splitByRevision(List<WatchEvent> events) {
+        List<List<WatchEvent>> revisions = new ArrayList<>();
+        @Var List<WatchEvent> current = null;
+        @Var long currentRevision = 0;
+        for (WatchEvent event : events) {
+            long modRevision = event.getKeyValue().getModRevision();
+            if (current == null || modRevision != currentRevision) {
+                current = new ArrayList<>();
+                currentRevision = modRevision;
+                revisions.add(current);
+            }
+            current.add(event);
+        }
+        return revisions;
+    }
+
+    private static final class Response {
+        // see watchGeneration
+        final int generation;
+        final long revision;
+        final List<WatchEvent> events;
+        final @Nullable Throwable error;
+        final long enqueuedNanos = System.nanoTime();
+
+        Response(int generation, long revision, List<WatchEvent> events) {
+            this.generation = generation;
+            this.revision = revision;
+            this.events = events;
+            this.error = null;
+        }
+
+        Response(int generation, Throwable error) {
+            this.generation = generation;
+            this.revision = 0;
+            this.events = Collections.emptyList();
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return error != null ? "Response{error=" + error + "}"
+                    : "Response{revision=" + revision + ", events=" + events.size() + "}";
+        }
+    }
 }
@@ -7,17 +7,20 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import static com.google.common.collect.ImmutableMap.builderWithExpectedSize;
+import static java.util.Objects.requireNonNull;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
-import com.google.common.collect.ImmutableSet;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.watch.WatchEvent;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.BooleanSupplier;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import org.opendaylight.infrautils.utils.function.CheckedBiConsumer;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
 
@@ -25,45 +28,158 @@ import org.opendaylight.infrautils.utils.function.CheckedConsumer;
  * Consumer suitable for EtcdWatcher which "splits" watch events by prefix.
  * NB: Events not matching any prefixes are silently (!) dropped.
  *
+ * <p>The prefixes are kept in a byte trie, so that each event is routed by walking (at most) its key once, instead of
+ * testing it against every prefix.  An event whose key matches several (nested) prefixes goes to all of them.
+ * Consumers which receive events are called in the order in which they were registered, and never with an empty list.
+ *
+ * <p>The RevAwaiters (if any) are advanced to the revision of the events once they were all accepted; but each one
+ * not while its consumer holds back (some of) the events it accepted instead of applying them, see
+ * {@link EtcdDataStore#isHoldingBack()}, because until it applies them, its data is not yet at that revision.  So
+ * with a RevAwaiter per data store, a chunked commit of one data store does not hold back the other.
+ *
+ * <p>Prefix consumers can be registered and removed at runtime, concurrently with watch events being accepted; this
+ * is rare, so it rebuilds the trie and publishes it (copy on write), and routing never has to lock.
+ *
  * @author Michael Vorburger.ch
  */
+@ThreadSafe
 class EtcdWatcherSplittingConsumer implements CheckedBiConsumer<Long, List<WatchEvent>, EtcdException> {
 
-    private final Optional<RevAwaiter> revAwaiter;
-    private final ImmutableMap<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers;
+    // each RevAwaiter, with whether the consumer whose revision it fences currently holds back events
+    private final ImmutableMap<RevAwaiter, BooleanSupplier> revAwaiters;
+
+    @GuardedBy("this")
+    private final Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers =
+            new LinkedHashMap<>();
+
+    private volatile Routes routes = new Routes(new LinkedHashMap<>());
 
     EtcdWatcherSplittingConsumer(Optional<RevAwaiter> revAwaiter,
             Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers) {
-        this.revAwaiter = revAwaiter;
-        this.splitConsumers = ImmutableMap.copyOf(splitConsumers);
+        this(revAwaiter.isPresent() ? ImmutableMap.<RevAwaiter, BooleanSupplier>of(revAwaiter.get(), () -> false)
+                : ImmutableMap.of(), splitConsumers);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param revAwaiters the RevAwaiters to advance, each with whether the consumer whose revision it fences
+     *                    currently holds back events which it accepted; called (only) after all consumers accepted
+     *                    the events of a revision
+     */
+    EtcdWatcherSplittingConsumer(Map<RevAwaiter, BooleanSupplier> revAwaiters,
+            Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers) {
+        this.revAwaiters = ImmutableMap.copyOf(revAwaiters);
+        for (Map.Entry<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumer
+                : splitConsumers.entrySet()) {
+            register(splitConsumer.getKey(), splitConsumer.getValue());
+        }
+    }
+
+    /**
+     * Register a consumer for all events of keys starting with prefix.
+     * @throws IllegalArgumentException if there already is a consumer for that prefix
+     */
+    synchronized void register(ByteSequence prefix, CheckedConsumer<List<WatchEvent>, EtcdException> consumer) {
+        if (splitConsumers.putIfAbsent(requireNonNull(prefix, "prefix"), requireNonNull(consumer, "consumer"))
+                != null) {
+            throw new IllegalArgumentException("Consumer already registered for prefix: " + prefix);
+        }
+        routes = new Routes(splitConsumers);
+    }
+
+    /**
+     * Remove the consumer of a prefix.
+     * @return true if there was one
+     */
+    synchronized boolean unregister(ByteSequence prefix) {
+        if (splitConsumers.remove(prefix) == null) {
+            return false;
+        }
+        routes = new Routes(splitConsumers);
+        return true;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void accept(Long revision, List<WatchEvent> allWatchEvents) throws EtcdException {
-        Builder<ByteSequence, List<WatchEvent>> listsBuilder = builderWithExpectedSize(splitConsumers.size());
-        ImmutableSet<ByteSequence> prefixes = splitConsumers.keySet();
-        for (ByteSequence keyPrefix : prefixes) {
-            listsBuilder.put(keyPrefix, new ArrayList<WatchEvent>());
+        if (allWatchEvents.isEmpty()) {
+            // a progress notification, see EtcdWatcher
+            revAwaiters.forEach((revAwaiter, isHoldingBack) -> {
+                if (!isHoldingBack.getAsBoolean()) {
+                    revAwaiter.progress(revision);
+                }
+            });
+            return;
         }
-        ImmutableMap<ByteSequence, List<WatchEvent>> lists = listsBuilder.build();
 
+        // read the volatile only once, so that the whole response is routed consistently
+        Routes currentRoutes = this.routes;
+        // lists are only created for consumers which actually receive events; with separate Oper/Config, one or
+        // the other is typically empty
+        List<WatchEvent>[] lists = new List[currentRoutes.consumers.size()];
         for (WatchEvent watchEvent : allWatchEvents) {
-            for (ByteSequence keyPrefix : prefixes) {
-                if (watchEvent.getKeyValue().getKey().startsWith(keyPrefix)) {
-                    lists.get(keyPrefix).add(watchEvent);
+            byte[] key = watchEvent.getKeyValue().getKey().getBytes();
+            @Var Node node = currentRoutes.root;
+            @Var int depth = 0;
+            while (node != null) {
+                if (node.consumerIndex >= 0) {
+                    if (lists[node.consumerIndex] == null) {
+                        lists[node.consumerIndex] = new ArrayList<>();
+                    }
+                    lists[node.consumerIndex].add(watchEvent);
                 }
+                if (depth == key.length || node.children == null) {
+                    break;
+                }
+                node = node.children[key[depth++] & 0xFF];
             }
         }
 
-        for (Map.Entry<ByteSequence, List<WatchEvent>> list: lists.entrySet()) {
-            List<WatchEvent> eventsList = list.getValue();
-            // Important optimization, because with separate Oper/Config, one or the other is typically empty
-            if (!eventsList.isEmpty()) {
-                splitConsumers.get(list.getKey()).accept(eventsList);
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i] != null) {
+                currentRoutes.consumers.get(i).accept(lists[i]);
             }
         }
 
-        revAwaiter.ifPresent(revAwait -> revAwait.update(revision));
+        revAwaiters.forEach((revAwaiter, isHoldingBack) -> {
+            if (!isHoldingBack.getAsBoolean()) {
+                revAwaiter.update(revision);
+            }
+        });
+    }
+
+    /**
+     * Immutable (once published) snapshot of the registered consumers, and the trie of their prefixes.
+     */
+    private static final class Routes {
+        final Node root = new Node();
+        final List<CheckedConsumer<List<WatchEvent>, EtcdException>> consumers;
+
+        Routes(Map<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumers) {
+            consumers = new ArrayList<>(splitConsumers.size());
+            for (Map.Entry<ByteSequence, CheckedConsumer<List<WatchEvent>, EtcdException>> splitConsumer
+                    : splitConsumers.entrySet()) {
+                @Var Node node = root;
+                for (byte b : splitConsumer.getKey().getBytes()) {
+                    if (node.children == null) {
+                        node.children = new Node[256];
+                    }
+                    int index = b & 0xFF;
+                    if (node.children[index] == null) {
+                        node.children[index] = new Node();
+                    }
+                    node = node.children[index];
+                }
+                node.consumerIndex = consumers.size();
+                consumers.add(splitConsumer.getValue());
+            }
+        }
     }
 
+    private static final class Node {
+        // index into Routes.consumers of the consumer whose prefix ends here, or -1 if none does
+        int consumerIndex = -1;
+        Node[] children;
+    }
 }
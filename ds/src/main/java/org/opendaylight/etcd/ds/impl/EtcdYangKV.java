@@ -8,18 +8,21 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.opendaylight.etcd.utils.ByteSequences.toStringable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.ByteArrayDataInput;
-import com.google.common.io.ByteStreams;
+import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
 import io.etcd.jetcd.KV;
 import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Lease;
 import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.GetResponse;
 import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
 import io.etcd.jetcd.op.Op;
 import io.etcd.jetcd.options.DeleteOption;
 import io.etcd.jetcd.options.GetOption;
@@ -30,29 +33,34 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
+import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataInput;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.etcd.utils.LoggingKV;
-import org.opendaylight.infrautils.utils.concurrent.CompletableFutures;
-import org.opendaylight.infrautils.utils.function.CheckedCallable;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
-import org.opendaylight.infrautils.utils.function.CheckedFunction;
 import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.AugmentationIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.PathArgument;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,22 +81,85 @@ class EtcdYangKV implements AutoCloseable {
     // TODO make this a configuration option (perhaps in upstream jetcd-osgi?)
     static final long TIMEOUT_MS = 3000;
 
+    static final long NO_REVISION_GUARD = -1;
+
+    // number of keys per (paged) read, see readAllInto() and resyncInto()
+    static final int PAGE_SIZE = 1000;
+
+    // how often readAllInto() logs its progress
+    private static final int PROGRESS_LOG_PAGES = 10;
+
+    // Keys of a data store's prefix followed by this byte are not YANG data but internal bookkeeping; this cannot
+    // clash, because the encoded YangInstanceIdentifier of real keys starts with a (small) path argument type.
+    static final byte RESERVED_KEY_MARKER = (byte) 0xFF;
+
+    // see EtcdDataStore.commit() for how staging markers are used
+    private static final byte STAGING_MARKER_TYPE = 'S';
+
+    // First byte of values which are an entire subtree, see EtcdTxn.putSubtree(); this cannot clash with the
+    // NodeTypes (1-15) which values of the ShallowNormalizedNodeDataOutputWriter start with, nor with the kinds of
+    // the EtcdSchemaValueCodec.  Any of these can be compressed, see EtcdValueCompressor (whose marker is 0x21).
+    private static final byte SUBTREE_VALUE_MARKER = 0x20;
+
     // TODO remove (make optional) the use of the controller.cluster
     // NormalizedNodeDataOutput & Co. extra SIGNATURE_MARKER byte
     // this isn't a problem at this early stage, but as that is added for *EVERY*
     // key *AND* value, we could (eventually) remove it
 
     private final KV etcd;
+    private final Lease lease;
     private final byte[] prefixByteArray;
     private final ByteSequence prefixByteSequence;
+    private final ByteSequence stagingMarkerKey;
+    private final EtcdKeyCodec keyCodec;
+    private final @Nullable QNameDictionary dictionary;
+    private final boolean isSchemaValueCodecEnabled;
+    private final @Nullable EtcdValueCompressor compressor;
     private final String name;
 
+    // for reading values written by it (even if not enabled), and for writing values if enabled; see setSchemaContext()
+    private volatile @Nullable EtcdSchemaValueCodec valueCodec;
+
     EtcdYangKV(String name, Client client, ByteSequence prefix) {
+        this(name, client, prefix, null, null, EtcdDataBrokerOptions.DEFAULTS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dictionary the QNameDictionary, or null if not {@link EtcdDataBrokerOptions#isQNameDictionaryEnabled()}
+     * @param compressor the EtcdValueCompressor, see {@link EtcdDataBrokerOptions#getCompressionThreshold()}
+     * @param options of which only those about how keys and values are written are used here
+     */
+    EtcdYangKV(String name, Client client, ByteSequence prefix, @Nullable QNameDictionary dictionary,
+            @Nullable EtcdValueCompressor compressor, EtcdDataBrokerOptions options) {
         // TODO make the LoggingKV a configuration option (for performance)
         this.name = name;
         this.etcd = new LoggingKV(name + " ", requireNonNull(client, "client").getKVClient());
+        this.lease = client.getLeaseClient();
         this.prefixByteArray = prefix.getBytes();
         this.prefixByteSequence = prefix;
+        this.stagingMarkerKey = ByteSequences.append(prefix, RESERVED_KEY_MARKER, STAGING_MARKER_TYPE);
+        this.keyCodec = new EtcdKeyCodec(prefix, dictionary);
+        this.dictionary = dictionary;
+        this.isSchemaValueCodecEnabled = options.isSchemaValueCodecEnabled();
+        this.compressor = compressor;
+    }
+
+    /**
+     * Set the SchemaContext which the {@link EtcdSchemaValueCodec} encodes and decodes values with, and allocate the
+     * {@link QNameDictionary} codes of its QNames (if enabled), so that commits do not have to.
+     */
+    void setSchemaContext(SchemaContext schemaContext) {
+        valueCodec = new EtcdSchemaValueCodec(schemaContext);
+        if (dictionary != null) {
+            try {
+                dictionary.allocate(schemaContext);
+            } catch (EtcdException e) {
+                // not fatal, because QNameDictionary.code() still allocates missing codes, just blocking
+                LOG.warn("{} allocating QName dictionary codes for the SchemaContext failed", name, e);
+            }
+        }
     }
 
     @Override
@@ -98,7 +169,63 @@ class EtcdYangKV implements AutoCloseable {
     }
 
     public EtcdTxn newTransaction() {
-        return new EtcdTxn();
+        return new EtcdTxn(NO_REVISION_GUARD, false);
+    }
+
+    /**
+     * Create a new transaction which only succeeds if none of the keys it puts, deletes or guards
+     * have been modified in etcd after the given revision; see {@link EtcdTxn#guard(YangInstanceIdentifier)}.
+     *
+     * @param maxModRevision the revision the data this transaction is based on was read (or validated) at
+     */
+    public EtcdTxn newTransaction(long maxModRevision) {
+        return new EtcdTxn(maxModRevision, false);
+    }
+
+    /**
+     * Create a new transaction which, instead of putting and deleting, only checks the guards of what it would put
+     * or delete; e.g. for the nodes of a chunked commit, before any of them is written, see EtcdDataStore.
+     *
+     * @param maxModRevision the revision the data this transaction is based on was read (or validated) at
+     */
+    EtcdTxn newGuardsOnlyTransaction(long maxModRevision) {
+        return new EtcdTxn(maxModRevision, true);
+    }
+
+    /**
+     * The staging marker key of this prefix, see {@link EtcdTxn#putStagingMarker(long)}.
+     */
+    ByteSequence getStagingMarkerKey() {
+        return stagingMarkerKey;
+    }
+
+    boolean isStagingMarkerKey(ByteSequence key) {
+        return stagingMarkerKey.equals(key);
+    }
+
+    /**
+     * Grant a lease with the given TTL, which a staging marker can be attached to.
+     * @return the ID of the lease
+     */
+    @CheckReturnValue
+    CompletionStage<Long> grantLease(long ttlInSeconds) {
+        return lease.grant(ttlInSeconds).thenApply(leaseGrantResponse -> leaseGrantResponse.getID());
+    }
+
+    /**
+     * Renew a lease once, so that it expires only after its TTL from now.
+     */
+    @CheckReturnValue
+    CompletionStage<?> keepAliveLease(long leaseId) {
+        return lease.keepAliveOnce(leaseId);
+    }
+
+    /**
+     * Revoke a lease, which deletes all keys attached to it.
+     */
+    @CheckReturnValue
+    CompletionStage<?> revokeLease(long leaseId) {
+        return lease.revoke(leaseId);
     }
 /*
     public @CheckReturnValue CompletionStage<PutResponse> put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
@@ -128,68 +255,317 @@ class EtcdYangKV implements AutoCloseable {
                 })), e -> new ReadFailedException("Failed to read from etcd: " + path, e));
     }
 */
+    /**
+     * Delete the node of the given key, and (implicitly) its entire subtree.
+     */
     public void applyDelete(DataTreeModification dataTree, ByteSequence key) throws EtcdException {
         YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
         dataTree.delete(path);
     }
 
     public void applyPut(DataTreeModification dataTree, ByteSequence key, ByteSequence value) throws EtcdException {
+        applyPut(dataTree, decodePut(key, value));
+    }
+
+    public void applyPut(DataTreeModification dataTree, DecodedPut put) throws EtcdException {
+        try {
+            // TODO when to write and when to merge, that is the question ...
+            dataTree.write(put.path, put.data);
+        } catch (IllegalArgumentException e) {
+            throw new EtcdException("readAllInto write failed: " + put.path, e);
+        }
+    }
+
+    /**
+     * Decode the key and value of a PUT.  This does not change any state, and can safely be called concurrently;
+     * see {@link EtcdWatchEventDecoder}.
+     */
+    DecodedPut decodePut(ByteSequence key, ByteSequence compressedValue) throws EtcdException {
+        ByteSequence value = decompress(compressedValue);
         try {
             YangInstanceIdentifier path = fromByteSequenceToYangInstanceIdentifier(key);
+            if (isSubtreeValue(value)) {
+                return new DecodedPut(path, fromSubtreeByteSequence(value));
+            }
+            if (EtcdSchemaValueCodec.isEncodedValue(value)) {
+                EtcdSchemaValueCodec codec = valueCodec;
+                if (codec == null) {
+                    throw new EtcdException("Schema-aware value, but no SchemaContext yet: " + path);
+                }
+                return new DecodedPut(path, codec.decode(path, value));
+            }
             PathArgument pathArgument = path.getLastPathArgument();
             NormalizedNode<?, ?> data = pathArgument instanceof AugmentationIdentifier
                     // because an AugmentationIdentifier has no node type QName
                     ? fromByteSequenceToNormalizedNode(value)
                     : fromByteSequenceToNormalizedNode(value, pathArgument.getNodeType());
-            // TODO when to write and when to merge, that is the question ...
-            dataTree.write(path, data);
+            return new DecodedPut(path, data);
         } catch (IllegalArgumentException e) {
-            // LOG.error("readAllInto write failed: {} ➠ {}", ByteSequences.asString(kv.getKey()),
-            //        ByteSequences.asString(kv.getValue()), e);
-            throw new EtcdException("readAllInto write failed: " + ByteSequences.asString(key)
+            throw new EtcdException("decoding failed: " + ByteSequences.asString(key)
                     + " ➠ " + ByteSequences.asString(value), e);
         }
     }
 
-    public void readAllInto(long rev, DataTreeModification dataTree) throws EtcdException {
-        try {
-            GetOption getOpt = GetOption.newBuilder().withRevision(rev).withPrefix(prefixByteSequence).build();
-            read(prefixByteSequence, getOpt, kvs -> {
-                for (KeyValue kv : kvs) {
-                    applyPut(dataTree, kv.getKey(), kv.getValue());
+    /**
+     * The path and the data of a PUT, see {@link #decodePut(ByteSequence, ByteSequence)}.
+     */
+    static final class DecodedPut {
+        final YangInstanceIdentifier path;
+        final NormalizedNode<?, ?> data;
+
+        DecodedPut(YangInstanceIdentifier path, NormalizedNode<?, ?> data) {
+            this.path = path;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Read all keys and values of this prefix, at the given revision, into a DataTree.
+     *
+     * <p>They are read in pages of {@link #PAGE_SIZE} keys, each of which is decoded and written into the modification
+     * while the next one is already being fetched; so only about two pages are held in memory at any time.  The
+     * timeout applies to each page, not to the whole load, so that loading a large data store does not fail as long as
+     * it makes progress.  The keys and values of each page are decoded in parallel by the decoder, and then written
+     * sequentially, in key order (so parents before their children).
+     *
+     * @return the number of keys read
+     */
+    public long readAllInto(long rev, DataTreeModification dataTree, EtcdWatchEventDecoder decoder)
+            throws EtcdException {
+        long startNanos = System.nanoTime();
+        @Var long keys = 0;
+        @Var long bytes = 0;
+        @Var int pages = 0;
+        @Var CompletableFuture<GetResponse> nextPage = getPage(prefixByteSequence, rev);
+        while (nextPage != null) {
+            GetResponse response = get(nextPage);
+            List<KeyValue> kvs = response.getKvs();
+            // the next page starts right after the last key of this one
+            nextPage = response.isMore() && !kvs.isEmpty()
+                    ? getPage(ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0), rev) : null;
+            List<DecodedPut> decodedPuts = decoder.decodeKeyValues(kvs);
+            for (int i = 0; i < kvs.size(); i++) {
+                KeyValue kv = kvs.get(i);
+                DecodedPut decodedPut = decodedPuts.get(i);
+                if (decodedPut == null) {
+                    // TODO we could instead await the staged commit's completion (or lease expiry) here
+                    LOG.warn("{} readAllInto() found an ongoing staged commit, so may load some of its partial "
+                            + "changes: {}", name, toStringable(kv.getKey()));
+                } else {
+                    applyPut(dataTree, decodedPut);
                 }
-                return completedFuture(null);
-            }).toCompletableFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
-            throw new EtcdException("readAllInto() failed", e);
+                bytes += kv.getKey().getBytes().length + kv.getValue().getBytes().length;
+            }
+            keys += kvs.size();
+            if (++pages % PROGRESS_LOG_PAGES == 0) {
+                LOG.info("{} readAllInto() loading revision {}, {} keys ({} bytes) so far, after {}ms", name, rev,
+                        keys, bytes, NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            }
+        }
+        LOG.info("{} readAllInto() loaded revision {}, {} keys ({} bytes) in {} pages, in {}ms", name, rev, keys,
+                bytes, pages, NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return keys;
+    }
+
+    private CompletableFuture<GetResponse> getPage(ByteSequence fromKey, long rev) {
+        return etcd.get(fromKey, GetOption.newBuilder().withRevision(rev).withPrefix(prefixByteSequence)
+                .withLimit(PAGE_SIZE).build());
+    }
+
+    /**
+     * Source of the keys of all nodes of a DataTree, in the order of {@link ByteSequences#KEY_ORDER}; see
+     * {@link #resyncInto(long, long, KeySource, DataTreeModification)}.
+     */
+    @FunctionalInterface
+    interface KeySource {
+        /**
+         * The next key.
+         * @return the next key, or null if there are no more
+         */
+        @Nullable ByteSequence next() throws EtcdException;
+    }
+
+    /**
+     * Incrementally resynchronize a DataTree with etcd, after watch events were missed (e.g. due to compaction).
+     *
+     * <p>All keys are read page by page, but without values, and merged with the (equally ordered) local keys as they
+     * go; so neither side is ever held in memory as a whole.  Only the values of the keys which were modified after
+     * appliedRevision (or which are not in the DataTree) are read, and put; with one (paged) range read for each run of
+     * consecutive such keys, instead of one GET per key.  Keys which are in the DataTree but not in etcd anymore are
+     * deleted.  Keys of reserved bookkeeping (e.g. staging markers) are ignored.
+     *
+     * @param rev the etcd revision to resynchronize to
+     * @param appliedRevision the revision up to which the DataTree is known to be in sync with etcd
+     * @param localKeys the keys of all nodes in the DataTree
+     * @param dataTree the modification of the DataTree
+     * @return the number of bytes read from etcd
+     */
+    long resyncInto(long rev, long appliedRevision, KeySource localKeys, DataTreeModification dataTree)
+            throws EtcdException {
+        return new ResyncMerge(rev, appliedRevision, localKeys, dataTree).run();
+    }
+
+    /**
+     * The state of one {@link #resyncInto(long, long, KeySource, DataTreeModification)}.
+     */
+    private final class ResyncMerge {
+        private final long rev;
+        private final long appliedRevision;
+        private final KeySource localKeys;
+        private final DataTreeModification dataTree;
+        private final ByteSequence rangeEnd = ByteSequences.append(prefixByteSequence, RESERVED_KEY_MARKER);
+
+        // the smallest local key not yet merged, or null if there are no more
+        private @Nullable ByteSequence localKey;
+        // the last key which was put because of its own modification (and not as the child of a put parent)
+        private @Nullable ByteSequence lastPutKey;
+        // the first and the last key of the current run of consecutive keys to put, or null if there is none
+        private @Nullable ByteSequence runStart;
+        private @Nullable ByteSequence runEnd;
+
+        private long bytesRead;
+        private long remoteKeys;
+        private long puts;
+        private long deletes;
+
+        ResyncMerge(long rev, long appliedRevision, KeySource localKeys, DataTreeModification dataTree) {
+            this.rev = rev;
+            this.appliedRevision = appliedRevision;
+            this.localKeys = localKeys;
+            this.dataTree = dataTree;
+        }
+
+        long run() throws EtcdException {
+            localKey = localKeys.next();
+            @Var ByteSequence fromKey = prefixByteSequence;
+            while (true) {
+                GetOption getOption = GetOption.newBuilder().withRevision(rev).withRange(rangeEnd)
+                        .withLimit(PAGE_SIZE).withKeysOnly(true).build();
+                GetResponse response = get(fromKey, getOption);
+                List<KeyValue> kvs = response.getKvs();
+                for (KeyValue keyValue : kvs) {
+                    merge(keyValue);
+                }
+                if (!response.isMore() || kvs.isEmpty()) {
+                    break;
+                }
+                // the next page starts right after the last key of this one
+                fromKey = ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0);
+            }
+            deleteLocalKeysBefore(null);
+            endRun();
+            LOG.info("{} resync to revision {}: {} keys in etcd, put {}, deleted {}; read {} bytes", name, rev,
+                    remoteKeys, puts, deletes, bytesRead);
+            return bytesRead;
+        }
+
+        private void merge(KeyValue keyValue) throws EtcdException {
+            ByteSequence key = keyValue.getKey();
+            bytesRead += key.getBytes().length;
+            remoteKeys++;
+            deleteLocalKeysBefore(key);
+            boolean isLocal = key.equals(localKey);
+            if (isLocal) {
+                localKey = localKeys.next();
+            }
+            // the put of a node replaces its entire subtree (see applyPut), so its children must be put as well
+            if (lastPutKey != null && ByteSequences.startsWith(key, lastPutKey)) {
+                addToRun(key);
+            } else if (keyValue.getModRevision() > appliedRevision || !isLocal) {
+                addToRun(key);
+                lastPutKey = key;
+            } else {
+                endRun();
+            }
+        }
+
+        /**
+         * Delete the local keys before the given remote key (or all remaining ones, if null), as they are not in etcd
+         * anymore.  A local node is gone only if neither it nor any of its children are in etcd anymore; and its
+         * local descendants are deleted with it.
+         */
+        private void deleteLocalKeysBefore(@Nullable ByteSequence remoteKey) throws EtcdException {
+            while (localKey != null && isBefore(localKey, remoteKey)) {
+                ByteSequence key = localKey;
+                localKey = localKeys.next();
+                // all remote keys before this local key were already merged, so the remote key is the next one after it
+                boolean hasRemoteChildren = remoteKey != null && ByteSequences.startsWith(remoteKey, key);
+                // the put of an ancestor (still to be read, see endRun()) replaces its entire subtree anyway
+                boolean isReplaced = lastPutKey != null && ByteSequences.startsWith(key, lastPutKey);
+                if (!hasRemoteChildren && !isReplaced) {
+                    applyDelete(dataTree, key);
+                    deletes++;
+                    while (localKey != null && ByteSequences.startsWith(localKey, key)) {
+                        localKey = localKeys.next();
+                    }
+                }
+            }
+        }
+
+        private boolean isBefore(ByteSequence key, @Nullable ByteSequence remoteKey) {
+            return remoteKey == null || ByteSequences.KEY_ORDER.compare(key, remoteKey) < 0;
+        }
+
+        private void addToRun(ByteSequence key) {
+            if (runStart == null) {
+                runStart = key;
+            }
+            runEnd = key;
+            puts++;
+        }
+
+        /**
+         * Read the values of the current run of keys to put (if any), and put them.  The keys of a run are consecutive
+         * at this revision, so a range read returns exactly those, in order (and so parents before their children).
+         */
+        private void endRun() throws EtcdException {
+            ByteSequence start = runStart;
+            ByteSequence end = runEnd;
+            if (start == null || end == null) {
+                return;
+            }
+            runStart = null;
+            runEnd = null;
+            ByteSequence afterEnd = ByteSequences.append(end, (byte) 0);
+            @Var ByteSequence fromKey = start;
+            while (true) {
+                GetResponse response = get(fromKey, GetOption.newBuilder().withRevision(rev).withRange(afterEnd)
+                        .withLimit(PAGE_SIZE).build());
+                List<KeyValue> kvs = response.getKvs();
+                for (KeyValue keyValue : kvs) {
+                    bytesRead += keyValue.getKey().getBytes().length + keyValue.getValue().getBytes().length;
+                    applyPut(dataTree, keyValue.getKey(), keyValue.getValue());
+                }
+                if (!response.isMore() || kvs.isEmpty()) {
+                    return;
+                }
+                fromKey = ByteSequences.append(kvs.get(kvs.size() - 1).getKey(), (byte) 0);
+            }
         }
     }
 
-    private @CheckReturnValue <T> CompletionStage<T> read(ByteSequence key, GetOption option,
-            CheckedFunction<List<KeyValue>, CompletionStage<T>, EtcdException> transformer) {
-        return handleException(() -> etcd.get(key, option)
-            .thenCompose(getResponse -> handleException(() -> transformer.apply(getResponse.getKvs()))));
+    private GetResponse get(ByteSequence key, GetOption option) throws EtcdException {
+        return get(etcd.get(key, option));
     }
 
-    private static @CheckReturnValue <T>
-        CompletionStage<T> handleException(CheckedCallable<CompletionStage<T>, EtcdException> callable) {
+    private GetResponse get(CompletableFuture<GetResponse> future) throws EtcdException {
         try {
-            return callable.call();
-        } catch (EtcdException e) {
-            return CompletableFutures.completedExceptionally(e);
+            return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("get() failed", e);
         }
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence)
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence)
             throws EtcdException {
         return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput));
+            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput, dictionary));
     }
 
-    private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, QName qname)
+    private NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence, QName qname)
             throws EtcdException {
         return fromByteSequenceToNormalizedNode(byteSequence,
-            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput, qname));
+            dataInput -> new ShallowNormalizedNodeInputStreamReader(dataInput, qname, dictionary));
     }
 
     private static NormalizedNode<?, ?> fromByteSequenceToNormalizedNode(ByteSequence byteSequence,
@@ -203,25 +579,40 @@ class EtcdYangKV implements AutoCloseable {
         }
     }
 
-    @VisibleForTesting
-    YangInstanceIdentifier fromByteSequenceToYangInstanceIdentifier(ByteSequence byteSequence) throws EtcdException {
-        ByteArrayDataInput dataInput = ByteStreams.newDataInput(byteSequence.getBytes());
-        for (byte prefix : prefixByteArray) {
-            byte readPrefix = dataInput.readByte();
-            if (readPrefix != prefix) {
-                throw new EtcdException(
-                        "The read prefix does not match the expected prefix: " + readPrefix + " -VS- " + prefix);
-            }
+    private ByteSequence decompress(ByteSequence value) throws EtcdException {
+        if (!EtcdValueCompressor.isCompressedValue(value)) {
+            return value;
+        }
+        if (compressor == null) {
+            throw new EtcdException("Compressed value, but no EtcdValueCompressor: " + ByteSequences.asString(value));
         }
+        return compressor.decompress(value);
+    }
 
-        try {
-            NormalizedNodeDataInput nodeDataInput = new ShallowNormalizedNodeInputStreamReader(dataInput);
-            return nodeDataInput.readYangInstanceIdentifier();
-        } catch (IOException e) {
-            throw new EtcdException("byte[] -> YangInstanceIdentifier failed", e);
+    private static boolean isSubtreeValue(ByteSequence value) {
+        byte[] bytes = value.getBytes();
+        return bytes.length > 0 && bytes[0] == SUBTREE_VALUE_MARKER;
+    }
+
+    private static NormalizedNode<?, ?> fromSubtreeByteSequence(ByteSequence value) throws EtcdException {
+        byte[] bytes = value.getBytes();
+        try (DataInputStream dataInput = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1))) {
+            // the entire subtree, including the node's own identifier, with the standard header and string code table
+            NormalizedNode<?, ?> node = new NormalizedNodeInputStreamReader(dataInput, false) { }.readNormalizedNode();
+            if (node == null) {
+                throw new EtcdException("Subtree value has no content");
+            }
+            return node;
+        } catch (IOException | IllegalStateException e) {
+            throw new EtcdException("byte[] -> subtree NormalizedNode failed", e);
         }
     }
 
+    @VisibleForTesting
+    YangInstanceIdentifier fromByteSequenceToYangInstanceIdentifier(ByteSequence byteSequence) throws EtcdException {
+        return keyCodec.fromKey(byteSequence);
+    }
+
     private ByteSequence toByteSequence(boolean writePrefix,
             CheckedConsumer<NormalizedNodeDataOutput, IOException> consumer) throws IOException {
         // TODO Is there any advantage converting this to use Guava's I/O ?
@@ -231,7 +622,8 @@ class EtcdYangKV implements AutoCloseable {
                 if (writePrefix) {
                     dataOutput.write(prefixByteArray, 0, prefixByteArray.length);
                 }
-                try (NormalizedNodeDataOutput nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput)) {
+                try (NormalizedNodeDataOutput nodeDataOutput
+                        = new ShallowNormalizedNodeDataOutputWriter(dataOutput, dictionary)) {
                     consumer.accept(nodeDataOutput);
                     dataOutput.flush();
                     return ByteSequence.from(baos.toByteArray());
@@ -240,13 +632,26 @@ class EtcdYangKV implements AutoCloseable {
         }
     }
 
+    /**
+     * Key of a YangInstanceIdentifier, see {@link EtcdKeyCodec}.
+     */
     @VisibleForTesting
     ByteSequence toByteSequence(YangInstanceIdentifier path) throws EtcdException {
-        try {
-            return toByteSequence(true, nodeDataOutput -> nodeDataOutput.writeYangInstanceIdentifier(path));
-        } catch (IOException e) {
-            throw new EtcdException("YangInstanceIdentifier toByteSequence failed: " + path.toString(), e);
+        return keyCodec.toKey(path);
+    }
+
+    /**
+     * Value of a node, see {@link EtcdSchemaValueCodec} and {@link ShallowNormalizedNodeDataOutputWriter}.
+     */
+    private ByteSequence toByteSequence(YangInstanceIdentifier path, NormalizedNode<?, ?> node) throws EtcdException {
+        EtcdSchemaValueCodec codec = valueCodec;
+        if (isSchemaValueCodecEnabled && codec != null) {
+            ByteSequence value = codec.encode(path, node);
+            if (value != null) {
+                return value;
+            }
         }
+        return toByteSequence(node);
     }
 
     private ByteSequence toByteSequence(NormalizedNode<?, ?> node) throws EtcdException {
@@ -257,35 +662,271 @@ class EtcdYangKV implements AutoCloseable {
         }
     }
 
+    @VisibleForTesting
+    static ByteSequence toSubtreeByteSequence(NormalizedNode<?, ?> node) throws EtcdException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            try (DataOutputStream dataOutput = new DataOutputStream(baos)) {
+                dataOutput.writeByte(SUBTREE_VALUE_MARKER);
+                new NormalizedNodeOutputStreamWriter(dataOutput) { }.writeNormalizedNode(node);
+                dataOutput.flush();
+                return ByteSequence.from(baos.toByteArray());
+            }
+        } catch (IOException e) {
+            throw new EtcdException("NormalizedNode toSubtreeByteSequence failed: " + node.toString(), e);
+        }
+    }
+
+    /**
+     * Compress a value, if enabled and it is large enough, see {@link EtcdValueCompressor}.  Values are compared
+     * (e.g. by putIfChanged) before they are compressed, because that is cheaper.
+     */
+    private ByteSequence compress(YangInstanceIdentifier path, ByteSequence value) {
+        return compressor != null ? compressor.compress(path, value) : value;
+    }
+
     public class EtcdTxn {
 
         private final Txn txn;
+        private final List<Cmp> cmpsList;
         private final List<Op> opsList;
+        private final Set<ByteSequence> writtenKeys;
+        private final Set<ByteSequence> deletedSubtrees;
+        private final long maxModRevision;
+        private final boolean isGuardsOnly;
+        private long byteSize;
 
-        EtcdTxn() {
+        EtcdTxn(long maxModRevision, boolean isGuardsOnly) {
             txn = etcd.txn();
-            // TODO txn.If();
+            cmpsList = new ArrayList<>();
             opsList = new ArrayList<>();
+            writtenKeys = new HashSet<>();
+            deletedSubtrees = new HashSet<>();
+            this.maxModRevision = maxModRevision;
+            this.isGuardsOnly = isGuardsOnly;
         }
 
         public void put(YangInstanceIdentifier path, NormalizedNode<?, ?> data) throws EtcdException {
+            if (isGuardsOnly) {
+                guard(path);
+                return;
+            }
+            put(toByteSequence(path), compress(path, toByteSequence(path, data)));
+        }
+
+        /**
+         * Put the node at the given path, unless its (shallow, i.e. without children) value is the same as before.
+         * A node which is not put because it is unchanged is still guarded, see {@link #guard(YangInstanceIdentifier)}.
+         * Note that if the node is put, then callers must also put all of its children, because that replaces its
+         * entire subtree in the DataTree of watchers, see applyPut().
+         *
+         * @return true if the node was put, false if it was unchanged
+         */
+        public boolean putIfChanged(YangInstanceIdentifier path, NormalizedNode<?, ?> dataBefore,
+                NormalizedNode<?, ?> dataAfter) throws EtcdException {
+            if (isGuardsOnly) {
+                // without comparing the values, which is only worth it if the node is then not put
+                guard(path);
+                return true;
+            }
             ByteSequence key = toByteSequence(path);
-            ByteSequence value = toByteSequence(data);
+            ByteSequence value = toByteSequence(path, dataAfter);
+            if (value.equals(toByteSequence(path, dataBefore))) {
+                guard(key);
+                return false;
+            }
+            put(key, compress(path, value));
+            return true;
+        }
+
+        /**
+         * Put the node at the given path including its entire subtree as a single value, see
+         * {@link StorageGranularity}.  Callers must not also put or delete any of the node's descendants.
+         *
+         * @param existed whether the node existed before; if so, any keys of its descendants (e.g. from before it was
+         *                stored as one subtree) are deleted, before the put, because watchers apply them in order
+         */
+        public void putSubtree(YangInstanceIdentifier path, NormalizedNode<?, ?> data, boolean existed)
+                throws EtcdException {
+            ByteSequence key = toByteSequence(path);
+            if (isGuardsOnly) {
+                guard(key);
+                return;
+            }
+            if (existed) {
+                deleteDescendants(key);
+            }
+            put(key, compress(path, toSubtreeByteSequence(data)));
+        }
+
+        /**
+         * Put the node at the given path including its entire subtree as a single value, unless that is the same as
+         * before; like {@link #putIfChanged(YangInstanceIdentifier, NormalizedNode, NormalizedNode)}.
+         *
+         * @return true if the node was put, false if it was unchanged
+         */
+        public boolean putSubtreeIfChanged(YangInstanceIdentifier path, NormalizedNode<?, ?> dataBefore,
+                NormalizedNode<?, ?> dataAfter) throws EtcdException {
+            ByteSequence key = toByteSequence(path);
+            if (isGuardsOnly) {
+                guard(key);
+                return true;
+            }
+            ByteSequence value = toSubtreeByteSequence(dataAfter);
+            if (value.equals(toSubtreeByteSequence(dataBefore))) {
+                guard(key);
+                return false;
+            }
+            deleteDescendants(key);
+            put(key, compress(path, value));
+            return true;
+        }
+
+        private void put(ByteSequence key, ByteSequence value) {
+            guard(key);
             opsList.add(Op.put(key, value, PutOption.DEFAULT));
+            writtenKeys.add(key);
+            byteSize += key.getBytes().length + value.getBytes().length;
             // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
             LOG.info("{} TXN put: {} ➠ {}", name, toStringable(key), toStringable(value));
         }
 
+        /**
+         * Delete the node at the given path, including its entire subtree, using a single etcd range delete.
+         * Callers therefore do not (and should not) also delete the children of the deleted node.
+         */
         public void delete(YangInstanceIdentifier path) throws EtcdException {
             ByteSequence key = toByteSequence(path);
-            opsList.add(Op.delete(key, DeleteOption.DEFAULT));
+            guard(key);
+            if (isGuardsOnly) {
+                return;
+            }
+            // [key, key + 0xFF) is the key itself and all keys of its subtree, but for the root not the reserved keys
+            ByteSequence rangeEnd = ByteSequences.append(key, RESERVED_KEY_MARKER);
+            opsList.add(Op.delete(key, DeleteOption.newBuilder().withRange(rangeEnd).build()));
+            writtenKeys.add(key);
+            deletedSubtrees.add(key);
+            byteSize += key.getBytes().length + rangeEnd.getBytes().length;
             // TODO remove logging here once LoggingKV can correctly support txn() [missing getters]
-            LOG.info("{} TXN delete: {}", name, toStringable(key));
+            LOG.info("{} TXN delete subtree: {}", name, toStringable(key));
+        }
+
+        private void deleteDescendants(ByteSequence key) {
+            // [key + 0x00, key + 0xFF) is all keys of the subtree, but not the key itself (so it can be put)
+            ByteSequence rangeStart = ByteSequences.append(key, (byte) 0);
+            ByteSequence rangeEnd = ByteSequences.append(key, RESERVED_KEY_MARKER);
+            opsList.add(Op.delete(rangeStart, DeleteOption.newBuilder().withRange(rangeEnd).build()));
+            // conservatively including the key itself, which is put anyway, see EtcdTxnGroupCommitter
+            deletedSubtrees.add(key);
+            byteSize += rangeStart.getBytes().length + rangeEnd.getBytes().length;
+            LOG.info("{} TXN delete descendants: {}", name, toStringable(key));
+        }
+
+        /**
+         * Make this transaction fail if the key of the given path was modified in etcd after the revision
+         * this transaction was created for (if any).  This is used for nodes which are not themselves written,
+         * but whose concurrent modification (e.g. a replacement of a parent) conflicts with this transaction.
+         * Keys which are put or deleted are implicitly guarded.
+         */
+        public void guard(YangInstanceIdentifier path) throws EtcdException {
+            guard(toByteSequence(path));
         }
 
+        /**
+         * Put the staging marker key, attached to the given lease.  Watchers do not apply changes to their
+         * DataTree while a staging marker is present, so that a commit split into several TXNs appears atomic.
+         */
+        void putStagingMarker(long leaseId) {
+            PutOption putOption = PutOption.newBuilder().withLeaseId(leaseId).build();
+            opsList.add(Op.put(stagingMarkerKey, ByteSequences.fromBytes(), putOption));
+            byteSize += stagingMarkerKey.getBytes().length;
+            LOG.info("{} TXN put staging marker: {}", name, toStringable(stagingMarkerKey));
+        }
+
+        void deleteStagingMarker() {
+            opsList.add(Op.delete(stagingMarkerKey, DeleteOption.DEFAULT));
+            byteSize += stagingMarkerKey.getBytes().length;
+            LOG.info("{} TXN delete staging marker: {}", name, toStringable(stagingMarkerKey));
+        }
+
+        /**
+         * Make this transaction fail while the staging marker is present, i.e. while a chunked commit is ongoing.
+         */
+        void guardNoStagingMarker() {
+            cmpsList.add(new Cmp(stagingMarkerKey, Cmp.Op.EQUAL, CmpTarget.version(0)));
+        }
+
+        /**
+         * Make this transaction fail unless the staging marker is (still) present; i.e. if the lease of the chunked
+         * commit which put it expired.
+         */
+        void guardStagingMarker() {
+            cmpsList.add(new Cmp(stagingMarkerKey, Cmp.Op.GREATER, CmpTarget.version(0)));
+        }
+
+        private void guard(ByteSequence key) {
+            if (maxModRevision != NO_REVISION_GUARD) {
+                // NB: The modRevision of a key which does not exist (anymore) is 0, so this also works for new keys
+                cmpsList.add(new Cmp(key, Cmp.Op.LESS, CmpTarget.modRevision(maxModRevision + 1)));
+            }
+        }
+
+        /**
+         * Add all compares and operations of another transaction to this one; e.g. of the other data store's
+         * EtcdYangKV, to commit both atomically, see {@link EtcdCommitCoordinator}.  The other transaction must not
+         * write any of the keys which this one writes.
+         */
+        void addAll(EtcdTxn other) {
+            cmpsList.addAll(other.cmpsList);
+            opsList.addAll(other.opsList);
+            writtenKeys.addAll(other.writtenKeys);
+            deletedSubtrees.addAll(other.deletedSubtrees);
+            byteSize += other.byteSize;
+        }
+
+        /**
+         * Commit this transaction.  Note that if any of the guards failed, the returned TxnResponse
+         * {@link TxnResponse#isSucceeded()} will be false (and none of the put and delete operations applied).
+         */
         public @CheckReturnValue CompletionStage<TxnResponse> commit() {
+            txn.If(cmpsList.toArray(new Cmp[cmpsList.size()]));
             txn.Then(opsList.toArray(new Op[opsList.size()]));
             return txn.commit();
         }
+
+        /**
+         * Size of this transaction, in terms of etcd's --max-txn-ops limit; which applies to compares and ops.
+         */
+        int size() {
+            return Math.max(cmpsList.size(), opsList.size());
+        }
+
+        List<Cmp> cmps() {
+            return Collections.unmodifiableList(cmpsList);
+        }
+
+        List<Op> ops() {
+            return Collections.unmodifiableList(opsList);
+        }
+
+        /**
+         * Keys which this transaction puts or deletes (but not those which it only guards).
+         */
+        Set<ByteSequence> writtenKeys() {
+            return Collections.unmodifiableSet(writtenKeys);
+        }
+
+        /**
+         * Keys of nodes which this transaction deletes including their entire subtree, see {@link #delete}.
+         */
+        Set<ByteSequence> deletedSubtrees() {
+            return Collections.unmodifiableSet(deletedSubtrees);
+        }
+
+        /**
+         * Approximate size of this transaction in bytes, i.e. the sum of the length of all keys and values.
+         */
+        long byteSize() {
+            return byteSize;
+        }
     }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Count, sum, min and max of recorded values, for simple internal metrics.
+ * This is used for tuning, e.g. of batch sizes; it's not (yet) exposed via infrautils.metrics.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+final class LongStatistics {
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    LongStatistics(String name) {
+        this.name = name;
+    }
+
+    void record(long value) {
+        count.increment();
+        sum.add(value);
+        min.accumulate(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMin() {
+        return getCount() > 0 ? min.get() : 0;
+    }
+
+    long getMax() {
+        return getCount() > 0 ? max.get() : 0;
+    }
+
+    double getAverage() {
+        long theCount = getCount();
+        return theCount > 0 ? (double) getSum() / theCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": count=" + getCount() + ", min=" + getMin() + ", avg=" + String.format("%.1f", getAverage())
+                + ", max=" + getMax();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.op.Cmp;
+import io.etcd.jetcd.op.CmpTarget;
+import io.etcd.jetcd.op.Op;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.PutOption;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.etcd.utils.LoggingKV;
+import org.opendaylight.infrautils.utils.function.CheckedConsumer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.Revision;
+import org.opendaylight.yangtools.yang.model.api.ChoiceSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.DataNodeContainer;
+import org.opendaylight.yangtools.yang.model.api.DataSchemaNode;
+import org.opendaylight.yangtools.yang.model.api.IdentitySchemaNode;
+import org.opendaylight.yangtools.yang.model.api.Module;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cluster-wide dictionary of the Strings which QNames are made of (namespaces, revisions and local names),
+ * assigning each a compact integer code.  Used by {@link EtcdKeyCodec} for keys and by
+ * {@link ShallowNormalizedNodeDataOutputWriter} for values, instead of repeating the full Strings everywhere.
+ *
+ * <p>The dictionary is stored in etcd under {@link #DICTIONARY_PREFIX}, as two entries per String ('s' + String to
+ * code, and 'c' + code to String) plus the next free code ('n').  New codes are allocated with a TXN which only
+ * succeeds if neither the String was meanwhile allocated by another node nor the next free code changed.  All
+ * entries are cached locally, loaded on start-up and kept up to date by watching; a code not (yet) in the local cache,
+ * e.g. because the watch event of its allocation by another node has not been received yet, is read from etcd.
+ * Entries are never changed or removed.  Codes for the QNames of the SchemaContext are allocated up front, see
+ * {@link #allocate(SchemaContext)}, so that only Strings outside of it (if any) are allocated on first use.
+ *
+ * @author Michael Vorburger.ch
+ */
+@ThreadSafe
+// intentionally just .impl package-local, for now
+class QNameDictionary implements CheckedConsumer<List<WatchEvent>, EtcdException> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QNameDictionary.class);
+
+    public static final ByteSequence DICTIONARY_PREFIX = ByteSequences.append(EtcdDataStore.BASE_PREFIX, (byte) 'D');
+
+    private static final byte STRING_TO_CODE = 's';
+    private static final byte CODE_TO_STRING = 'c';
+    private static final ByteSequence NEXT_CODE_KEY = ByteSequences.append(DICTIONARY_PREFIX, (byte) 'n');
+
+    private static final int MAX_ALLOCATION_ATTEMPTS = 100;
+
+    // each String is a compare and two puts, plus the compare and put of the next code; etcd's default --max-txn-ops
+    // is 128 (per compares, success and failure ops)
+    static final int MAX_STRINGS_PER_TXN = 60;
+
+    private final @Nullable KV etcd;
+    private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> strings = new ConcurrentHashMap<>();
+
+    // only used without etcd, see inMemory()
+    private final AtomicInteger nextInMemoryCode = new AtomicInteger();
+
+    QNameDictionary(String name, Client client) {
+        this.etcd = new LoggingKV(name + " ", client.getKVClient());
+    }
+
+    private QNameDictionary() {
+        this.etcd = null;
+    }
+
+    /**
+     * Dictionary which is not backed by etcd, e.g. for local size reports and tests.
+     */
+    static QNameDictionary inMemory() {
+        return new QNameDictionary();
+    }
+
+    /**
+     * Load all entries at the given revision; watch events for later revisions must then be passed to accept().
+     */
+    void init(long revision) throws EtcdException {
+        GetOption getOption = GetOption.newBuilder().withPrefix(DICTIONARY_PREFIX).withRevision(revision).build();
+        for (KeyValue keyValue : get(DICTIONARY_PREFIX, getOption).getKvs()) {
+            cache(keyValue);
+        }
+        LOG.info("Loaded {} QName dictionary entries at revision {}", strings.size(), revision);
+    }
+
+    @Override
+    public void accept(List<WatchEvent> events) {
+        for (WatchEvent event : events) {
+            if (event.getEventType() == WatchEvent.EventType.PUT) {
+                cache(event.getKeyValue());
+            }
+        }
+    }
+
+    int code(String string) throws EtcdException {
+        Integer code = codes.get(string);
+        if (code != null) {
+            return code;
+        }
+        // normally not reached for QNames of the SchemaContext, whose codes allocate(SchemaContext) allocated
+        allocate(Collections.singletonList(string));
+        return codes.get(string);
+    }
+
+    /**
+     * Allocate codes for all Strings of the QNames of the data nodes and identities of the given SchemaContext, which
+     * do not have one yet; so that writing keys and values, on the commit path, does not block on etcd to allocate
+     * codes.  This is done in TXNs of {@link #MAX_STRINGS_PER_TXN} Strings each, instead of one TXN per String.
+     */
+    void allocate(SchemaContext schemaContext) throws EtcdException {
+        Set<String> newStrings = new HashSet<>();
+        // keys write an absent revision as an empty String, see EtcdKeyCodec
+        newStrings.add("");
+        for (Module module : schemaContext.getModules()) {
+            addStrings(newStrings, module.getChildNodes());
+            for (IdentitySchemaNode identity : module.getIdentities()) {
+                addStrings(newStrings, identity.getQName());
+            }
+        }
+        newStrings.removeAll(codes.keySet());
+        for (List<String> batch : Lists.partition(new ArrayList<>(newStrings), MAX_STRINGS_PER_TXN)) {
+            allocate(batch);
+        }
+        LOG.info("Allocated QName dictionary codes for {} new Strings of the SchemaContext", newStrings.size());
+    }
+
+    private static void addStrings(Set<String> strings, Collection<? extends DataSchemaNode> schemaNodes) {
+        for (DataSchemaNode schemaNode : schemaNodes) {
+            addStrings(strings, schemaNode.getQName());
+            if (schemaNode instanceof DataNodeContainer) {
+                addStrings(strings, ((DataNodeContainer) schemaNode).getChildNodes());
+            } else if (schemaNode instanceof ChoiceSchemaNode) {
+                addStrings(strings, ((ChoiceSchemaNode) schemaNode).getCases().values());
+            }
+        }
+    }
+
+    private static void addStrings(Set<String> strings, QName qname) {
+        strings.add(qname.getNamespace().toString());
+        strings.add(qname.getRevision().map(Revision::toString).orElse(""));
+        strings.add(qname.getLocalName());
+    }
+
+    String string(int code) throws EtcdException {
+        String string = strings.get(code);
+        if (string != null) {
+            return string;
+        }
+        if (etcd != null) {
+            ByteSequence key = codeToStringKey(code);
+            List<KeyValue> kvs = get(key, GetOption.DEFAULT).getKvs();
+            if (!kvs.isEmpty()) {
+                cache(kvs.get(0));
+                return strings.get(code);
+            }
+        }
+        throw new EtcdException("Unknown QName dictionary code: " + code);
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+    /**
+     * Allocate codes for the given Strings, which must not be more than {@link #MAX_STRINGS_PER_TXN}, with one TXN;
+     * or more, if other nodes concurrently allocate codes.
+     */
+    private void allocate(List<String> newStrings) throws EtcdException {
+        if (etcd == null) {
+            for (String string : newStrings) {
+                codes.computeIfAbsent(string, newString -> {
+                    int code = nextInMemoryCode.getAndIncrement();
+                    strings.put(code, newString);
+                    return code;
+                });
+            }
+            return;
+        }
+
+        List<String> toAllocate = new ArrayList<>(newStrings);
+        for (int attempt = 0; attempt < MAX_ALLOCATION_ATTEMPTS; attempt++) {
+            toAllocate.removeIf(codes::containsKey);
+            if (toAllocate.isEmpty()) {
+                return;
+            }
+            List<KeyValue> nextCodeKVs = get(NEXT_CODE_KEY, GetOption.DEFAULT).getKvs();
+            int nextCode = nextCodeKVs.isEmpty() ? 0 : Ints.fromByteArray(nextCodeKVs.get(0).getValue().getBytes());
+            List<Cmp> cmps = new ArrayList<>(toAllocate.size() + 1);
+            cmps.add(nextCodeKVs.isEmpty()
+                    ? new Cmp(NEXT_CODE_KEY, Cmp.Op.EQUAL, CmpTarget.version(0))
+                    : new Cmp(NEXT_CODE_KEY, Cmp.Op.EQUAL, CmpTarget.value(nextCodeKVs.get(0).getValue())));
+            List<Op> puts = new ArrayList<>(toAllocate.size() * 2 + 1);
+            List<Op> gets = new ArrayList<>(toAllocate.size());
+            for (int i = 0; i < toAllocate.size(); i++) {
+                String string = toAllocate.get(i);
+                ByteSequence stringKey = stringToCodeKey(string);
+                cmps.add(new Cmp(stringKey, Cmp.Op.EQUAL, CmpTarget.version(0)));
+                puts.add(Op.put(stringKey, ByteSequence.from(Ints.toByteArray(nextCode + i)), PutOption.DEFAULT));
+                puts.add(Op.put(codeToStringKey(nextCode + i), ByteSequence.from(string, UTF_8), PutOption.DEFAULT));
+                gets.add(Op.get(stringKey, GetOption.DEFAULT));
+            }
+            int newNextCode = nextCode + toAllocate.size();
+            puts.add(Op.put(NEXT_CODE_KEY, ByteSequence.from(Ints.toByteArray(newNextCode)), PutOption.DEFAULT));
+            try {
+                TxnResponse response = etcd.txn().If(cmps.toArray(new Cmp[cmps.size()]))
+                        .Then(puts.toArray(new Op[puts.size()])).Else(gets.toArray(new Op[gets.size()]))
+                        .commit().get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+                if (response.isSucceeded()) {
+                    LOG.debug("Allocated QName dictionary codes {} to {} for: {}", nextCode, newNextCode - 1,
+                            toAllocate);
+                    for (int i = 0; i < toAllocate.size(); i++) {
+                        cache(toAllocate.get(i), nextCode + i);
+                    }
+                    return;
+                }
+                // another node either allocated some of these same Strings (then use those), or others (then retry)
+                for (int i = 0; i < toAllocate.size(); i++) {
+                    List<KeyValue> kvs = response.getGetResponses().get(i).getKvs();
+                    if (!kvs.isEmpty()) {
+                        cache(toAllocate.get(i), Ints.fromByteArray(kvs.get(0).getValue().getBytes()));
+                    }
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                throw new EtcdException("QName dictionary allocation failed: " + toAllocate, e);
+            }
+        }
+        throw new EtcdException("QName dictionary allocation failed after " + MAX_ALLOCATION_ATTEMPTS
+                + " attempts due to concurrent allocations: " + toAllocate);
+    }
+
+    private void cache(KeyValue keyValue) {
+        byte[] key = keyValue.getKey().getBytes();
+        byte[] value = keyValue.getValue().getBytes();
+        int prefixLength = DICTIONARY_PREFIX.getBytes().length;
+        if (key.length > prefixLength && key[prefixLength] == CODE_TO_STRING) {
+            int code = Ints.fromByteArray(Arrays.copyOfRange(key, prefixLength + 1, key.length));
+            cache(new String(value, UTF_8), code);
+        }
+    }
+
+    private void cache(String string, int code) {
+        strings.put(code, string);
+        codes.put(string, code);
+    }
+
+    private GetResponse get(ByteSequence key, GetOption option) throws EtcdException {
+        try {
+            return etcd.get(key, option).get(EtcdYangKV.TIMEOUT_MS, MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new EtcdException("QName dictionary read failed: " + ByteSequences.asString(key), e);
+        }
+    }
+
+    private static ByteSequence stringToCodeKey(String string) {
+        return ByteSequences.append(DICTIONARY_PREFIX,
+                ByteSequences.append(ByteSequences.fromBytes(STRING_TO_CODE), string.getBytes(UTF_8)).getBytes());
+    }
+
+    private static ByteSequence codeToStringKey(int code) {
+        return ByteSequences.append(ByteSequences.append(DICTIONARY_PREFIX, CODE_TO_STRING), Ints.toByteArray(code));
+    }
+}
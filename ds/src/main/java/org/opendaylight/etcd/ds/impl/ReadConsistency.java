@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Consistency of the data which new transactions of an {@link EtcdDataStore} see.
+ *
+ * <p>Transactions always read from the local DataTree, which is updated by watching etcd; the consistency
+ * determines what a new transaction awaits before it starts.  Commits are guarded in etcd regardless, so weaker read
+ * consistency may lead to more OptimisticLockFailedException on commit, but never to lost updates.
+ *
+ * @author Michael Vorburger.ch
+ */
+@Immutable
+public final class ReadConsistency {
+
+    public enum Mode {
+        /**
+         * Fetch the current revision from etcd, and await having applied the watch events up to it; so a transaction
+         * sees all changes which were committed (by any node) before it started.  This requires a remote call.
+         */
+        LINEARIZABLE,
+
+        /**
+         * Like {@link #LINEARIZABLE}, unless a watch event was applied, or a watch progress notification received,
+         * within the max. staleness; then start immediately, without remote call.
+         */
+        BOUNDED_STALENESS,
+
+        /**
+         * Await having applied the watch events up to the highest revision which this data store committed;
+         * so a transaction sees all of this node's own previous changes, without remote call.
+         */
+        READ_YOUR_WRITES
+    }
+
+    public static final ReadConsistency LINEARIZABLE = new ReadConsistency(Mode.LINEARIZABLE, Duration.ZERO);
+    public static final ReadConsistency READ_YOUR_WRITES = new ReadConsistency(Mode.READ_YOUR_WRITES, Duration.ZERO);
+
+    private final Mode mode;
+    private final Duration maxStaleness;
+
+    private ReadConsistency(Mode mode, Duration maxStaleness) {
+        this.mode = mode;
+        this.maxStaleness = maxStaleness;
+    }
+
+    public static ReadConsistency boundedStaleness(Duration maxStaleness) {
+        if (requireNonNull(maxStaleness, "maxStaleness").isNegative()) {
+            throw new IllegalArgumentException("maxStaleness must not be negative: " + maxStaleness);
+        }
+        return new ReadConsistency(Mode.BOUNDED_STALENESS, maxStaleness);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.BOUNDED_STALENESS ? mode + "(" + maxStaleness + ")" : mode.toString();
+    }
+}
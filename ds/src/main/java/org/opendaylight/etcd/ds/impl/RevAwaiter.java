@@ -7,13 +7,21 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
-import com.google.errorprone.annotations.Var;
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.time.Duration;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckReturnValue;
 import javax.annotation.concurrent.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +29,10 @@ import org.slf4j.LoggerFactory;
 /**
  * Concurrency utility to await availability of certain revisions.
  *
+ * <p>Waiters are futures, kept in a concurrent map ordered by revision; all waiters of the same revision share one.
+ * An update completes and removes exactly the futures of the revisions it satisfies, without any lock and without
+ * copying.  Awaiting asynchronously does not park any thread, also not for the timeout.
+ *
  * @author Michael Vorburger.ch
  */
 @ThreadSafe
@@ -28,35 +40,21 @@ class RevAwaiter {
 
     // TODO This must take possible long overflow of the long revision into account...
 
-    // TODO is it better to use java.util.concurrent.locks.Condition instead of Object.wait() - why?
-
     private static final Logger LOG = LoggerFactory.getLogger(RevAwaiter.class);
 
-    private static final AwaitableRev[] EMPTY_ARRAY = new AwaitableRev[0];
-
-    private static class AwaitableRev {
-        final long rev;
-
-        AwaitableRev(long rev) {
-            this.rev = rev;
-        }
-
-        @Override
-        public String toString() {
-            return "AwaitableRev-" + rev;
-        }
-    }
+    // only ever runs the (very short) tasks which fail timed out futures, so a single thread is plenty for all
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("RevAwaiter-timeouts").setDaemon(true).build());
 
     private final AtomicLong currentRev = new AtomicLong();
-    private final Queue<AwaitableRev> pq = new PriorityQueue<>((o1, o2) -> Long.compare(o1.rev, o2.rev));
+    private final ConcurrentNavigableMap<Long, SettableFuture<Void>> waiters = new ConcurrentSkipListMap<>();
     private final String nodeName;
+    private volatile long lastUpdateNanos = System.nanoTime();
 
     RevAwaiter(String nodeName) {
         this.nodeName = nodeName;
     }
 
-    // shut up FindBugs, I'm a grown up knowing what I'm doing here - I hope! ;-)
-    @SuppressFBWarnings({ "NO_NOTIFY_NOT_NOTIFYALL", "NN_NAKED_NOTIFY" })
     void update(long rev) {
         // Testing here is for debugging problems during development.
         // This IllegalStateException is not expected to ever happen in production,
@@ -69,50 +67,89 @@ class RevAwaiter {
                 return rev;
             }
         });
+        lastUpdateNanos = System.nanoTime();
+        completeUpTo(rev);
+        LOG.info("{} update: {}", nodeName, rev);
+    }
 
-        AwaitableRev[] pqCopy;
-        synchronized (pq) {
-            pqCopy = pq.toArray(EMPTY_ARRAY);
-        }
-        for (AwaitableRev awaitable : pqCopy) {
-            if (rev >= awaitable.rev) {
-                synchronized (awaitable) {
-                    awaitable.notify();
-                }
-            } else {
-                break;
-            }
+    /**
+     * Advance to a revision known from a progress notification, if it is newer.
+     * Unlike {@link #update(long)}, this may be called with the current (or an older) revision.
+     */
+    void progress(long rev) {
+        long previous = currentRev.getAndAccumulate(rev, Math::max);
+        lastUpdateNanos = System.nanoTime();
+        if (rev > previous) {
+            completeUpTo(rev);
         }
+        LOG.debug("{} progress: {}", nodeName, rev);
+    }
 
-        LOG.info("{} update: {}", nodeName, rev);
+    /**
+     * Await a revision.
+     * The returned future is never failed, except with a TimeoutException after maxWaitTime.
+     */
+    @CheckReturnValue
+    ListenableFuture<Void> awaitAsync(long rev, Duration maxWaitTime) {
+        ListenableFuture<Void> future = awaitAsync(rev);
+        if (future.isDone()) {
+            return future;
+        }
+        // nonCancellationPropagating, because a timeout must not cancel the future shared with other waiters
+        return Futures.withTimeout(Futures.nonCancellationPropagating(future),
+                maxWaitTime.toNanos(), TimeUnit.NANOSECONDS, TIMEOUT_SCHEDULER);
     }
 
     void await(long rev, Duration maxWaitTime) throws TimeoutException, InterruptedException {
+        try {
+            awaitAsync(rev).get(maxWaitTime.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Futures of RevAwaiter are never failed", e);
+        }
+    }
+
+    private ListenableFuture<Void> awaitAsync(long rev) {
         if (currentRev.get() >= rev) {
-            return;
+            return Futures.immediateFuture(null);
         }
-        AwaitableRev awaitable = new AwaitableRev(rev);
-        synchronized (pq) {
-            pq.add(awaitable);
+        SettableFuture<Void> future = waiters.computeIfAbsent(rev, newRev -> SettableFuture.create());
+        // an update() may have happened after the check above but before it could see our future
+        if (currentRev.get() >= rev) {
+            completeUpTo(currentRev.get());
         }
-        synchronized (awaitable) {
-            // account for possible spurious wake up
-            @Var long now = System.nanoTime();
-            long deadline = now + maxWaitTime.toNanos();
-            while (currentRev.get() < rev && now < deadline) {
-                // http://errorprone.info/bugpattern/WaitNotInLoop
-                awaitable.wait((deadline - now) / 1000000);
-                now = System.nanoTime();
-            }
-            if (now >= deadline) {
-                throw new TimeoutException();
+        return future;
+    }
+
+    private void completeUpTo(long rev) {
+        ConcurrentNavigableMap<Long, SettableFuture<Void>> satisfied = waiters.headMap(rev, true);
+        for (Map.Entry<Long, SettableFuture<Void>> waiter : satisfied.entrySet()) {
+            // whoever removes it completes it, so that concurrent callers never complete (or skip) the same waiter
+            if (satisfied.remove(waiter.getKey(), waiter.getValue())) {
+                waiter.getValue().set(null);
             }
-            // else it's a real awaitable.notify(), not spurious nor timeout, and we return to caller.
         }
     }
 
+    long currentRevision() {
+        return currentRev.get();
+    }
+
+    /**
+     * Time elapsed since the last {@link #update(long)} or {@link #progress(long)}, in nanoseconds.
+     */
+    long getNanosSinceLastUpdate() {
+        return System.nanoTime() - lastUpdateNanos;
+    }
+
+    /**
+     * Number of distinct revisions which are currently awaited.
+     */
+    int getAwaitedRevisions() {
+        return waiters.size();
+    }
+
     @Override
     public String toString() {
-        return "RevAwaiter: currentRev=" + currentRev;
+        return "RevAwaiter: currentRev=" + currentRev + ", awaitedRevisions=" + waiters.size();
     }
 }
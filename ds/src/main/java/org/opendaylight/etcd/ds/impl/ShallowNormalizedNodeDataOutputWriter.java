@@ -9,11 +9,13 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeOutputStreamWriter;
 import org.opendaylight.etcd.ds.stream.copypaste.TokenTypes;
 import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
 import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.common.Revision;
 import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWriter;
 
@@ -29,8 +31,20 @@ import org.opendaylight.yangtools.yang.data.api.schema.stream.NormalizedNodeWrit
 @NotThreadSafe
 class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWriter {
 
+    /**
+     * Value type of a String written as its (int) code in the {@link QNameDictionary}; the {@link TokenTypes} are 1-3.
+     */
+    static final byte IS_DICTIONARY_CODE_VALUE = 4;
+
+    private final @Nullable QNameDictionary dictionary;
+
     ShallowNormalizedNodeDataOutputWriter(DataOutput output) {
+        this(output, null);
+    }
+
+    ShallowNormalizedNodeDataOutputWriter(DataOutput output, @Nullable QNameDictionary dictionary) {
         super(output);
+        this.dictionary = dictionary;
     }
 
     @Override
@@ -60,6 +74,32 @@ class ShallowNormalizedNodeDataOutputWriter extends NormalizedNodeOutputStreamWr
         }
     }
 
+    @Override
+    protected void writeQName(QName qname) throws IOException {
+        if (dictionary == null) {
+            super.writeQName(qname);
+            return;
+        }
+        // only the Strings of QNames are coded, not String leaf values, which would make the dictionary grow unbounded
+        writeDictionaryCode(qname.getLocalName());
+        writeDictionaryCode(qname.getNamespace().toString());
+        writeDictionaryCode(qname.getRevision().map(Revision::toString).orElse(null));
+    }
+
+    private void writeDictionaryCode(@Nullable String string) throws IOException {
+        if (string == null) {
+            writeByte(TokenTypes.IS_NULL_VALUE);
+            return;
+        }
+        try {
+            int code = dictionary.code(string);
+            writeByte(IS_DICTIONARY_CODE_VALUE);
+            writeInt(code);
+        } catch (EtcdException e) {
+            throw new IOException("QName dictionary code allocation failed: " + string, e);
+        }
+    }
+
     @Override
     protected void startNode(byte nodeType, QName qname) throws IOException {
         // ditch the QName (startNode variant with only nodeType added in copypaste parent)
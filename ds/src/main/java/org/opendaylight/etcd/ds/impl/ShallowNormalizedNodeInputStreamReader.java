@@ -9,6 +9,7 @@ package org.opendaylight.etcd.ds.impl;
 
 import java.io.DataInput;
 import java.io.IOException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import org.opendaylight.etcd.ds.stream.copypaste.NormalizedNodeInputStreamReader;
 import org.opendaylight.yangtools.yang.common.QName;
@@ -24,15 +25,25 @@ import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
 @NotThreadSafe
 class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamReader {
 
+    private final @Nullable QNameDictionary dictionary;
     private QName firstQName;
 
-    ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName) {
-        this(input);
+    ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName, @Nullable QNameDictionary dictionary) {
+        this(input, dictionary);
         this.firstQName = firstQName;
     }
 
-    ShallowNormalizedNodeInputStreamReader(DataInput input) {
+    ShallowNormalizedNodeInputStreamReader(DataInput input, QName firstQName) {
+        this(input, firstQName, null);
+    }
+
+    ShallowNormalizedNodeInputStreamReader(DataInput input, @Nullable QNameDictionary dictionary) {
         super(input, false);
+        this.dictionary = dictionary;
+    }
+
+    ShallowNormalizedNodeInputStreamReader(DataInput input) {
+        this(input, (QNameDictionary) null);
     }
 
     /**
@@ -52,4 +63,23 @@ class ShallowNormalizedNodeInputStreamReader extends NormalizedNodeInputStreamRe
             return super.readQName();
         }
     }
+
+    /**
+     * See {@link ShallowNormalizedNodeDataOutputWriter#writeQName(QName)}.
+     */
+    @Override
+    protected @Nullable String readOtherCodedString(byte valueType) throws IOException {
+        if (valueType != ShallowNormalizedNodeDataOutputWriter.IS_DICTIONARY_CODE_VALUE) {
+            return super.readOtherCodedString(valueType);
+        }
+        int code = readInt();
+        if (dictionary == null) {
+            throw new IOException("Value with QName dictionary code " + code + ", but no QName dictionary configured");
+        }
+        try {
+            return dictionary.string(code);
+        } catch (EtcdException e) {
+            throw new IOException("QName dictionary lookup failed: " + code, e);
+        }
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+import javax.annotation.concurrent.Immutable;
+import org.opendaylight.yangtools.yang.model.api.SchemaPath;
+
+/**
+ * Granularity in which an {@link EtcdDataStore} stores its data in etcd.
+ *
+ * <p>By default, every node is stored as its own etcd key value, with a shallow value; so e.g. a list entry with 10
+ * leafs is 11 keys.  Containers and list entries (but not entire lists) can instead be stored as one key value, whose
+ * value is the entire subtree, which saves keys, Raft entries and watch events; but any change within such a subtree
+ * re-writes all of it.  Nodes are stored as one subtree if their schema node is one of the configured ones, or
+ * automatically if all of their schema node's children are leafs (no leaf-lists, which are unbounded), and there are
+ * at most maxAutoSubtreeLeafs of them; i.e. if their value can be estimated to be small.
+ *
+ * <p>All nodes of a cluster must use the same granularity.  Changing it from storing nodes individually to storing them
+ * as one subtree is safe, because the keys of the descendants of a subtree are deleted when it is written; but not
+ * the other way around, for nodes which were already written as one subtree.
+ *
+ * @author Michael Vorburger.ch
+ */
+@Immutable
+public final class StorageGranularity {
+
+    /**
+     * Every node is stored as its own key value; this is the default.
+     */
+    public static final StorageGranularity SHALLOW = new StorageGranularity(ImmutableSet.of(), 0);
+
+    private final ImmutableSet<SchemaPath> subtrees;
+    private final int maxAutoSubtreeLeafs;
+
+    private StorageGranularity(ImmutableSet<SchemaPath> subtrees, int maxAutoSubtreeLeafs) {
+        this.subtrees = subtrees;
+        this.maxAutoSubtreeLeafs = maxAutoSubtreeLeafs;
+    }
+
+    /**
+     * Granularity which stores some containers and list entries as one subtree.
+     *
+     * @param subtrees the (absolute) schema paths of the containers and lists whose nodes (respectively entries)
+     *                 are stored as one subtree
+     * @param maxAutoSubtreeLeafs the max. number of leafs of containers and lists which have only leafs as children
+     *                            to automatically store as one subtree; 0 to disable this
+     */
+    public static StorageGranularity of(Set<SchemaPath> subtrees, int maxAutoSubtreeLeafs) {
+        if (maxAutoSubtreeLeafs < 0) {
+            throw new IllegalArgumentException("maxAutoSubtreeLeafs must not be negative: " + maxAutoSubtreeLeafs);
+        }
+        return new StorageGranularity(ImmutableSet.copyOf(subtrees), maxAutoSubtreeLeafs);
+    }
+
+    public Set<SchemaPath> getSubtrees() {
+        return subtrees;
+    }
+
+    public int getMaxAutoSubtreeLeafs() {
+        return maxAutoSubtreeLeafs;
+    }
+
+    boolean isShallow() {
+        return subtrees.isEmpty() && maxAutoSubtreeLeafs == 0;
+    }
+
+    @Override
+    public String toString() {
+        return isShallow() ? "SHALLOW" : "subtrees=" + subtrees + ", maxAutoSubtreeLeafs=" + maxAutoSubtreeLeafs;
+    }
+}
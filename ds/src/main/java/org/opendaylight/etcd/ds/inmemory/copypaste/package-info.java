@@ -9,8 +9,9 @@
  * This package contains code copy/pasted verbatim from
  * org.opendaylight.mdsal.dom.store.inmemory. It's basically unmodified except
  * for https://git.opendaylight.org/gerrit/#/c/73217/ to make
- * validate/prepare/commit methods in InMemoryDOMDataStore protected (plus
- * adjustments for Error-Prone).
+ * validate/prepare/commit methods in InMemoryDOMDataStore protected, and
+ * to let commit return a ListenableFuture which the commit cohort returns
+ * (plus adjustments for Error-Prone).
  * TODO remove this after refactoring in mdsal.
  */
 package org.opendaylight.etcd.ds.inmemory.copypaste;
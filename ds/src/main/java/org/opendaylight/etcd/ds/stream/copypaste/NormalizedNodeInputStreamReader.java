@@ -268,6 +268,13 @@ public class NormalizedNodeInputStreamReader implements NormalizedNodeDataInput
             return value;
         }
 
+        return readOtherCodedString(valueType);
+    }
+
+    /**
+     * Hook for subclasses which write coded strings with other value types than the {@link TokenTypes}.
+     */
+    protected @Nullable String readOtherCodedString(byte valueType) throws IOException {
         return null;
     }
 
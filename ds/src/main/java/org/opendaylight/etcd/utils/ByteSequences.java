@@ -7,9 +7,11 @@
  */
 package org.opendaylight.etcd.utils;
 
+import com.google.common.primitives.UnsignedBytes;
 import com.google.errorprone.annotations.Var;
 import io.etcd.jetcd.ByteSequence;
 import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * Utilities for {@link ByteSequence}.
@@ -18,6 +20,12 @@ import java.util.Arrays;
  */
 public final class ByteSequences {
 
+    /**
+     * Orders ByteSequences like etcd orders keys, i.e. lexicographically by unsigned bytes.
+     */
+    public static final Comparator<ByteSequence> KEY_ORDER
+        = Comparator.comparing(ByteSequence::getBytes, UnsignedBytes.lexicographicalComparator());
+
     private ByteSequences() { }
 
     public static Object toStringable(ByteSequence byteSequence) {
@@ -66,4 +74,18 @@ public final class ByteSequences {
         System.arraycopy(bytes, 0, newBytes, base.getBytes().length, bytes.length);
         return ByteSequence.from(newBytes);
     }
+
+    public static boolean startsWith(ByteSequence byteSequence, ByteSequence prefix) {
+        byte[] bytes = byteSequence.getBytes();
+        byte[] prefixBytes = prefix.getBytes();
+        if (prefixBytes.length > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < prefixBytes.length; i++) {
+            if (bytes[i] != prefixBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStoreTest.newTxnResponse;
+import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.CONFIGURATION;
+import static org.opendaylight.mdsal.common.api.LogicalDatastoreType.OPERATIONAL;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.dom.api.DOMDataTreeWriteTransaction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer2;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Unit test for {@link CommitCoordinatingDOMDataBroker}, with both data stores on a mocked etcd.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class CommitCoordinatingDOMDataBrokerTest {
+
+    private final KV etcd = mock(KV.class);
+    // the results of the etcd TXNs, in the order in which they were sent
+    private final BlockingQueue<CompletableFuture<TxnResponse>> etcdResults = new LinkedBlockingQueue<>();
+    private final ListeningExecutorService commitExecutor = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(3));
+    private EtcdTxnGroupCommitter groupCommitter;
+    private CommitCoordinatingDOMDataBroker broker;
+
+    @Before
+    public void setUp() throws Exception {
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(etcd);
+        when(etcd.txn()).thenAnswer(invocation -> {
+            Txn txn = mock(Txn.class);
+            when(txn.commit()).thenAnswer(commitInvocation -> {
+                CompletableFuture<TxnResponse> etcdResult = new CompletableFuture<>();
+                etcdResults.add(etcdResult);
+                return etcdResult;
+            });
+            return txn;
+        });
+        groupCommitter = spy(new EtcdTxnGroupCommitter("Test", client));
+        EtcdCommitCoordinator commitCoordinator = new EtcdCommitCoordinator("Test", groupCommitter);
+        broker = new CommitCoordinatingDOMDataBroker(ImmutableMap.of(
+                CONFIGURATION, newDataStore(CONFIGURATION, client, commitCoordinator),
+                OPERATIONAL, newDataStore(OPERATIONAL, client, commitCoordinator)),
+                commitExecutor, commitCoordinator);
+    }
+
+    @After
+    public void tearDown() {
+        commitExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentTransactionsShareOneEtcdTxn() throws Exception {
+        CountDownLatch groupCommits = new CountDownLatch(3);
+        doAnswer(invocation -> {
+            Object result = invocation.callRealMethod();
+            groupCommits.countDown();
+            return result;
+        }).when(groupCommitter).commit(any());
+
+        // the etcd TXN of a first DOM transaction is in flight while two more are committed concurrently
+        Future<?> first = write(OPERATIONAL, HelloWorldContainer2.QNAME).commit();
+        CompletableFuture<TxnResponse> firstEtcdResult = etcdResults.poll(10, SECONDS);
+        assertThat(firstEtcdResult).isNotNull();
+        DOMDataTreeWriteTransaction bothDataStores = write(CONFIGURATION, HelloWorldContainer.QNAME);
+        bothDataStores.put(OPERATIONAL, YangInstanceIdentifier.of(HelloWorldContainer.QNAME),
+                container(HelloWorldContainer.QNAME, "world"));
+        Future<?> second = bothDataStores.commit();
+        Future<?> third = write(CONFIGURATION, HelloWorldContainer2.QNAME).commit();
+        // only the first DOM transaction's own commit phase blocks a thread, so the others reach the group commit
+        assertThat(groupCommits.await(10, SECONDS)).isTrue();
+
+        firstEtcdResult.complete(newTxnResponse(true));
+        first.get(10, SECONDS);
+        CompletableFuture<TxnResponse> nextEtcdResult = etcdResults.poll(10, SECONDS);
+        nextEtcdResult.complete(newTxnResponse(true));
+        second.get(10, SECONDS);
+        third.get(10, SECONDS);
+        // the second and the third DOM transaction, with the changes of both data stores, were one etcd TXN
+        assertThat(etcdResults).isEmpty();
+        verify(etcd, times(2)).txn();
+    }
+
+    private DOMDataTreeWriteTransaction write(LogicalDatastoreType type, QName container) {
+        DOMDataTreeWriteTransaction tx = broker.newWriteOnlyTransaction();
+        tx.put(type, YangInstanceIdentifier.of(container), container(container, "hello"));
+        return tx;
+    }
+
+    private EtcdDataStore newDataStore(LogicalDatastoreType type, Client client,
+            EtcdCommitCoordinator commitCoordinator) throws Exception {
+        EtcdDataStore dataStore = new EtcdDataStore("Test", type, MoreExecutors.newDirectExecutorService(), 10,
+                client, false, new RevAwaiter("Test-" + type), groupCommitter, commitCoordinator,
+                mock(EtcdRevisionFetcher.class), null, null, EtcdDataBrokerOptions.builder()
+                        .configReadConsistency(ReadConsistency.READ_YOUR_WRITES)
+                        .operReadConsistency(ReadConsistency.READ_YOUR_WRITES).build());
+        dataStore.onGlobalContextUpdated(EtcdSchemaValueCodecTest.newSchemaContext());
+        dataStore.initFromSnapshot(ImmutableNodes.containerNode(SchemaContext.NAME));
+        return dataStore;
+    }
+
+    private static NormalizedNode<?, ?> container(QName container, String name) {
+        return Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(container))
+                .withChild(ImmutableNodes.leafNode(QName.create(container, "name"), name)).build();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.kv.TxnResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link EtcdCommitCoordinator}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdCommitCoordinatorTest {
+
+    private final TxnResponse txnResponse = mock(TxnResponse.class);
+    private final EtcdTxnGroupCommitter groupCommitter = mock(EtcdTxnGroupCommitter.class);
+    private final EtcdCommitCoordinator coordinator = new EtcdCommitCoordinator("Test", groupCommitter);
+    private EtcdYangKV configKV;
+    private EtcdYangKV operKV;
+
+    @Before
+    public void setUp() {
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        configKV = new EtcdYangKV("C", client, ByteSequences.fromBytes((byte) 'C'));
+        operKV = new EtcdYangKV("O", client, ByteSequences.fromBytes((byte) 'O'));
+        when(groupCommitter.getMaxOps()).thenReturn(EtcdTxnGroupCommitter.DEFAULT_MAX_OPS);
+        when(groupCommitter.getMaxBytes()).thenReturn(EtcdTxnGroupCommitter.DEFAULT_MAX_BYTES);
+        when(groupCommitter.commit(any())).thenReturn(CompletableFuture.completedFuture(txnResponse));
+    }
+
+    @Test
+    public void testBothDataStoresInOneTxn() throws Exception {
+        DOMStoreThreePhaseCommitCohort configCohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        DOMStoreThreePhaseCommitCohort operCohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        coordinator.begin(Arrays.asList(configCohort, operCohort));
+
+        CompletionStage<TxnResponse> configResult = coordinator.commit(configCohort, newTxn(configKV));
+        verify(groupCommitter, never()).commit(any());
+        assertThat(configResult.toCompletableFuture().isDone()).isFalse();
+
+        CompletionStage<TxnResponse> operResult = coordinator.commit(operCohort, newTxn(operKV));
+        ArgumentCaptor<EtcdTxn> union = ArgumentCaptor.forClass(EtcdTxn.class);
+        verify(groupCommitter).commit(union.capture());
+        assertThat(union.getValue().ops()).hasSize(2);
+        assertThat(union.getValue().cmps()).hasSize(2);
+        assertThat(configResult.toCompletableFuture().get()).isSameAs(txnResponse);
+        assertThat(operResult.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    @Test
+    public void testSingleDataStoreIsSentImmediately() throws Exception {
+        DOMStoreThreePhaseCommitCohort cohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        coordinator.begin(Collections.singletonList(cohort));
+        CompletionStage<TxnResponse> result = coordinator.commit(cohort, newTxn(configKV));
+        verify(groupCommitter).commit(any());
+        assertThat(result.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    @Test
+    public void testUnknownCohortIsSentImmediately() throws Exception {
+        // e.g. of a data store used without the DOM data broker, which did not begin() a round
+        CompletionStage<TxnResponse> result = coordinator.commit(null, newTxn(configKV));
+        verify(groupCommitter).commit(any());
+        assertThat(result.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    @Test
+    public void testCommittingSeparatelySendsHeldBack() throws Exception {
+        DOMStoreThreePhaseCommitCohort configCohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        DOMStoreThreePhaseCommitCohort operCohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        coordinator.begin(Arrays.asList(configCohort, operCohort));
+        CompletionStage<TxnResponse> configResult = coordinator.commit(configCohort, newTxn(configKV));
+        coordinator.committingSeparately(operCohort);
+        verify(groupCommitter).commit(any());
+        assertThat(configResult.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    @Test
+    public void testAbortedTransactionIsForgotten() throws Exception {
+        // a DOM transaction which was aborted (e.g. because its canCommit() failed), so its cohorts never commit
+        coordinator.begin(Arrays.asList(mock(DOMStoreThreePhaseCommitCohort.class),
+                mock(DOMStoreThreePhaseCommitCohort.class)));
+
+        DOMStoreThreePhaseCommitCohort cohort = mock(DOMStoreThreePhaseCommitCohort.class);
+        coordinator.begin(Collections.singletonList(cohort));
+        CompletionStage<TxnResponse> result = coordinator.commit(cohort, newTxn(operKV));
+        verify(groupCommitter, times(1)).commit(any());
+        assertThat(result.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    @Test
+    public void testInterleavedTransactionsAreKeptApart() throws Exception {
+        List<CompletableFuture<TxnResponse>> etcdResults = new ArrayList<>();
+        when(groupCommitter.commit(any())).thenAnswer(invocation -> {
+            CompletableFuture<TxnResponse> etcdResult = new CompletableFuture<>();
+            etcdResults.add(etcdResult);
+            return etcdResult;
+        });
+        DOMStoreThreePhaseCommitCohort configCohortA = mock(DOMStoreThreePhaseCommitCohort.class);
+        DOMStoreThreePhaseCommitCohort operCohortA = mock(DOMStoreThreePhaseCommitCohort.class);
+        DOMStoreThreePhaseCommitCohort configCohortB = mock(DOMStoreThreePhaseCommitCohort.class);
+        DOMStoreThreePhaseCommitCohort operCohortB = mock(DOMStoreThreePhaseCommitCohort.class);
+        coordinator.begin(Arrays.asList(configCohortA, operCohortA));
+        coordinator.begin(Arrays.asList(configCohortB, operCohortB));
+
+        // both transactions are committed at the same time, e.g. on different threads of the DOM data broker
+        EtcdTxn configTxnA = newTxn(configKV);
+        EtcdTxn configTxnB = newTxn(configKV);
+        CompletionStage<TxnResponse> configResultA = coordinator.commit(configCohortA, configTxnA);
+        CompletionStage<TxnResponse> configResultB = coordinator.commit(configCohortB, configTxnB);
+        verify(groupCommitter, never()).commit(any());
+
+        CompletionStage<TxnResponse> operResultB = coordinator.commit(operCohortB, newTxn(operKV));
+        ArgumentCaptor<EtcdTxn> unions = ArgumentCaptor.forClass(EtcdTxn.class);
+        verify(groupCommitter).commit(unions.capture());
+        assertThat(unions.getValue()).isSameAs(configTxnB);
+        assertThat(unions.getValue().ops()).hasSize(2);
+        assertThat(configResultA.toCompletableFuture().isDone()).isFalse();
+
+        CompletionStage<TxnResponse> operResultA = coordinator.commit(operCohortA, newTxn(operKV));
+        verify(groupCommitter, times(2)).commit(unions.capture());
+        assertThat(unions.getValue()).isSameAs(configTxnA);
+        assertThat(unions.getValue().ops()).hasSize(2);
+
+        TxnResponse txnResponseB = mock(TxnResponse.class);
+        etcdResults.get(0).complete(txnResponseB);
+        assertThat(configResultB.toCompletableFuture().get()).isSameAs(txnResponseB);
+        assertThat(operResultB.toCompletableFuture().get()).isSameAs(txnResponseB);
+        assertThat(operResultA.toCompletableFuture().isDone()).isFalse();
+        etcdResults.get(1).complete(txnResponse);
+        assertThat(configResultA.toCompletableFuture().get()).isSameAs(txnResponse);
+        assertThat(operResultA.toCompletableFuture().get()).isSameAs(txnResponse);
+    }
+
+    private static EtcdTxn newTxn(EtcdYangKV kv) throws EtcdException {
+        QName leafQName = QName.create(HelloWorldContainer.QNAME, "name");
+        EtcdTxn txn = kv.newTransaction(1);
+        txn.put(YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(leafQName),
+                ImmutableNodes.leafNode(leafQName, "hello"));
+        return txn;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.ds.impl.EtcdWatchEventDecoderTest.newWatchEvent;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Lease;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import io.etcd.jetcd.lease.LeaseGrantResponse;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.etcd.ds.impl.EtcdYangKVTest.RemoteKeyValues;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.mdsal.common.api.LogicalDatastoreType;
+import org.opendaylight.mdsal.common.api.OptimisticLockFailedException;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreThreePhaseCommitCohort;
+import org.opendaylight.mdsal.dom.spi.store.DOMStoreWriteTransaction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.SchemaPath;
+
+/**
+ * Unit test for {@link EtcdDataStore}, with a mocked etcd.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdDataStoreTest {
+
+    private static final YangInstanceIdentifier PATH = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+    private static final QName NAME = QName.create(HelloWorldContainer.QNAME, "name");
+
+    private static final long LEASE_ID = 42;
+
+    private final EtcdTxnGroupCommitter groupCommitter = mock(EtcdTxnGroupCommitter.class);
+    private final Client client = mock(Client.class);
+    private final Lease lease = mock(Lease.class);
+    // results of the TXNs which the data store commits itself (i.e. chunks), in order; succeeded if there are no more
+    private final Deque<CompletableFuture<TxnResponse>> txnResults = new ArrayDeque<>();
+    private final AtomicInteger committedTxns = new AtomicInteger();
+    private final RemoteKeyValues remoteKeyValues = new RemoteKeyValues();
+    private EtcdDataStore dataStore;
+
+    @Before
+    public void setUp() throws Exception {
+        KV etcd = mock(KV.class);
+        when(client.getKVClient()).thenReturn(etcd);
+        remoteKeyValues.mock(etcd);
+        when(etcd.txn()).thenAnswer(invocation -> {
+            Txn txn = mock(Txn.class);
+            when(txn.commit()).thenAnswer(commitInvocation -> {
+                committedTxns.incrementAndGet();
+                CompletableFuture<TxnResponse> txnResult = txnResults.poll();
+                return txnResult != null ? txnResult : CompletableFuture.completedFuture(newTxnResponse(true));
+            });
+            return txn;
+        });
+        LeaseGrantResponse leaseGrantResponse = mock(LeaseGrantResponse.class);
+        when(leaseGrantResponse.getID()).thenReturn(LEASE_ID);
+        when(client.getLeaseClient()).thenReturn(lease);
+        when(lease.grant(anyLong())).thenReturn(CompletableFuture.completedFuture(leaseGrantResponse));
+        when(lease.keepAliveOnce(anyLong())).thenReturn(new CompletableFuture<>());
+        when(lease.revoke(anyLong())).thenReturn(new CompletableFuture<>());
+        when(groupCommitter.getMaxOps()).thenReturn(EtcdTxnGroupCommitter.DEFAULT_MAX_OPS);
+        when(groupCommitter.getMaxBytes()).thenReturn(EtcdTxnGroupCommitter.DEFAULT_MAX_BYTES);
+        dataStore = newDataStore(EtcdDataBrokerOptions.builder()
+                .configReadConsistency(ReadConsistency.READ_YOUR_WRITES).build(),
+                ImmutableNodes.containerNode(SchemaContext.NAME));
+    }
+
+    private EtcdDataStore newDataStore(EtcdDataBrokerOptions options, NormalizedNode<?, ?> snapshot)
+            throws EtcdException {
+        EtcdDataStore newDataStore = new EtcdDataStore("Test", LogicalDatastoreType.CONFIGURATION,
+                MoreExecutors.newDirectExecutorService(), 10, client, false, new RevAwaiter("Test"), groupCommitter,
+                new EtcdCommitCoordinator("Test", groupCommitter), mock(EtcdRevisionFetcher.class), null, null,
+                options);
+        newDataStore.onGlobalContextUpdated(EtcdSchemaValueCodecTest.newSchemaContext());
+        newDataStore.initFromSnapshot(snapshot);
+        return newDataStore;
+    }
+
+    @Test
+    public void testCommitCompletesWhenEtcdDid() throws Exception {
+        CompletableFuture<TxnResponse> etcdResult = new CompletableFuture<>();
+        when(groupCommitter.commit(any())).thenReturn(etcdResult);
+        ListenableFuture<Void> result = commit(write("hello"));
+        assertThat(result.isDone()).isFalse();
+
+        etcdResult.complete(newTxnResponse(true));
+        assertThat(result.isDone()).isTrue();
+        result.get();
+    }
+
+    @Test
+    public void testCommitFailureArrivesThroughFuture() throws Exception {
+        CompletableFuture<TxnResponse> etcdResult = new CompletableFuture<>();
+        when(groupCommitter.commit(any())).thenReturn(etcdResult);
+        // commit() itself must not throw (as it did when it blocked on etcd), but fail the returned future
+        ListenableFuture<Void> result = commit(write("hello"));
+        EtcdException failure = new EtcdException("simulated etcd failure");
+        etcdResult.completeExceptionally(failure);
+        try {
+            result.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+    }
+
+    @Test
+    public void testCommitIsGuarded() throws Exception {
+        when(groupCommitter.commit(any())).thenReturn(CompletableFuture.completedFuture(newTxnResponse(true)));
+        commit(write("hello")).get();
+        ArgumentCaptor<EtcdTxn> txn = ArgumentCaptor.forClass(EtcdTxn.class);
+        verify(groupCommitter).commit(txn.capture());
+        // every key which is put is guarded against concurrent modifications after the validated revision,
+        // and the whole TXN against a chunked commit in progress
+        assertThat(txn.getValue().cmps()).hasSize(txn.getValue().ops().size() + 1);
+    }
+
+    @Test
+    public void testConcurrentConflictingCommitFails() throws Exception {
+        // etcd's TXN guards catch a conflicting commit of another node, which the local DataTree has not seen yet
+        DOMStoreThreePhaseCommitCohort cohortA = write("hello");
+        DOMStoreThreePhaseCommitCohort cohortB = write("world");
+        when(groupCommitter.commit(any())).thenReturn(CompletableFuture.completedFuture(newTxnResponse(true)));
+        commit(cohortA).get();
+        when(groupCommitter.commit(any())).thenReturn(CompletableFuture.completedFuture(newTxnResponse(false)));
+        try {
+            commit(cohortB).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        }
+    }
+
+    @Test
+    public void testConcurrentNonConflictingCommitsSucceed() throws Exception {
+        when(groupCommitter.commit(any())).thenReturn(CompletableFuture.completedFuture(newTxnResponse(true)));
+        DOMStoreThreePhaseCommitCohort cohortA = write("hello");
+        DOMStoreThreePhaseCommitCohort cohortB = write("world");
+        commit(cohortA).get();
+        commit(cohortB).get();
+    }
+
+    @Test
+    public void testChunkedCommit() throws Exception {
+        // maxOps 4 leaves room for 2 nodes per TXN, so the container and its leaf do not fit into one
+        when(groupCommitter.getMaxOps()).thenReturn(4);
+        commit(write("hello")).get();
+        // 2 TXNs which check the guards (and put the staging marker), then 1 which writes both nodes
+        assertThat(committedTxns.get()).isEqualTo(3);
+        verify(lease).revoke(LEASE_ID);
+    }
+
+    @Test
+    public void testChunkedCommitConflictFailsBeforeWriting() throws Exception {
+        when(groupCommitter.getMaxOps()).thenReturn(4);
+        txnResults.add(CompletableFuture.completedFuture(newTxnResponse(true)));
+        txnResults.add(CompletableFuture.completedFuture(newTxnResponse(false)));
+        try {
+            commit(write("hello")).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(OptimisticLockFailedException.class);
+        }
+        // the conflict was detected by the 2nd guards-only TXN, so no TXN which writes anything was sent
+        assertThat(committedTxns.get()).isEqualTo(2);
+        verify(lease).revoke(LEASE_ID);
+    }
+
+    @Test
+    public void testChunkedCommitAbort() throws Exception {
+        when(groupCommitter.getMaxOps()).thenReturn(4);
+        txnResults.add(CompletableFuture.completedFuture(newTxnResponse(true)));
+        txnResults.add(CompletableFuture.completedFuture(newTxnResponse(true)));
+        CompletableFuture<TxnResponse> failedChunk = new CompletableFuture<>();
+        EtcdException failure = new EtcdException("simulated etcd failure");
+        failedChunk.completeExceptionally(failure);
+        txnResults.add(failedChunk);
+        try {
+            commit(write("hello")).get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+        // revoking the lease deletes the staging marker, so that it does not hold back watchers until it expires
+        verify(lease).revoke(LEASE_ID);
+    }
+
+    @Test
+    public void testStagingMarkerHoldsBackChanges() throws Exception {
+        EtcdYangKV kv = new EtcdYangKV("Test", client, EtcdDataStore.CONFIGURATION_PREFIX);
+        ByteSequence marker = kv.getStagingMarkerKey();
+        dataStore.accept(Collections.singletonList(newWatchEvent(marker, ByteSequences.fromBytes(), EventType.PUT)));
+        dataStore.accept(Collections.singletonList(newWatchEvent(kv.toByteSequence(PATH),
+                EtcdYangKV.toSubtreeByteSequence(container("hello")), EventType.PUT)));
+        assertThat(dataStore.isHoldingBack()).isTrue();
+        assertThat(dataStore.newReadOnlyTransaction().read(PATH).get().isPresent()).isFalse();
+
+        dataStore.accept(Collections.singletonList(newWatchEvent(marker, ByteSequences.fromBytes(),
+                EventType.DELETE)));
+        assertThat(dataStore.isHoldingBack()).isFalse();
+        assertThat(dataStore.newReadOnlyTransaction().read(PATH).get().get()).isEqualTo(container("hello"));
+    }
+
+    @Test
+    public void testResyncKeepsSubtreeWithoutChildKeys() throws Exception {
+        EtcdDataStore subtreeDataStore = newDataStore(EtcdDataBrokerOptions.builder().granularity(StorageGranularity
+                .of(ImmutableSet.of(SchemaPath.create(true, HelloWorldContainer.QNAME)), 0)).build(),
+                Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME))
+                        .withChild(container("hello")).build());
+        EtcdYangKV kv = new EtcdYangKV("Test", client, EtcdDataStore.CONFIGURATION_PREFIX);
+        remoteKeyValues.put(kv.toByteSequence(PATH), EtcdYangKV.toSubtreeByteSequence(container("hello")), 1);
+
+        // the leaf of the subtree has no key in etcd, and so must not be deleted as a local-only key
+        subtreeDataStore.resync(10, 5);
+        assertThat(subtreeDataStore.newReadOnlyTransaction().read(PATH).get().get()).isEqualTo(container("hello"));
+
+        remoteKeyValues.put(kv.toByteSequence(PATH), EtcdYangKV.toSubtreeByteSequence(container("world")), 7);
+        subtreeDataStore.resync(11, 5);
+        assertThat(subtreeDataStore.newReadOnlyTransaction().read(PATH).get().get()).isEqualTo(container("world"));
+    }
+
+    DOMStoreThreePhaseCommitCohort write(String name) {
+        DOMStoreWriteTransaction tx = dataStore.newWriteOnlyTransaction();
+        tx.write(PATH, container(name));
+        return tx.ready();
+    }
+
+    static ListenableFuture<Void> commit(DOMStoreThreePhaseCommitCohort cohort) throws Exception {
+        assertThat(cohort.canCommit().get()).isTrue();
+        cohort.preCommit().get();
+        return cohort.commit();
+    }
+
+    static TxnResponse newTxnResponse(boolean isSucceeded) {
+        TxnResponse txnResponse = mock(TxnResponse.class, RETURNS_DEEP_STUBS);
+        when(txnResponse.isSucceeded()).thenReturn(isSucceeded);
+        return txnResponse;
+    }
+
+    private static NormalizedNode<?, ?> container(String name) {
+        return Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                .withChild(ImmutableNodes.leafNode(NAME, name)).build();
+    }
+}
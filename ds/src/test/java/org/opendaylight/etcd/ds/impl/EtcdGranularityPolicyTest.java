@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.opendaylight.etcd.ds.impl.EtcdSchemaValueCodecTest.TYPES_CONTAINER;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+import org.opendaylight.yangtools.yang.model.api.SchemaPath;
+
+/**
+ * Unit test for {@link EtcdGranularityPolicy}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdGranularityPolicyTest {
+
+    private static final SchemaContext SCHEMA_CONTEXT = EtcdSchemaValueCodecTest.newSchemaContext();
+
+    private static final QName INT_LIST = QName.create(TYPES_CONTAINER, "int-list");
+    private static final YangInstanceIdentifier CONTAINER_PATH = YangInstanceIdentifier.of(TYPES_CONTAINER);
+    private static final YangInstanceIdentifier LIST_PATH = CONTAINER_PATH.node(INT_LIST);
+    private static final YangInstanceIdentifier ENTRY_PATH = LIST_PATH.node(
+            new NodeIdentifierWithPredicates(INT_LIST, QName.create(TYPES_CONTAINER, "id"), 1));
+
+    @Test
+    public void testShallow() {
+        EtcdGranularityPolicy policy = newPolicy(StorageGranularity.SHALLOW);
+        assertThat(policy.isSubtree(CONTAINER_PATH)).isFalse();
+        assertThat(policy.isSubtree(ENTRY_PATH)).isFalse();
+    }
+
+    @Test
+    public void testConfiguredContainer() {
+        EtcdGranularityPolicy policy = newPolicy(
+                StorageGranularity.of(ImmutableSet.of(SchemaPath.create(true, TYPES_CONTAINER)), 0));
+        assertThat(policy.isSubtree(CONTAINER_PATH)).isTrue();
+        assertThat(policy.isSubtree(ENTRY_PATH)).isFalse();
+        assertThat(policy.isSubtree(YangInstanceIdentifier.EMPTY)).isFalse();
+    }
+
+    @Test
+    public void testConfiguredListStoresEntriesButNotEntireList() {
+        EtcdGranularityPolicy policy = newPolicy(
+                StorageGranularity.of(ImmutableSet.of(SchemaPath.create(true, TYPES_CONTAINER, INT_LIST)), 0));
+        assertThat(policy.isSubtree(ENTRY_PATH)).isTrue();
+        assertThat(policy.isSubtree(LIST_PATH)).isFalse();
+        assertThat(policy.isSubtree(CONTAINER_PATH)).isFalse();
+    }
+
+    @Test
+    public void testAutomaticOnlyForFewLeafs() {
+        // the list entries have 2 leafs; the container also has a leaf-list and a list, so never automatically
+        assertThat(newPolicy(StorageGranularity.of(ImmutableSet.of(), 2)).isSubtree(ENTRY_PATH)).isTrue();
+        assertThat(newPolicy(StorageGranularity.of(ImmutableSet.of(), 1)).isSubtree(ENTRY_PATH)).isFalse();
+        assertThat(newPolicy(StorageGranularity.of(ImmutableSet.of(), 100)).isSubtree(CONTAINER_PATH)).isFalse();
+    }
+
+    @Test
+    public void testNoSchemaContextYet() {
+        EtcdGranularityPolicy policy = new EtcdGranularityPolicy(StorageGranularity.of(ImmutableSet.of(), 100));
+        assertThat(policy.isSubtree(ENTRY_PATH)).isFalse();
+    }
+
+    private static EtcdGranularityPolicy newPolicy(StorageGranularity granularity) {
+        EtcdGranularityPolicy policy = new EtcdGranularityPolicy(granularity);
+        policy.setSchemaContext(SCHEMA_CONTEXT);
+        return policy;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.etcd.jetcd.ByteSequence;
+import org.junit.Test;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifierWithPredicates;
+
+/**
+ * Unit test for {@link EtcdKeyCodec}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdKeyCodecTest {
+
+    private static final QName LIST = QName.create(HelloWorldContainer.QNAME, "list");
+    private static final QName KEY = QName.create(HelloWorldContainer.QNAME, "key");
+
+    private final EtcdKeyCodec codec = new EtcdKeyCodec(ByteSequences.fromBytes((byte) 't'));
+    private final EtcdKeyCodec codedCodec = new EtcdKeyCodec(ByteSequences.fromBytes((byte) 't'),
+            QNameDictionary.inMemory());
+
+    @Test
+    public void testRoundTrip() throws EtcdException {
+        YangInstanceIdentifier path = entry("with \u0000 and ünicode").node(QName.create(LIST, "leaf"));
+        assertThat(codec.fromKey(codec.toKey(path))).isEqualTo(path);
+        assertThat(codec.fromKey(codec.toKey(entry(-123L)))).isEqualTo(entry(-123L));
+        assertThat(codec.fromKey(codec.toKey(YangInstanceIdentifier.EMPTY))).isEqualTo(YangInstanceIdentifier.EMPTY);
+    }
+
+    @Test
+    public void testDescendantKeyHasParentKeyAsPrefix() throws EtcdException {
+        ByteSequence parentKey = codec.toKey(entry("a"));
+        assertThat(ByteSequences.startsWith(codec.toKey(entry("a").node(KEY)), parentKey)).isTrue();
+        assertThat(ByteSequences.startsWith(codec.toKey(entry("ab")), parentKey)).isFalse();
+    }
+
+    @Test
+    public void testKeysSortLikeValues() throws EtcdException {
+        assertThat(compare(entry(-2L), entry(1L))).isLessThan(0);
+        assertThat(compare(entry(2L), entry(10L))).isLessThan(0);
+        assertThat(compare(entry("a"), entry("ab"))).isLessThan(0);
+        assertThat(compare(entry("ab"), entry("b"))).isLessThan(0);
+    }
+
+    @Test
+    public void testQNameDictionaryRoundTrip() throws EtcdException {
+        YangInstanceIdentifier path = entry(QName.create(LIST, "value")).node(QName.create(LIST, "leaf"));
+        ByteSequence codedKey = codedCodec.toKey(path);
+        assertThat(codedCodec.fromKey(codedKey)).isEqualTo(path);
+        assertThat(codedCodec.isEncodedKey(codedKey)).isTrue();
+        assertThat(codec.isEncodedKey(codedKey)).isFalse();
+        // keys without codes can still be read, e.g. during migration
+        assertThat(codedCodec.fromKey(codec.toKey(path))).isEqualTo(path);
+    }
+
+    @Test
+    public void testQNameDictionaryShrinksKeys() throws EtcdException {
+        YangInstanceIdentifier path = entry("a").node(QName.create(LIST, "leaf"));
+        assertThat(codedCodec.toKey(path).getBytes().length).isLessThan(codec.toKey(path).getBytes().length / 4);
+        assertThat(ByteSequences.startsWith(codedCodec.toKey(path), codedCodec.toKey(entry("a")))).isTrue();
+    }
+
+    @Test
+    public void testQNameDictionaryAllocatesSchemaContextUpFront() throws EtcdException {
+        QNameDictionary dictionary = QNameDictionary.inMemory();
+        dictionary.allocate(EtcdSchemaValueCodecTest.newSchemaContext());
+        int size = dictionary.size();
+        EtcdKeyCodec keyCodec = new EtcdKeyCodec(ByteSequences.fromBytes((byte) 't'), dictionary);
+        QName typesContainer = EtcdSchemaValueCodecTest.TYPES_CONTAINER;
+        QName intList = QName.create(typesContainer, "int-list");
+        QName id = QName.create(typesContainer, "id");
+        keyCodec.toKey(YangInstanceIdentifier.of(typesContainer).node(intList)
+                .node(new NodeIdentifierWithPredicates(intList, id, 1)).node(QName.create(typesContainer, "value")));
+        // no new codes were needed (which would block on etcd) to write a key of nodes of the SchemaContext
+        assertThat(dictionary.size()).isEqualTo(size);
+    }
+
+    private int compare(YangInstanceIdentifier path1, YangInstanceIdentifier path2) throws EtcdException {
+        return ByteSequences.KEY_ORDER.compare(codec.toKey(path1), codec.toKey(path2));
+    }
+
+    private static YangInstanceIdentifier entry(Object key) {
+        return YangInstanceIdentifier.create(new NodeIdentifier(HelloWorldContainer.QNAME), new NodeIdentifier(LIST),
+                new NodeIdentifierWithPredicates(LIST, KEY, key));
+    }
+}
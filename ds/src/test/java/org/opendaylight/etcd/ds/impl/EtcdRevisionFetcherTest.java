@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Response.Header;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link EtcdRevisionFetcher}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdRevisionFetcherTest {
+
+    private final KV kv = mock(KV.class);
+    private final EtcdRevisionFetcher fetcher = new EtcdRevisionFetcher("TEST", kv);
+
+    @Test
+    public void testCallersArrivingDuringRequestShareNextRequest() throws Exception {
+        CompletableFuture<GetResponse> firstResponse = new CompletableFuture<>();
+        CompletableFuture<GetResponse> secondResponse = new CompletableFuture<>();
+        when(kv.get(any(ByteSequence.class), any(GetOption.class))).thenReturn(firstResponse, secondResponse);
+
+        CompletableFuture<Long> first = fetcher.fetch().toCompletableFuture();
+        CompletableFuture<Long> second = fetcher.fetch().toCompletableFuture();
+        CompletableFuture<Long> third = fetcher.fetch().toCompletableFuture();
+        verify(kv, times(1)).get(any(ByteSequence.class), any(GetOption.class));
+
+        // the first request may have been processed before the later callers arrived, so they must not share it
+        firstResponse.complete(response(5));
+        assertThat(first.get()).isEqualTo(5L);
+        assertThat(second.isDone()).isFalse();
+        verify(kv, times(2)).get(any(ByteSequence.class), any(GetOption.class));
+
+        secondResponse.complete(response(7));
+        assertThat(second.get()).isEqualTo(7L);
+        assertThat(third.get()).isEqualTo(7L);
+        assertThat(fetcher.getSavedRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailureIsPropagatedAndNextRequestIsSent() throws Exception {
+        CompletableFuture<GetResponse> failedResponse = new CompletableFuture<>();
+        when(kv.get(any(ByteSequence.class), any(GetOption.class)))
+            .thenReturn(failedResponse, CompletableFuture.completedFuture(response(3)));
+
+        CompletableFuture<Long> first = fetcher.fetch().toCompletableFuture();
+        failedResponse.completeExceptionally(new IllegalStateException("TEST"));
+        assertThat(first.isCompletedExceptionally()).isTrue();
+        assertThat(fetcher.getServerRevision()).isEqualTo(3L);
+    }
+
+    private static GetResponse response(long revision) {
+        Header header = mock(Header.class);
+        when(header.getRevision()).thenReturn(revision);
+        GetResponse response = mock(GetResponse.class);
+        when(response.getHeader()).thenReturn(header);
+        return response;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static org.opendaylight.etcd.ds.impl.EtcdSchemaValueCodecTest.leaf;
+import static org.opendaylight.etcd.ds.impl.EtcdSchemaValueCodecTest.leafPath;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Micro benchmark of the {@link EtcdSchemaValueCodec} versus the {@link ShallowNormalizedNodeDataOutputWriter}.
+ *
+ * <p>Prints the average size of the values of a mix of typical leafs and containers, and the time to encode and
+ * decode them.  This is a plain main() instead of a JMH benchmark, because this project does not (yet) use JMH; the
+ * first rounds are warm-up.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings({ "checkstyle:RegexpSingleLineJava", "javadoc" })
+public final class EtcdSchemaValueCodecBenchmarkMain {
+
+    private static final int ITERATIONS = 100_000;
+    private static final int ROUNDS = 5;
+
+    private EtcdSchemaValueCodecBenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        EtcdSchemaValueCodec codec = new EtcdSchemaValueCodec(EtcdSchemaValueCodecTest.newSchemaContext());
+        List<YangInstanceIdentifier> paths = new ArrayList<>();
+        List<NormalizedNode<?, ?>> nodes = new ArrayList<>();
+        paths.add(YangInstanceIdentifier.of(EtcdSchemaValueCodecTest.TYPES_CONTAINER));
+        nodes.add(ImmutableNodes.containerNode(EtcdSchemaValueCodecTest.TYPES_CONTAINER));
+        add(paths, nodes, "int32-leaf", 42);
+        add(paths, nodes, "int64-leaf", 1234567890123L);
+        add(paths, nodes, "uint8-leaf", (short) 7);
+        add(paths, nodes, "boolean-leaf", true);
+        add(paths, nodes, "string-leaf", "eth0");
+        add(paths, nodes, "decimal-leaf", new BigDecimal("99.95"));
+        add(paths, nodes, "enum-leaf", "second");
+        add(paths, nodes, "bits-leaf", ImmutableSet.of("two"));
+        add(paths, nodes, "identityref-leaf", QName.create(HelloWorldContainer.QNAME, "cat"));
+
+        @Var long shallowBytes = 0;
+        @Var long codecBytes = 0;
+        List<ByteSequence> values = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            shallowBytes += shallowValue(nodes.get(i)).size();
+            ByteSequence value = codec.encode(paths.get(i), nodes.get(i));
+            codecBytes += value.size();
+            values.add(value);
+        }
+        System.out.println("Average bytes per value: ShallowNormalizedNodeDataOutputWriter "
+                + shallowBytes / nodes.size() + ", EtcdSchemaValueCodec " + codecBytes / nodes.size());
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            @Var long startNanos = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                for (NormalizedNode<?, ?> node : nodes) {
+                    shallowValue(node);
+                }
+            }
+            long shallowEncodeNanos = (System.nanoTime() - startNanos) / ITERATIONS / nodes.size();
+
+            startNanos = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                for (int i = 0; i < nodes.size(); i++) {
+                    codec.encode(paths.get(i), nodes.get(i));
+                }
+            }
+            long codecEncodeNanos = (System.nanoTime() - startNanos) / ITERATIONS / nodes.size();
+
+            startNanos = System.nanoTime();
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                for (int i = 0; i < nodes.size(); i++) {
+                    codec.decode(paths.get(i), values.get(i));
+                }
+            }
+            long codecDecodeNanos = (System.nanoTime() - startNanos) / ITERATIONS / nodes.size();
+
+            System.out.println("Round " + round + ": encode ShallowNormalizedNodeDataOutputWriter " + shallowEncodeNanos
+                    + "ns/op, EtcdSchemaValueCodec " + codecEncodeNanos + "ns/op; decode EtcdSchemaValueCodec "
+                    + codecDecodeNanos + "ns/op");
+        }
+    }
+
+    private static void add(List<YangInstanceIdentifier> paths, List<NormalizedNode<?, ?>> nodes, String localName,
+            Object value) {
+        paths.add(leafPath(localName));
+        nodes.add(leaf(localName, value));
+    }
+
+    private static ByteSequence shallowValue(NormalizedNode<?, ?> node) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutput = new DataOutputStream(baos)) {
+            try (NormalizedNodeDataOutput nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput)) {
+                nodeDataOutput.writeNormalizedNode(node);
+            }
+        }
+        return ByteSequence.from(baos.toByteArray());
+    }
+}
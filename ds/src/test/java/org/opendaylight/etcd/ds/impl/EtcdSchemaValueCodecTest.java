@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableSet;
+import io.etcd.jetcd.ByteSequence;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import org.junit.Test;
+import org.opendaylight.mdsal.binding.generator.impl.ModuleInfoBackedContext;
+import org.opendaylight.mdsal.binding.spec.reflect.BindingReflections;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.binding.YangModuleInfo;
+import org.opendaylight.yangtools.yang.common.Empty;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Unit test for {@link EtcdSchemaValueCodec}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdSchemaValueCodecTest {
+
+    // the package of the YangModuleInfo of the opendaylight-etcd-test-birds module
+    private static final String BIRDS_PACKAGE = "org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.birds.rev181201";
+
+    static final QName TYPES_CONTAINER = QName.create(HelloWorldContainer.QNAME, "TypesContainer");
+
+    private final EtcdSchemaValueCodec codec = new EtcdSchemaValueCodec(newSchemaContext());
+
+    @Test
+    public void testIntegers() throws Exception {
+        assertLeafRoundTrip("int8-leaf", (byte) -128);
+        assertLeafRoundTrip("int32-leaf", -1);
+        assertLeafRoundTrip("int32-leaf", Integer.MAX_VALUE);
+        assertLeafRoundTrip("int64-leaf", Long.MIN_VALUE);
+        assertLeafRoundTrip("uint8-leaf", (short) 255);
+        assertLeafRoundTrip("uint32-leaf", 4294967295L);
+        assertLeafRoundTrip("uint64-leaf", new BigInteger("18446744073709551615"));
+        assertLeafRoundTrip("uint64-leaf", BigInteger.ONE);
+    }
+
+    @Test
+    public void testSmallIntegerIsTwoBytes() {
+        assertThat(codec.encode(leafPath("int32-leaf"), leaf("int32-leaf", 42)).getBytes()).hasLength(2);
+    }
+
+    @Test
+    public void testOtherTypes() throws Exception {
+        assertLeafRoundTrip("boolean-leaf", true);
+        assertLeafRoundTrip("empty-leaf", Empty.getInstance());
+        assertLeafRoundTrip("string-leaf", "hello, wörld");
+        assertLeafRoundTrip("string-leaf", "");
+        assertLeafRoundTrip("decimal-leaf", new BigDecimal("-123.45"));
+        assertLeafRoundTrip("enum-leaf", "third");
+        assertLeafRoundTrip("bits-leaf", ImmutableSet.of("one", "three"));
+        assertLeafRoundTrip("identityref-leaf", QName.create(HelloWorldContainer.QNAME, "dog"));
+
+        byte[] binary = new byte[] { 0, 1, (byte) 0xFF };
+        YangInstanceIdentifier path = leafPath("binary-leaf");
+        NormalizedNode<?, ?> decoded = codec.decode(path, codec.encode(path, leaf("binary-leaf", binary)));
+        assertThat((byte[]) decoded.getValue()).isEqualTo(binary);
+    }
+
+    @Test
+    public void testIdentityrefWithAnotherDerivedIdentity() throws Exception {
+        // written with a SchemaContext without, and read with one with the module which derives "bird" from "animal";
+        // "bird" sorts before "cat", so this would break e.g. ordinals of the identities derived from "animal"
+        EtcdSchemaValueCodec oldCodec = new EtcdSchemaValueCodec(newSchemaContext(moduleInfo -> !moduleInfo.getClass()
+                .getPackage().getName().equals(BIRDS_PACKAGE)));
+        YangInstanceIdentifier path = leafPath("identityref-leaf");
+        QName cat = QName.create(HelloWorldContainer.QNAME, "cat");
+        ByteSequence value = oldCodec.encode(path, leaf("identityref-leaf", cat));
+        assertThat(codec.decode(path, value).getValue()).isEqualTo(cat);
+
+        QName bird = QName.create("urn:opendaylight:etcd:birds", "2018-12-01", "bird");
+        assertLeafRoundTrip("identityref-leaf", bird);
+    }
+
+    @Test
+    public void testUnsupportedTypesFallBack() {
+        assertThat(codec.encode(leafPath("union-leaf"), leaf("union-leaf", "abc"))).isNull();
+        // value not of the class of the leaf's type
+        assertThat(codec.encode(leafPath("int32-leaf"), leaf("int32-leaf", "42"))).isNull();
+        // not one of the enum's names
+        assertThat(codec.encode(leafPath("enum-leaf"), leaf("enum-leaf", "fourth"))).isNull();
+        // not in the SchemaContext
+        assertThat(codec.encode(leafPath("unknown-leaf"), leaf("unknown-leaf", "abc"))).isNull();
+    }
+
+    @Test
+    public void testContainer() throws Exception {
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(TYPES_CONTAINER);
+        NormalizedNode<?, ?> container = ImmutableNodes.containerNode(TYPES_CONTAINER);
+        ByteSequence value = codec.encode(path, container);
+        assertThat(value.getBytes()).hasLength(1);
+        assertThat(EtcdSchemaValueCodec.isEncodedValue(value)).isTrue();
+        assertThat(codec.decode(path, value)).isEqualTo(container);
+    }
+
+    @Test
+    public void testMapAndEntryAndLeafSetEntry() throws Exception {
+        QName listQName = QName.create(TYPES_CONTAINER, "int-list");
+        QName idQName = QName.create(TYPES_CONTAINER, "id");
+        YangInstanceIdentifier listPath = YangInstanceIdentifier.of(TYPES_CONTAINER).node(listQName);
+        assertRoundTrip(listPath, ImmutableNodes.mapNodeBuilder(listQName).build());
+        YangInstanceIdentifier entryPath = listPath.node(
+                new YangInstanceIdentifier.NodeIdentifierWithPredicates(listQName, idQName, 7));
+        assertRoundTrip(entryPath, ImmutableNodes.mapEntry(listQName, idQName, 7));
+
+        QName leafListQName = QName.create(TYPES_CONTAINER, "string-leaf-list");
+        YangInstanceIdentifier.NodeWithValue<String> entryIdentifier =
+                new YangInstanceIdentifier.NodeWithValue<>(leafListQName, "abc");
+        assertRoundTrip(YangInstanceIdentifier.of(TYPES_CONTAINER).node(leafListQName).node(entryIdentifier),
+                Builders.leafSetEntryBuilder().withNodeIdentifier(entryIdentifier).withValue("abc").build());
+    }
+
+    @Test
+    public void testShallowWriterValueIsNotEncodedValue() {
+        // the first byte of values of the ShallowNormalizedNodeDataOutputWriter is a NodeTypes, 1 to 15
+        assertThat(EtcdSchemaValueCodec.isEncodedValue(ByteSequence.from(new byte[] { 1, 0x41 }))).isFalse();
+        assertThat(EtcdSchemaValueCodec.isEncodedValue(ByteSequence.from(new byte[] { 15 }))).isFalse();
+        assertThat(EtcdSchemaValueCodec.isEncodedValue(ByteSequence.from(new byte[0]))).isFalse();
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testTruncatedValue() throws Exception {
+        YangInstanceIdentifier path = leafPath("string-leaf");
+        byte[] bytes = codec.encode(path, leaf("string-leaf", "hello")).getBytes();
+        codec.decode(path, ByteSequence.from(Arrays.copyOf(bytes, 3)));
+    }
+
+    private void assertLeafRoundTrip(String localName, Object value) throws EtcdException {
+        assertRoundTrip(leafPath(localName), leaf(localName, value));
+    }
+
+    private void assertRoundTrip(YangInstanceIdentifier path, NormalizedNode<?, ?> node) throws EtcdException {
+        ByteSequence value = codec.encode(path, node);
+        assertThat(value).isNotNull();
+        assertThat(codec.decode(path, value)).isEqualTo(node);
+    }
+
+    static YangInstanceIdentifier leafPath(String localName) {
+        return YangInstanceIdentifier.of(TYPES_CONTAINER).node(QName.create(TYPES_CONTAINER, localName));
+    }
+
+    static NormalizedNode<?, ?> leaf(String localName, Object value) {
+        return ImmutableNodes.leafNode(QName.create(TYPES_CONTAINER, localName), value);
+    }
+
+    static SchemaContext newSchemaContext() {
+        return newSchemaContext(moduleInfo -> true);
+    }
+
+    private static SchemaContext newSchemaContext(Predicate<YangModuleInfo> filter) {
+        ModuleInfoBackedContext moduleContext = ModuleInfoBackedContext.create();
+        moduleContext.addModuleInfos(Collections2.filter(BindingReflections.loadModuleInfos(), filter::test));
+        return moduleContext.tryToCreateSchemaContext().get();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.ContainerNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.model.api.SchemaContext;
+
+/**
+ * Unit test for {@link EtcdSnapshotFile}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdSnapshotFileTest {
+
+    private static final long CLUSTER_ID = 123;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("test.snapshot");
+        EtcdSnapshotFile snapshotFile = new EtcdSnapshotFile(path);
+        assertThat(snapshotFile.read(CLUSTER_ID).isPresent()).isFalse();
+
+        ContainerNode root = newRoot();
+        snapshotFile.write(CLUSTER_ID, 42, root);
+        EtcdSnapshotFile.Snapshot snapshot = snapshotFile.read(CLUSTER_ID).get();
+        assertThat(snapshot.revision).isEqualTo(42L);
+        assertThat(snapshot.root).isEqualTo(root);
+    }
+
+    @Test
+    public void testOtherCluster() throws IOException {
+        EtcdSnapshotFile snapshotFile = new EtcdSnapshotFile(folder.getRoot().toPath().resolve("test.snapshot"));
+        snapshotFile.write(CLUSTER_ID, 42, newRoot());
+        assertThat(snapshotFile.read(CLUSTER_ID + 1).isPresent()).isFalse();
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupted() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("test.snapshot");
+        EtcdSnapshotFile snapshotFile = new EtcdSnapshotFile(path);
+        snapshotFile.write(CLUSTER_ID, 42, newRoot());
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 3] ^= 0xFF;
+        Files.write(path, bytes);
+        snapshotFile.read(CLUSTER_ID);
+    }
+
+    private static ContainerNode newRoot() {
+        return Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(SchemaContext.NAME))
+                .withChild(Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                        .withChild(ImmutableNodes.leafNode(QName.create(HelloWorldContainer.QNAME, "name"), "hello"))
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opendaylight.etcd.ds.impl.EtcdDataStoreTest.newTxnResponse;
+
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.Txn;
+import io.etcd.jetcd.kv.TxnResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link EtcdTxnGroupCommitter}, with a mocked etcd whose TXNs complete when the test says so.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdTxnGroupCommitterTest {
+
+    // the futures of the etcd TXNs which were sent, in order
+    private final List<CompletableFuture<TxnResponse>> sent = Collections.synchronizedList(new ArrayList<>());
+    // the numbers of the transactions whose futures completed, in order
+    private final List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+
+    private Client client;
+    private EtcdYangKV kv;
+
+    @Before
+    public void setUp() {
+        client = mock(Client.class);
+        KV etcd = mock(KV.class);
+        when(client.getKVClient()).thenReturn(etcd);
+        when(etcd.txn()).thenAnswer(invocation -> {
+            CompletableFuture<TxnResponse> future = new CompletableFuture<>();
+            sent.add(future);
+            Txn txn = mock(Txn.class);
+            when(txn.commit()).thenReturn(future);
+            return txn;
+        });
+        kv = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte) 't'));
+    }
+
+    @Test
+    public void testConcurrentTxnsAreBatched() throws Exception {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client);
+        CompletionStage<TxnResponse> first = commit(committer, 1, "leaf1");
+        assertThat(sent).hasSize(1);
+        // while the first one is in flight, the next ones are queued
+        commit(committer, 2, "leaf2");
+        commit(committer, 3, "leaf3");
+        assertThat(sent).hasSize(1);
+
+        TxnResponse firstResponse = newTxnResponse(true);
+        sent.get(0).complete(firstResponse);
+        assertThat(first.toCompletableFuture().get()).isSameAs(firstResponse);
+        // ... and then all sent together, as one TXN
+        assertThat(sent).hasSize(2);
+        sent.get(1).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(1, 2, 3).inOrder();
+    }
+
+    @Test
+    public void testOverlappingTxnsAreSeparateBatches() {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client);
+        commit(committer, 1, "leaf1");
+        commit(committer, 2, "leaf2");
+        commit(committer, 3, "leaf2");
+        commit(committer, 4, "leaf4");
+        sent.get(0).complete(newTxnResponse(true));
+        // #3 writes the same key as #2, so it must wait for #2; but #4 does not
+        assertThat(sent).hasSize(2);
+        sent.get(1).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(1, 2, 4).inOrder();
+        assertThat(sent).hasSize(3);
+        sent.get(2).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(1, 2, 4, 3).inOrder();
+    }
+
+    @Test
+    public void testOverlappingTxnIsNotSentWhileEarlierIsInFlight() {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client,
+                EtcdTxnGroupCommitter.DEFAULT_MAX_OPS, EtcdTxnGroupCommitter.DEFAULT_MAX_BYTES, 2);
+        commit(committer, 1, "leaf1");
+        commit(committer, 2, "leaf1");
+        // even though there would be room for a second batch in flight, the order of writes to a key is preserved
+        assertThat(sent).hasSize(1);
+        sent.get(0).complete(newTxnResponse(true));
+        assertThat(sent).hasSize(2);
+        sent.get(1).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(1, 2).inOrder();
+    }
+
+    @Test
+    public void testMaxInFlightBatches() {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client,
+                EtcdTxnGroupCommitter.DEFAULT_MAX_OPS, EtcdTxnGroupCommitter.DEFAULT_MAX_BYTES, 2);
+        commit(committer, 1, "leaf1");
+        commit(committer, 2, "leaf2");
+        assertThat(sent).hasSize(2);
+        commit(committer, 3, "leaf3");
+        commit(committer, 4, "leaf4");
+        assertThat(sent).hasSize(2);
+
+        // batches complete independently of each other
+        sent.get(1).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(2);
+        assertThat(sent).hasSize(3);
+        sent.get(0).complete(newTxnResponse(true));
+        sent.get(2).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(2, 1, 3, 4).inOrder();
+    }
+
+    @Test
+    public void testMaxOps() {
+        // each transaction has 1 op (and 1 compare), so at most 2 fit into one batch
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client, 2,
+                EtcdTxnGroupCommitter.DEFAULT_MAX_BYTES, 1);
+        commit(committer, 1, "leaf1");
+        for (int i = 2; i <= 6; i++) {
+            commit(committer, i, "leaf" + i);
+        }
+        sent.get(0).complete(newTxnResponse(true));
+        assertThat(sent).hasSize(2);
+        sent.get(1).complete(newTxnResponse(true));
+        assertThat(completed).containsExactly(1, 2, 3).inOrder();
+        sent.get(2).complete(newTxnResponse(true));
+        sent.get(3).complete(newTxnResponse(true));
+        assertThat(sent).hasSize(4);
+        assertThat(completed).containsExactly(1, 2, 3, 4, 5, 6).inOrder();
+    }
+
+    @Test
+    public void testFailedBatchIsRetriedMemberByMember() throws Exception {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client);
+        commit(committer, 1, "leaf1");
+        CompletionStage<TxnResponse> second = commit(committer, 2, "leaf2");
+        CompletionStage<TxnResponse> third = commit(committer, 3, "leaf3");
+        sent.get(0).complete(newTxnResponse(true));
+
+        // the guard of one member of the batch failed, so etcd applied none of them
+        sent.get(1).complete(newTxnResponse(false));
+        assertThat(completed).containsExactly(1);
+        assertThat(sent).hasSize(3);
+        TxnResponse secondResponse = newTxnResponse(true);
+        sent.get(2).complete(secondResponse);
+        assertThat(sent).hasSize(4);
+        TxnResponse thirdResponse = newTxnResponse(false);
+        sent.get(3).complete(thirdResponse);
+
+        // only the member which really conflicted fails
+        assertThat(second.toCompletableFuture().get()).isSameAs(secondResponse);
+        assertThat(third.toCompletableFuture().get()).isSameAs(thirdResponse);
+        assertThat(completed).containsExactly(1, 2, 3).inOrder();
+    }
+
+    @Test
+    public void testErrorFailsAllMembers() {
+        EtcdTxnGroupCommitter committer = new EtcdTxnGroupCommitter("Test", client);
+        commit(committer, 1, "leaf1");
+        CompletionStage<TxnResponse> second = commit(committer, 2, "leaf2");
+        CompletionStage<TxnResponse> third = commit(committer, 3, "leaf3");
+        sent.get(0).complete(newTxnResponse(true));
+        sent.get(1).completeExceptionally(new EtcdException("simulated etcd failure"));
+        // unlike failed guards, an error (e.g. a timeout) is not retried, as the TXN may have been applied
+        assertThat(sent).hasSize(2);
+        assertThat(second.toCompletableFuture().isCompletedExceptionally()).isTrue();
+        assertThat(third.toCompletableFuture().isCompletedExceptionally()).isTrue();
+    }
+
+    @SuppressWarnings("FutureReturnValueIgnored") // the returned future of whenComplete() is intentionally not used
+    private CompletionStage<TxnResponse> commit(EtcdTxnGroupCommitter committer, int number, String leafName) {
+        QName leafQName = QName.create(HelloWorldContainer.QNAME, leafName);
+        EtcdTxn txn = kv.newTransaction(1);
+        try {
+            txn.put(YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(leafQName),
+                    ImmutableNodes.leafNode(leafQName, "value" + number));
+        } catch (EtcdException e) {
+            throw new IllegalStateException(e);
+        }
+        CompletionStage<TxnResponse> result = committer.commit(txn);
+        result.whenComplete((txnResponse, throwable) -> completed.add(number));
+        return result;
+    }
+}
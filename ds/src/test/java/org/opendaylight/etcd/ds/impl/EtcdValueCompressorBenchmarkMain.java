@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static org.opendaylight.etcd.ds.impl.EtcdSchemaValueCodecTest.TYPES_CONTAINER;
+
+import com.google.errorprone.annotations.Var;
+import io.etcd.jetcd.ByteSequence;
+import java.util.ArrayList;
+import java.util.List;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeWithValue;
+import org.opendaylight.yangtools.yang.data.api.schema.LeafSetEntryNode;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+import org.opendaylight.yangtools.yang.data.impl.schema.builder.api.ListNodeBuilder;
+
+/**
+ * Micro benchmark of the {@link EtcdValueCompressor}, without and with a trained dictionary.
+ *
+ * <p>Prints the average size of generated subtree values (containers with a few leafs and a leaf-list, as stored
+ * with a {@link StorageGranularity} other than SHALLOW), uncompressed and compressed, and the time to compress and
+ * decompress them.  This is a plain main() instead of a JMH benchmark, because this project does not (yet) use JMH;
+ * the first rounds are warm-up.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings({ "checkstyle:RegexpSingleLineJava", "javadoc" })
+public final class EtcdValueCompressorBenchmarkMain {
+
+    private static final int VALUES = 1000;
+    private static final int ITERATIONS = 100;
+    private static final int ROUNDS = 5;
+    private static final int THRESHOLD = 128;
+
+    private static final YangInstanceIdentifier PATH = YangInstanceIdentifier.of(TYPES_CONTAINER);
+    private static final QName LEAF_LIST = QName.create(TYPES_CONTAINER, "string-leaf-list");
+
+    private EtcdValueCompressorBenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        List<ByteSequence> values = new ArrayList<>(VALUES);
+        for (int i = 0; i < VALUES; i++) {
+            values.add(EtcdYangKV.toSubtreeByteSequence(newContainer(i)));
+        }
+
+        EtcdValueCompressor withoutDictionary = EtcdValueCompressor.inMemory(THRESHOLD, Integer.MAX_VALUE);
+        EtcdValueCompressor withDictionary = EtcdValueCompressor.inMemory(THRESHOLD,
+                EtcdValueCompressor.DEFAULT_SAMPLE_BYTES);
+        // samples the values until the dictionary is trained
+        for (int i = 0; i < 5; i++) {
+            compressAll(withDictionary, values);
+        }
+
+        List<ByteSequence> compressedWithout = compressAll(withoutDictionary, values);
+        List<ByteSequence> compressedWith = compressAll(withDictionary, values);
+        System.out.println("Average bytes per value: uncompressed " + averageSize(values) + ", without dictionary "
+                + averageSize(compressedWithout) + ", with dictionary " + averageSize(compressedWith));
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            System.out.println("Round " + round + ": without dictionary " + benchmark(withoutDictionary, values,
+                    compressedWithout) + "; with dictionary " + benchmark(withDictionary, values, compressedWith));
+        }
+    }
+
+    private static String benchmark(EtcdValueCompressor compressor, List<ByteSequence> values,
+            List<ByteSequence> compressedValues) throws EtcdException {
+        @Var long startNanos = System.nanoTime();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            compressAll(compressor, values);
+        }
+        long compressNanos = (System.nanoTime() - startNanos) / ITERATIONS / values.size();
+
+        startNanos = System.nanoTime();
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (ByteSequence compressedValue : compressedValues) {
+                compressor.decompress(compressedValue);
+            }
+        }
+        long decompressNanos = (System.nanoTime() - startNanos) / ITERATIONS / values.size();
+        return "compress " + compressNanos + "ns/op, decompress " + decompressNanos + "ns/op";
+    }
+
+    private static List<ByteSequence> compressAll(EtcdValueCompressor compressor, List<ByteSequence> values) {
+        List<ByteSequence> compressedValues = new ArrayList<>(values.size());
+        for (ByteSequence value : values) {
+            compressedValues.add(compressor.compress(PATH, value));
+        }
+        return compressedValues;
+    }
+
+    private static long averageSize(List<ByteSequence> values) {
+        @Var long bytes = 0;
+        for (ByteSequence value : values) {
+            bytes += value.getBytes().length;
+        }
+        return bytes / values.size();
+    }
+
+    private static QName leaf(String localName) {
+        return QName.create(TYPES_CONTAINER, localName);
+    }
+
+    private static NormalizedNode<?, ?> newContainer(int number) {
+        ListNodeBuilder<String, LeafSetEntryNode<String>> leafList = Builders.<String>leafSetBuilder()
+                .withNodeIdentifier(new NodeIdentifier(LEAF_LIST));
+        for (int i = 0; i < 5; i++) {
+            String value = "vlan-" + (number * 5 + i) + "-member-of-the-datacenter-fabric";
+            leafList.withChild(Builders.<String>leafSetEntryBuilder()
+                    .withNodeIdentifier(new NodeWithValue<>(LEAF_LIST, value)).withValue(value).build());
+        }
+        return Builders.containerBuilder().withNodeIdentifier(new NodeIdentifier(TYPES_CONTAINER))
+                .withChild(ImmutableNodes.leafNode(leaf("string-leaf"),
+                        "GigabitEthernet0/" + number + ", uplink to the core router"))
+                .withChild(ImmutableNodes.leafNode(leaf("int32-leaf"), number))
+                .withChild(ImmutableNodes.leafNode(leaf("enum-leaf"), "second"))
+                .withChild(leafList.build())
+                .build();
+    }
+}
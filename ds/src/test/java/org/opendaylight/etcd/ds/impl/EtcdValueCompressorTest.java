@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.etcd.jetcd.ByteSequence;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+
+/**
+ * Unit test for {@link EtcdValueCompressor}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdValueCompressorTest {
+
+    private static final YangInstanceIdentifier PATH = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+
+    @Test
+    public void testRoundTripWithoutDictionary() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, Integer.MAX_VALUE);
+        ByteSequence value = value(1);
+        ByteSequence compressed = compressor.compress(PATH, value);
+        assertThat(EtcdValueCompressor.isCompressedValue(compressed)).isTrue();
+        assertThat(compressed.getBytes().length).isLessThan(value.getBytes().length);
+        assertThat(compressor.decompress(compressed)).isEqualTo(value);
+    }
+
+    @Test
+    public void testBelowThresholdIsNotCompressed() {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(100_000, Integer.MAX_VALUE);
+        ByteSequence value = value(1);
+        assertThat(compressor.compress(PATH, value)).isSameAs(value);
+    }
+
+    @Test
+    public void testDisabledIsNotCompressed() {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(0, Integer.MAX_VALUE);
+        ByteSequence value = value(1);
+        assertThat(compressor.compress(PATH, value)).isSameAs(value);
+    }
+
+    @Test
+    public void testIncompressibleIsNotCompressed() {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, Integer.MAX_VALUE);
+        byte[] bytes = new byte[1000];
+        new Random(42).nextBytes(bytes);
+        ByteSequence value = ByteSequence.from(bytes);
+        assertThat(compressor.compress(PATH, value)).isSameAs(value);
+    }
+
+    @Test
+    public void testRoundTripWithTrainedDictionary() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, 2000);
+        ByteSequence first = compressor.compress(PATH, value(1));
+        for (int i = 2; i < 20; i++) {
+            compressor.compress(PATH, value(i));
+        }
+        ByteSequence value = value(99);
+        ByteSequence compressed = compressor.compress(PATH, value);
+        // with the dictionary, the value (which is much like the samples) compresses better than the first one did
+        assertThat(compressed.getBytes().length).isLessThan(first.getBytes().length);
+        assertThat(compressor.decompress(compressed)).isEqualTo(value);
+        // values compressed before the dictionary was trained are of course still readable
+        assertThat(compressor.decompress(first)).isEqualTo(value(1));
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testUnknownDictionary() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, 2000);
+        for (int i = 1; i < 20; i++) {
+            compressor.compress(PATH, value(i));
+        }
+        ByteSequence compressed = compressor.compress(PATH, value(99));
+        EtcdValueCompressor.inMemory(64, 2000).decompress(compressed);
+    }
+
+    @Test
+    public void testTrainDictionary() {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] sample = new byte[10_000];
+            Arrays.fill(sample, (byte) i);
+            samples.add(sample);
+        }
+        byte[] dictionary = EtcdValueCompressor.trainDictionary(samples);
+        assertThat(dictionary).hasLength(EtcdValueCompressor.MAX_DICTIONARY_SIZE);
+        // the most recent sample is last
+        assertThat(dictionary[dictionary.length - 1]).isEqualTo((byte) 99);
+        assertThat(EtcdValueCompressor.trainDictionary(samples.subList(0, 1)).length)
+                .isLessThan(EtcdValueCompressor.MAX_DICTIONARY_SIZE);
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testTruncatedValue() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, Integer.MAX_VALUE);
+        byte[] bytes = compressor.compress(PATH, value(1)).getBytes();
+        compressor.decompress(ByteSequence.from(Arrays.copyOf(bytes, bytes.length - 5)));
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testCorruptValue() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, Integer.MAX_VALUE);
+        byte[] bytes = compressor.compress(PATH, value(1)).getBytes();
+        Arrays.fill(bytes, 13, bytes.length, (byte) 0xFF);
+        compressor.decompress(ByteSequence.from(bytes));
+    }
+
+    @Test(expected = EtcdException.class)
+    public void testLengthAboveMaxValueSize() throws Exception {
+        EtcdValueCompressor compressor = EtcdValueCompressor.inMemory(64, Integer.MAX_VALUE);
+        byte[] bytes = compressor.compress(PATH, value(1)).getBytes();
+        // a corrupt header must not make decompress() allocate (up to 2 GiB) for the claimed length
+        ByteBuffer.wrap(bytes, 9, 4).putInt(EtcdValueCompressor.MAX_VALUE_SIZE + 1);
+        compressor.decompress(ByteSequence.from(bytes));
+    }
+
+    private static ByteSequence value(int number) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            sb.append("interface GigabitEthernet0/").append(number).append('/').append(i)
+                .append(" description uplink to the core router, mtu 9000, enabled, vlan ").append(number * 10 + i);
+        }
+        return ByteSequence.from(sb.toString(), UTF_8);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.etcd.jetcd.watch.WatchEvent;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Micro benchmark of {@link EtcdWatchEventDecoder} scaling by number of cores.
+ *
+ * <p>Decodes a batch of 100'000 PUT events (as e.g. from a peer's bulk import) with 1, 2, 4 etc. up to the number of
+ * available processors threads.  This is a plain main() instead of a JMH benchmark, because this project does not
+ * (yet) use JMH; the first rounds are warm-up.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings({ "checkstyle:RegexpSingleLineJava", "javadoc" })
+public final class EtcdWatchEventDecoderBenchmarkMain {
+
+    private static final int EVENTS = 100_000;
+    private static final int ROUNDS = 5;
+
+    private EtcdWatchEventDecoderBenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        EtcdYangKV kv = EtcdWatchEventDecoderTest.newEtcdYangKV();
+        List<WatchEvent> events = EtcdWatchEventDecoderTest.newEvents(kv, EVENTS, false);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (int parallelism = 1; parallelism <= cores; parallelism *= 2) {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    EtcdWatchEventDecoder decoder = new EtcdWatchEventDecoder(kv, pool, parallelism,
+                            EtcdWatchEventDecoder.DEFAULT_MIN_PARALLEL_EVENTS);
+                    long startNanos = System.nanoTime();
+                    decoder.decode(events);
+                    long millis = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                    System.out.println("Round " + round + ", parallelism " + parallelism + ": decoded " + EVENTS
+                            + " events in " + millis + "ms");
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.DecodedPut;
+import org.opendaylight.etcd.ds.stream.copypaste.dependencies.NormalizedNodeDataOutput;
+import org.opendaylight.etcd.utils.ByteSequences;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yangtools.yang.common.QName;
+import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
+
+/**
+ * Unit test for {@link EtcdWatchEventDecoder}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdWatchEventDecoderTest {
+
+    @SuppressWarnings("resource") // because Client is just mocked anyway
+    private final EtcdYangKV kv = newEtcdYangKV();
+
+    @Test
+    public void testParallelDecodingPreservesOrder() throws Exception {
+        List<WatchEvent> events = newEvents(kv, 1000, true);
+        EtcdWatchEventDecoder parallelDecoder = new EtcdWatchEventDecoder(kv, ForkJoinPool.commonPool(), 4, 10);
+        List<DecodedPut> decoded = parallelDecoder.decode(events);
+        assertThat(decoded).hasSize(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            if (i % 2 == 0) {
+                assertThat(decoded.get(i).path).isEqualTo(path(i));
+                assertThat(decoded.get(i).data.getValue()).isEqualTo("value" + i);
+            } else {
+                assertThat(decoded.get(i)).isNull();
+            }
+        }
+    }
+
+    @Test
+    public void testSmallBatchIsDecodedSequentially() throws Exception {
+        List<WatchEvent> events = newEvents(kv, 5, false);
+        // an Executor which fails if it is used
+        EtcdWatchEventDecoder decoder = new EtcdWatchEventDecoder(kv, runnable -> {
+            throw new AssertionError("not expected to be used");
+        }, 4, 10);
+        assertThat(decoder.decode(events).get(4).path).isEqualTo(path(4));
+    }
+
+    @Test
+    public void testDecodeKeyValuesSkipsStagingMarkers() throws Exception {
+        List<KeyValue> keyValues = new ArrayList<>();
+        for (WatchEvent event : newEvents(kv, 100, false)) {
+            keyValues.add(event.getKeyValue());
+        }
+        keyValues.set(50, newWatchEvent(kv.getStagingMarkerKey(), ByteSequences.fromBytes(), EventType.PUT)
+                .getKeyValue());
+        List<DecodedPut> decoded = new EtcdWatchEventDecoder(kv, ForkJoinPool.commonPool(), 4, 10)
+                .decodeKeyValues(keyValues);
+        assertThat(decoded).hasSize(100);
+        assertThat(decoded.get(50)).isNull();
+        assertThat(decoded.get(99).path).isEqualTo(path(99));
+    }
+
+    static EtcdYangKV newEtcdYangKV() {
+        return new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte) 't'));
+    }
+
+    /**
+     * Events for leafs named leaf0, leaf1 etc. with values value0, value1 etc.
+     * If withDeletes, then every other event is a DELETE instead of a PUT.
+     */
+    static List<WatchEvent> newEvents(EtcdYangKV kv, int size, boolean withDeletes)
+            throws EtcdException, IOException {
+        List<WatchEvent> events = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ByteSequence key = kv.toByteSequence(path(i));
+            if (withDeletes && i % 2 == 1) {
+                events.add(newWatchEvent(key, ByteSequences.fromBytes(), EventType.DELETE));
+            } else {
+                QName leafQName = path(i).getLastPathArgument().getNodeType();
+                events.add(newWatchEvent(key, value(ImmutableNodes.leafNode(leafQName, "value" + i)), EventType.PUT));
+            }
+        }
+        return events;
+    }
+
+    private static YangInstanceIdentifier path(int index) {
+        return YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(QName.create(HelloWorldContainer.QNAME,
+                "leaf" + index));
+    }
+
+    static ByteSequence value(NormalizedNode<?, ?> node) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dataOutput = new DataOutputStream(baos)) {
+            try (NormalizedNodeDataOutput nodeDataOutput = new ShallowNormalizedNodeDataOutputWriter(dataOutput)) {
+                nodeDataOutput.writeNormalizedNode(node);
+            }
+        }
+        return ByteSequence.from(baos.toByteArray());
+    }
+
+    static WatchEvent newWatchEvent(ByteSequence key, ByteSequence value, EventType type) {
+        return new WatchEvent(new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFrom(key.getBytes())).setValue(ByteString.copyFrom(value.getBytes())).build()),
+                null, type);
+    }
+}
@@ -21,9 +21,11 @@ import io.etcd.jetcd.KeyValue;
 import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
 import io.etcd.jetcd.watch.WatchEvent;
 import io.etcd.jetcd.watch.WatchEvent.EventType;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import org.opendaylight.infrautils.utils.function.CheckedConsumer;
@@ -86,6 +88,85 @@ public class EtcdWatcherSplittingConsumerTest {
         assertThat(operConsumer.counter.get()).isEqualTo(1L);
     }
 
+    @Test
+    public void testNestedPrefixes() throws EtcdException {
+        TestConsumer nestedConsumer = new TestConsumer();
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), consumers);
+        splitter.register(append(CONFIGURATION_PREFIX, (byte) 123), nestedConsumer);
+        splitter.accept(1L, Lists.newArrayList(
+                newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123)),
+                newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 124)),
+                newWatchEvent(CONFIGURATION_PREFIX)));
+        assertThat(configConsumer.counter.get()).isEqualTo(3L);
+        assertThat(nestedConsumer.counter.get()).isEqualTo(1L);
+        assertThat(operConsumer.counter.get()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testRegisterAndUnregister() throws EtcdException {
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), consumers);
+        ByteSequence otherPrefix = fromBytes((byte) 234);
+        TestConsumer otherConsumer = new TestConsumer();
+        splitter.register(otherPrefix, otherConsumer);
+        splitter.accept(1L, Lists.newArrayList(newWatchEvent(append(otherPrefix, (byte) 123))));
+        assertThat(otherConsumer.counter.get()).isEqualTo(1L);
+
+        assertThat(splitter.unregister(otherPrefix)).isTrue();
+        assertThat(splitter.unregister(otherPrefix)).isFalse();
+        splitter.accept(2L, Lists.newArrayList(newWatchEvent(append(otherPrefix, (byte) 123))));
+        assertThat(otherConsumer.counter.get()).isEqualTo(1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterSamePrefixTwice() {
+        new EtcdWatcherSplittingConsumer(empty(), consumers).register(CONFIGURATION_PREFIX, new TestConsumer());
+    }
+
+    @Test
+    public void testRegistrationOrder() throws EtcdException {
+        List<String> calls = new ArrayList<>();
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(empty(), ImmutableMap.of(
+                OPERATIONAL_PREFIX, events -> calls.add("oper"), CONFIGURATION_PREFIX, events -> calls.add("config")));
+        splitter.accept(1L, Lists.newArrayList(
+                newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123)),
+                newWatchEvent(append(OPERATIONAL_PREFIX, (byte) 123))));
+        assertThat(calls).containsExactly("oper", "config").inOrder();
+    }
+
+    @Test
+    public void testRevAwaiterDoesNotAdvanceWhileHoldingBack() throws EtcdException {
+        RevAwaiter revAwaiter = new RevAwaiter("Test");
+        AtomicBoolean isHoldingBack = new AtomicBoolean(true);
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(
+                ImmutableMap.of(revAwaiter, isHoldingBack::get), consumers);
+        splitter.accept(5L, Lists.newArrayList(newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123))));
+        splitter.accept(6L, Collections.emptyList());
+        assertThat(configConsumer.counter.get()).isEqualTo(1L);
+        assertThat(revAwaiter.currentRevision()).isEqualTo(0L);
+
+        isHoldingBack.set(false);
+        splitter.accept(7L, Lists.newArrayList(newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123))));
+        assertThat(revAwaiter.currentRevision()).isEqualTo(7L);
+    }
+
+    @Test
+    public void testRevAwaitersOfDataStoresAdvanceSeparately() throws EtcdException {
+        RevAwaiter configRevAwaiter = new RevAwaiter("Test-config");
+        RevAwaiter operRevAwaiter = new RevAwaiter("Test-oper");
+        AtomicBoolean isConfigHoldingBack = new AtomicBoolean(true);
+        EtcdWatcherSplittingConsumer splitter = new EtcdWatcherSplittingConsumer(ImmutableMap.of(
+                configRevAwaiter, isConfigHoldingBack::get, operRevAwaiter, () -> false), consumers);
+        splitter.accept(5L, Lists.newArrayList(newWatchEvent(append(CONFIGURATION_PREFIX, (byte) 123))));
+        splitter.accept(6L, Lists.newArrayList(newWatchEvent(append(OPERATIONAL_PREFIX, (byte) 123))));
+        assertThat(configRevAwaiter.currentRevision()).isEqualTo(0L);
+        assertThat(operRevAwaiter.currentRevision()).isEqualTo(6L);
+
+        isConfigHoldingBack.set(false);
+        splitter.accept(7L, Collections.emptyList());
+        assertThat(configRevAwaiter.currentRevision()).isEqualTo(7L);
+        assertThat(operRevAwaiter.currentRevision()).isEqualTo(7L);
+    }
+
     private static WatchEvent newWatchEvent(ByteSequence key) {
         return new WatchEvent(
                 new KeyValue(
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.etcd.jetcd.ByteSequence;
+import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.KeyValue;
+import io.etcd.jetcd.Watch;
+import io.etcd.jetcd.Watch.Watcher;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.options.WatchOption;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import io.etcd.jetcd.watch.WatchEvent.EventType;
+import io.etcd.jetcd.watch.WatchResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.etcd.utils.ByteSequences;
+
+/**
+ * Unit test for {@link EtcdWatcher}.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings("javadoc")
+public class EtcdWatcherTest {
+
+    @Test
+    public void testSplitByRevisionEmpty() {
+        assertThat(EtcdWatcher.splitByRevision(Collections.emptyList())).isEmpty();
+    }
+
+    @Test
+    public void testSplitByRevision() {
+        WatchEvent event1 = newWatchEvent(7);
+        WatchEvent event2 = newWatchEvent(7);
+        WatchEvent event3 = newWatchEvent(8);
+        WatchEvent event4 = newWatchEvent(10);
+        WatchEvent event5 = newWatchEvent(10);
+        List<List<WatchEvent>> revisions = EtcdWatcher.splitByRevision(
+                Arrays.asList(event1, event2, event3, event4, event5));
+        assertThat(revisions).containsExactly(Arrays.asList(event1, event2), Arrays.asList(event3),
+                Arrays.asList(event4, event5)).inOrder();
+    }
+
+    @Test
+    public void testRevisionsOfEventsAndNotOfResponseHeader() throws Exception {
+        Client client = mock(Client.class);
+        Watch watch = mock(Watch.class);
+        when(client.getWatchClient()).thenReturn(watch);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        when(watch.watch(any(ByteSequence.class), any(WatchOption.class), any(Watch.Listener.class)))
+                .thenReturn(mock(Watcher.class));
+        ArgumentCaptor<Watch.Listener> listeners = ArgumentCaptor.forClass(Watch.Listener.class);
+
+        List<Long> revisions = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> progressed = new CompletableFuture<>();
+        try (EtcdWatcher watcher = new EtcdWatcher("test", client, ByteSequences.fromBytes(), (revision, events) -> {
+            revisions.add(revision);
+            if (events.isEmpty()) {
+                progressed.complete(null);
+            }
+        }, (revision, appliedRevision) -> 0)) {
+            watcher.start(7);
+            verify(watch).watch(any(ByteSequence.class), any(WatchOption.class), listeners.capture());
+            // while catching up, the header revision of a response is ahead of its events; revision 8 could follow
+            WatchResponse response = mock(WatchResponse.class, RETURNS_DEEP_STUBS);
+            when(response.getHeader().getRevision()).thenReturn(9L);
+            when(response.getEvents()).thenReturn(Arrays.asList(newWatchEvent(7), newWatchEvent(7)));
+            listeners.getValue().onNext(response);
+            listeners.getValue().onNext(newWatchResponse(8));
+            WatchResponse progressNotification = mock(WatchResponse.class, RETURNS_DEEP_STUBS);
+            when(progressNotification.getHeader().getRevision()).thenReturn(9L);
+            when(progressNotification.getEvents()).thenReturn(Collections.emptyList());
+            listeners.getValue().onNext(progressNotification);
+
+            progressed.get(5, TimeUnit.SECONDS);
+            assertThat(revisions).containsExactly(7L, 8L, 9L).inOrder();
+        }
+    }
+
+    @Test
+    public void testResumeAfterWatchFailure() {
+        Client client = mock(Client.class);
+        Watch watch = mock(Watch.class);
+        when(client.getWatchClient()).thenReturn(watch);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        when(watch.watch(any(ByteSequence.class), any(WatchOption.class), any(Watch.Listener.class)))
+                .thenReturn(mock(Watcher.class));
+        ArgumentCaptor<WatchOption> options = ArgumentCaptor.forClass(WatchOption.class);
+        ArgumentCaptor<Watch.Listener> listeners = ArgumentCaptor.forClass(Watch.Listener.class);
+
+        try (EtcdWatcher watcher = new EtcdWatcher("test", client, ByteSequences.fromBytes(), (revision, events) -> { },
+                (revision, appliedRevision) -> {
+                    throw new AssertionError("not expected to resync, as nothing was compacted");
+                })) {
+            watcher.start(5);
+            verify(watch).watch(any(ByteSequence.class), options.capture(), listeners.capture());
+            assertThat(options.getValue().getRevision()).isEqualTo(5L);
+
+            listeners.getValue().onError(new IllegalStateException("simulated disconnect"));
+            verify(watch, timeout(5000).times(2)).watch(any(ByteSequence.class), options.capture(),
+                    any(Watch.Listener.class));
+            assertThat(options.getValue().getRevision()).isEqualTo(5L);
+        }
+    }
+
+    @Test
+    public void testResyncAfterAcceptFailure() throws Exception {
+        Client client = mock(Client.class);
+        Watch watch = mock(Watch.class);
+        KV kv = mock(KV.class);
+        when(client.getWatchClient()).thenReturn(watch);
+        when(client.getKVClient()).thenReturn(kv);
+        GetResponse getResponse = mock(GetResponse.class, RETURNS_DEEP_STUBS);
+        when(getResponse.getHeader().getRevision()).thenReturn(9L);
+        when(kv.get(any(ByteSequence.class), any(GetOption.class)))
+                .thenReturn(CompletableFuture.completedFuture(getResponse));
+        when(watch.watch(any(ByteSequence.class), any(WatchOption.class), any(Watch.Listener.class)))
+                .thenReturn(mock(Watcher.class));
+        ArgumentCaptor<WatchOption> options = ArgumentCaptor.forClass(WatchOption.class);
+        ArgumentCaptor<Watch.Listener> listeners = ArgumentCaptor.forClass(Watch.Listener.class);
+
+        List<Long> accepted = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> resynced = new CompletableFuture<>();
+        CompletableFuture<Void> acceptedLast = new CompletableFuture<>();
+        try (EtcdWatcher watcher = new EtcdWatcher("test", client, ByteSequences.fromBytes(), (revision, events) -> {
+            if (revision == 6) {
+                throw new EtcdException("simulated DataTree failure");
+            }
+            accepted.add(revision);
+            if (revision == 10) {
+                acceptedLast.complete(null);
+            }
+        }, (revision, appliedRevision) -> {
+            resynced.complete(revision + "/" + appliedRevision);
+            return 0;
+        })) {
+            watcher.start(5);
+            verify(watch).watch(any(ByteSequence.class), options.capture(), listeners.capture());
+            Watch.Listener firstListener = listeners.getValue();
+            firstListener.onNext(newWatchResponse(5));
+            firstListener.onNext(newWatchResponse(6));
+
+            // the failed revision 6 is not considered applied, so the resync is from 5, to the server's revision 9
+            assertThat(resynced.get(5, TimeUnit.SECONDS)).isEqualTo("9/5");
+            verify(watch, timeout(5000).times(2)).watch(any(ByteSequence.class), options.capture(),
+                    listeners.capture());
+            assertThat(options.getValue().getRevision()).isEqualTo(10L);
+
+            // responses from the replaced watch are skipped, as the resync covered them
+            firstListener.onNext(newWatchResponse(7));
+            listeners.getValue().onNext(newWatchResponse(10));
+            acceptedLast.get(5, TimeUnit.SECONDS);
+            assertThat(accepted).containsExactly(5L, 10L).inOrder();
+        }
+    }
+
+    @Test
+    public void testQueuedResponsesAreFoldedWhileCatchingUp() throws Exception {
+        Client client = mock(Client.class);
+        Watch watch = mock(Watch.class);
+        when(client.getWatchClient()).thenReturn(watch);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        when(watch.watch(any(ByteSequence.class), any(WatchOption.class), any(Watch.Listener.class)))
+                .thenReturn(mock(Watcher.class));
+        ArgumentCaptor<Watch.Listener> listeners = ArgumentCaptor.forClass(Watch.Listener.class);
+
+        List<Long> revisions = Collections.synchronizedList(new ArrayList<>());
+        List<List<WatchEvent>> applies = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> firstAccepted = new CompletableFuture<>();
+        CountDownLatch slowApply = new CountDownLatch(1);
+        CompletableFuture<Void> lastAccepted = new CompletableFuture<>();
+        // catching up as soon as 2 responses are queued
+        try (EtcdWatcher watcher = new EtcdWatcher("test", client, ByteSequences.fromBytes(), (revision, events) -> {
+            revisions.add(revision);
+            applies.add(events);
+            if (revision == 1) {
+                firstAccepted.complete(null);
+                Uninterruptibles.awaitUninterruptibly(slowApply);
+            } else if (revision == 5) {
+                lastAccepted.complete(null);
+            }
+        }, (revision, appliedRevision) -> 0, 100, 2, 10)) {
+            watcher.start(1);
+            verify(watch).watch(any(ByteSequence.class), any(WatchOption.class), listeners.capture());
+            List<WatchResponse> responses = Arrays.asList(newWatchResponse(1, "a"), newWatchResponse(2, "b"),
+                    newWatchResponse(3, "a"), newWatchResponse(4, "c"), newWatchResponse(5, "b"));
+            listeners.getValue().onNext(responses.get(0));
+            // while the first one is being applied (slowly), the others are queued
+            firstAccepted.get(5, TimeUnit.SECONDS);
+            for (WatchResponse response : responses.subList(1, responses.size())) {
+                listeners.getValue().onNext(response);
+            }
+            slowApply.countDown();
+            lastAccepted.get(5, TimeUnit.SECONDS);
+
+            // the 4 queued responses were applied at once, with the revision of the last of them
+            assertThat(revisions).containsExactly(1L, 5L).inOrder();
+            List<WatchEvent> foldedEvents = applies.get(1);
+            assertThat(foldedEvents).hasSize(4);
+            // ... which has the same result as applying them one by one
+            Map<ByteSequence, Long> oneByOne = new HashMap<>();
+            for (WatchResponse response : responses) {
+                apply(oneByOne, response.getEvents());
+            }
+            Map<ByteSequence, Long> folded = new HashMap<>();
+            for (List<WatchEvent> events : applies) {
+                apply(folded, events);
+            }
+            assertThat(folded).isEqualTo(oneByOne);
+            assertThat(folded.get(ByteSequence.from("a", UTF_8))).isEqualTo(3L);
+        }
+    }
+
+    private static void apply(Map<ByteSequence, Long> keyRevisions, List<WatchEvent> events) {
+        for (WatchEvent event : events) {
+            keyRevisions.put(event.getKeyValue().getKey(), event.getKeyValue().getModRevision());
+        }
+    }
+
+    private static WatchResponse newWatchResponse(long revision, String key) {
+        WatchResponse response = mock(WatchResponse.class, RETURNS_DEEP_STUBS);
+        when(response.getHeader().getRevision()).thenReturn(revision);
+        when(response.getEvents()).thenReturn(Collections.singletonList(new WatchEvent(new KeyValue(
+                io.etcd.jetcd.api.KeyValue.newBuilder().setKey(ByteString.copyFromUtf8(key)).setModRevision(revision)
+                        .build()), null, EventType.PUT)));
+        return response;
+    }
+
+    private static WatchResponse newWatchResponse(long revision) {
+        WatchResponse response = mock(WatchResponse.class, RETURNS_DEEP_STUBS);
+        when(response.getHeader().getRevision()).thenReturn(revision);
+        when(response.getEvents()).thenReturn(Collections.singletonList(newWatchEvent(revision)));
+        return response;
+    }
+
+    private static WatchEvent newWatchEvent(long modRevision) {
+        return new WatchEvent(new KeyValue(io.etcd.jetcd.api.KeyValue.newBuilder()
+                .setKey(ByteString.copyFromUtf8("key" + modRevision)).setModRevision(modRevision).build()),
+                null, EventType.PUT);
+    }
+}
@@ -8,15 +8,45 @@
 package org.opendaylight.etcd.ds.impl;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import io.etcd.jetcd.ByteSequence;
 import io.etcd.jetcd.Client;
+import io.etcd.jetcd.KV;
+import io.etcd.jetcd.api.KeyValue;
+import io.etcd.jetcd.api.RangeResponse;
+import io.etcd.jetcd.kv.GetResponse;
+import io.etcd.jetcd.options.GetOption;
+import io.etcd.jetcd.shaded.com.google.protobuf.ByteString;
+import io.etcd.jetcd.watch.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.opendaylight.etcd.ds.impl.EtcdYangKV.EtcdTxn;
 import org.opendaylight.etcd.utils.ByteSequences;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.etcd.test.rev180628.HelloWorldContainer2;
+import org.opendaylight.yangtools.yang.common.QName;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier;
 import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdentifier;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.data.api.schema.tree.DataTreeModification;
+import org.opendaylight.yangtools.yang.data.impl.schema.Builders;
+import org.opendaylight.yangtools.yang.data.impl.schema.ImmutableNodes;
 
 /**
  * Unit test for {@link EtcdYangKV}.
@@ -26,6 +56,8 @@ import org.opendaylight.yangtools.yang.data.api.YangInstanceIdentifier.NodeIdent
 @SuppressWarnings("javadoc")
 public class EtcdYangKVTest {
 
+    private static final YangInstanceIdentifier CONTAINER = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+
     @Test
     public void testYangInstanceIdentifierToAndFromByteSequence() throws EtcdException {
         @SuppressWarnings("resource") // because Client is just mocked anyway
@@ -36,4 +68,287 @@ public class EtcdYangKVTest {
         assertThat(path).named(ByteSequences.asString(byteSequence)).isEqualTo(path2);
     }
 
+    @Test
+    public void testParentKeyIsPrefixOfChildKey() throws EtcdException {
+        @SuppressWarnings("resource") // because Client is just mocked anyway
+        EtcdYangKV etcdKV = new EtcdYangKV("Test", Mockito.mock(Client.class), ByteSequences.fromBytes((byte)'t'));
+        YangInstanceIdentifier parentPath = YangInstanceIdentifier.EMPTY
+                .node(new NodeIdentifier(HelloWorldContainer.QNAME));
+        YangInstanceIdentifier childPath = parentPath.node(QName.create(HelloWorldContainer.QNAME, "name"));
+        ByteSequence parentKey = etcdKV.toByteSequence(parentPath);
+        ByteSequence childKey = etcdKV.toByteSequence(childPath);
+        assertThat(ByteSequences.startsWith(childKey, parentKey)).isTrue();
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(childKey)).isEqualTo(childPath);
+        assertThat(etcdKV.fromByteSequenceToYangInstanceIdentifier(etcdKV.toByteSequence(YangInstanceIdentifier.EMPTY)))
+                .isEqualTo(YangInstanceIdentifier.EMPTY);
+    }
+
+    @Test
+    public void testReadAllIntoReadsPages() throws Exception {
+        List<WatchEvent> events = EtcdWatchEventDecoderTest.newEvents(EtcdWatchEventDecoderTest.newEtcdYangKV(), 3,
+                false);
+        Client client = mock(Client.class);
+        KV kvClient = mock(KV.class);
+        when(client.getKVClient()).thenReturn(kvClient);
+        when(kvClient.get(any(ByteSequence.class), any(GetOption.class))).thenReturn(
+                CompletableFuture.completedFuture(newGetResponse(events.subList(0, 2), true)),
+                CompletableFuture.completedFuture(newGetResponse(events.subList(2, 3), false)));
+
+        @SuppressWarnings("resource") // because Client is just mocked anyway
+        EtcdYangKV etcdKV = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte)'t'));
+        DataTreeModification modification = mock(DataTreeModification.class);
+        assertThat(etcdKV.readAllInto(1, modification, new EtcdWatchEventDecoder(etcdKV))).isEqualTo(3L);
+        verify(kvClient, times(2)).get(any(ByteSequence.class), any(GetOption.class));
+        verify(modification, times(3)).write(any(YangInstanceIdentifier.class), any(NormalizedNode.class));
+    }
+
+    @Test
+    public void testPutIfChanged() throws EtcdException {
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        @SuppressWarnings("resource") // because Client is just mocked anyway
+        EtcdYangKV etcdKV = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte)'t'));
+        QName leafQName = QName.create(HelloWorldContainer.QNAME, "name");
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME).node(leafQName);
+
+        EtcdTxn unchangedTx = etcdKV.newTransaction(1);
+        assertThat(unchangedTx.putIfChanged(path, ImmutableNodes.leafNode(leafQName, "hello"),
+                ImmutableNodes.leafNode(leafQName, "hello"))).isFalse();
+        assertThat(unchangedTx.ops()).isEmpty();
+        assertThat(unchangedTx.cmps()).hasSize(1);
+
+        EtcdTxn changedTx = etcdKV.newTransaction(1);
+        assertThat(changedTx.putIfChanged(path, ImmutableNodes.leafNode(leafQName, "hello"),
+                ImmutableNodes.leafNode(leafQName, "world"))).isTrue();
+        assertThat(changedTx.ops()).hasSize(1);
+        assertThat(changedTx.writtenKeys()).containsExactly(etcdKV.toByteSequence(path));
+    }
+
+    @Test
+    public void testPutSubtree() throws EtcdException {
+        Client client = mock(Client.class);
+        when(client.getKVClient()).thenReturn(mock(KV.class));
+        @SuppressWarnings("resource") // because Client is just mocked anyway
+        EtcdYangKV etcdKV = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte)'t'));
+        QName leafQName = QName.create(HelloWorldContainer.QNAME, "name");
+        YangInstanceIdentifier path = YangInstanceIdentifier.of(HelloWorldContainer.QNAME);
+        NormalizedNode<?, ?> container = Builders.containerBuilder()
+                .withNodeIdentifier(new NodeIdentifier(HelloWorldContainer.QNAME))
+                .withChild(ImmutableNodes.leafNode(leafQName, "hello")).build();
+
+        EtcdTxn newTx = etcdKV.newTransaction(1);
+        newTx.putSubtree(path, container, false);
+        assertThat(newTx.ops()).hasSize(1);
+
+        // the keys of the descendants of a node which existed before are deleted, in case they were stored individually
+        EtcdTxn existingTx = etcdKV.newTransaction(1);
+        existingTx.putSubtree(path, container, true);
+        assertThat(existingTx.ops()).hasSize(2);
+        assertThat(existingTx.deletedSubtrees()).containsExactly(etcdKV.toByteSequence(path));
+
+        ByteSequence value = EtcdYangKV.toSubtreeByteSequence(container);
+        assertThat(etcdKV.decodePut(etcdKV.toByteSequence(path), value).data).isEqualTo(container);
+    }
+
+    @Test
+    public void testResyncDeletesLocalOnlyKeys() throws Exception {
+        Resync resync = new Resync();
+        resync.remote(CONTAINER, 1).remote(leaf(0), 1);
+        resync.local(CONTAINER, leaf(0), leaf(1)).run(5);
+        verify(resync.modification).delete(leaf(1));
+        verify(resync.modification, never()).write(any(YangInstanceIdentifier.class), any(NormalizedNode.class));
+        assertThat(resync.remoteKeyValues.getValueReads()).isEqualTo(0);
+    }
+
+    @Test
+    public void testResyncDeletesLocalOnlyNodeWithDescendantsOnce() throws Exception {
+        Resync resync = new Resync();
+        resync.local(CONTAINER, leaf(0), leaf(1)).run(5);
+        // the delete of the container deletes its children as well
+        verify(resync.modification).delete(CONTAINER);
+        verify(resync.modification, times(1)).delete(any(YangInstanceIdentifier.class));
+    }
+
+    @Test
+    public void testResyncPutsRemoteOnlyKeys() throws Exception {
+        Resync resync = new Resync();
+        resync.remote(CONTAINER, 1).remote(leaf(0), 1).remote(leaf(1), 1);
+        resync.local(CONTAINER, leaf(0)).run(5);
+        verify(resync.modification).write(leaf(1), leafNode(1));
+        verify(resync.modification, times(1)).write(any(YangInstanceIdentifier.class), any(NormalizedNode.class));
+        verify(resync.modification, never()).delete(any(YangInstanceIdentifier.class));
+        assertThat(resync.remoteKeyValues.getValueReads()).isEqualTo(1);
+    }
+
+    @Test
+    public void testResyncRereadsKeysChangedAfterAppliedRevision() throws Exception {
+        Resync resync = new Resync();
+        resync.remote(CONTAINER, 1).remote(leaf(0), 7).remote(leaf(1), 1).remote(leaf(2), 8);
+        resync.local(CONTAINER, leaf(0), leaf(1), leaf(2)).run(5);
+        verify(resync.modification).write(leaf(0), leafNode(0));
+        verify(resync.modification).write(leaf(2), leafNode(2));
+        verify(resync.modification, times(2)).write(any(YangInstanceIdentifier.class), any(NormalizedNode.class));
+        // one range read for each run of consecutive keys to put
+        assertThat(resync.remoteKeyValues.getValueReads()).isEqualTo(2);
+    }
+
+    @Test
+    public void testResyncRePutsChildrenOfPutParent() throws Exception {
+        Resync resync = new Resync();
+        resync.remote(CONTAINER, 7).remote(leaf(0), 1).remote(leaf(1), 1);
+        resync.local(CONTAINER, leaf(0), leaf(1), leaf(2)).run(5);
+        // the put of the (shallow) container replaces its children, so they are put again after it, unchanged or not
+        InOrder inOrder = inOrder(resync.modification);
+        inOrder.verify(resync.modification).write(CONTAINER, node(CONTAINER));
+        inOrder.verify(resync.modification).write(leaf(0), leafNode(0));
+        inOrder.verify(resync.modification).write(leaf(1), leafNode(1));
+        // and the local-only child is already gone with the put of the container
+        verify(resync.modification, never()).delete(any(YangInstanceIdentifier.class));
+        assertThat(resync.remoteKeyValues.getValueReads()).isEqualTo(1);
+    }
+
+    @Test
+    public void testResyncPagesAcrossRangeReads() throws Exception {
+        int leafs = EtcdYangKV.PAGE_SIZE * 2 + 500;
+        Resync resync = new Resync();
+        resync.remote(CONTAINER, 7);
+        List<YangInstanceIdentifier> localPaths = new ArrayList<>();
+        localPaths.add(CONTAINER);
+        for (int i = 0; i < leafs; i++) {
+            resync.remote(leaf(i), 7);
+            localPaths.add(leaf(i));
+        }
+        // one more local key, at the very end, which is deleted after the last page
+        localPaths.add(YangInstanceIdentifier.of(HelloWorldContainer2.QNAME));
+        resync.local(localPaths.toArray(new YangInstanceIdentifier[localPaths.size()])).run(5);
+        verify(resync.modification, times(leafs + 1)).write(any(YangInstanceIdentifier.class),
+                any(NormalizedNode.class));
+        verify(resync.modification).delete(YangInstanceIdentifier.of(HelloWorldContainer2.QNAME));
+        verify(resync.modification, times(1)).delete(any(YangInstanceIdentifier.class));
+        // one run of keys to put, read in pages, just like the keys (without values) themselves
+        assertThat(resync.remoteKeyValues.getValueReads()).isEqualTo(3);
+        assertThat(resync.remoteKeyValues.getReads()).isEqualTo(6);
+    }
+
+    private static YangInstanceIdentifier leaf(int index) {
+        return CONTAINER.node(QName.create(HelloWorldContainer.QNAME, "leaf" + index));
+    }
+
+    private static NormalizedNode<?, ?> leafNode(int index) {
+        return node(leaf(index));
+    }
+
+    /**
+     * The (shallow) node at the given path; the value of a leaf is its name.
+     */
+    private static NormalizedNode<?, ?> node(YangInstanceIdentifier path) {
+        QName nodeType = path.getLastPathArgument().getNodeType();
+        return path.equals(CONTAINER) ? ImmutableNodes.containerNode(nodeType)
+                : ImmutableNodes.leafNode(nodeType, nodeType.getLocalName());
+    }
+
+    /**
+     * A resync of an EtcdYangKV with a mocked etcd, into a mocked DataTreeModification.
+     */
+    private static final class Resync {
+        final RemoteKeyValues remoteKeyValues = new RemoteKeyValues();
+        final DataTreeModification modification = mock(DataTreeModification.class);
+        final EtcdYangKV etcdKV;
+        final List<ByteSequence> localKeys = new ArrayList<>();
+
+        Resync() {
+            @SuppressWarnings("resource") // because Client is just mocked anyway
+            Client client = mock(Client.class);
+            KV kvClient = mock(KV.class);
+            when(client.getKVClient()).thenReturn(kvClient);
+            remoteKeyValues.mock(kvClient);
+            etcdKV = new EtcdYangKV("Test", client, ByteSequences.fromBytes((byte) 't'));
+        }
+
+        Resync remote(YangInstanceIdentifier path, long modRevision) throws Exception {
+            remoteKeyValues.put(etcdKV.toByteSequence(path), EtcdWatchEventDecoderTest.value(node(path)), modRevision);
+            return this;
+        }
+
+        Resync local(YangInstanceIdentifier... paths) throws EtcdException {
+            for (YangInstanceIdentifier path : paths) {
+                localKeys.add(etcdKV.toByteSequence(path));
+            }
+            localKeys.sort(ByteSequences.KEY_ORDER);
+            return this;
+        }
+
+        void run(long appliedRevision) throws EtcdException {
+            Iterator<ByteSequence> localKeysIterator = localKeys.iterator();
+            etcdKV.resyncInto(10, appliedRevision, () -> localKeysIterator.hasNext() ? localKeysIterator.next() : null,
+                    modification);
+        }
+    }
+
+    /**
+     * Key values in a mocked etcd, which answers (paged range) reads of them; see {@link #mock(KV)}.
+     */
+    static final class RemoteKeyValues {
+        private final NavigableMap<ByteSequence, KeyValue> keyValues = new TreeMap<>(ByteSequences.KEY_ORDER);
+        private int reads;
+        private int valueReads;
+
+        synchronized void put(ByteSequence key, ByteSequence value, long modRevision) {
+            keyValues.put(key, KeyValue.newBuilder().setKey(ByteString.copyFrom(key.getBytes()))
+                    .setValue(ByteString.copyFrom(value.getBytes())).setModRevision(modRevision).build());
+        }
+
+        /**
+         * Make the given mock KV answer reads from these key values (ignoring the revision of the read).
+         */
+        void mock(KV kv) {
+            when(kv.get(any(ByteSequence.class), any(GetOption.class))).thenAnswer(invocation -> CompletableFuture
+                    .completedFuture(get(invocation.getArgument(0), invocation.getArgument(1))));
+        }
+
+        synchronized int getReads() {
+            return reads;
+        }
+
+        /**
+         * The number of reads which were not for keys only.
+         */
+        synchronized int getValueReads() {
+            return valueReads;
+        }
+
+        private synchronized GetResponse get(ByteSequence key, GetOption option) {
+            reads++;
+            if (!option.isKeysOnly()) {
+                valueReads++;
+            }
+            Collection<KeyValue> range;
+            if (option.getEndKey().isPresent()) {
+                range = keyValues.subMap(key, true, option.getEndKey().get(), false).values();
+            } else {
+                range = keyValues.containsKey(key) ? Collections.singletonList(keyValues.get(key))
+                        : Collections.emptyList();
+            }
+            RangeResponse.Builder response = RangeResponse.newBuilder();
+            for (KeyValue keyValue : range) {
+                if (option.getLimit() > 0 && response.getKvsCount() == option.getLimit()) {
+                    response.setMore(true);
+                    break;
+                }
+                response.addKvs(option.isKeysOnly() ? keyValue.toBuilder().clearValue().build() : keyValue);
+            }
+            return new GetResponse(response.setCount(response.getKvsCount()).build());
+        }
+    }
+
+    private static GetResponse newGetResponse(List<WatchEvent> events, boolean isMore) {
+        RangeResponse.Builder response = RangeResponse.newBuilder().setMore(isMore).setCount(events.size());
+        for (WatchEvent event : events) {
+            response.addKvs(KeyValue.newBuilder()
+                    .setKey(ByteString.copyFrom(event.getKeyValue().getKey().getBytes()))
+                    .setValue(ByteString.copyFrom(event.getKeyValue().getValue().getBytes())));
+        }
+        return new GetResponse(response.build());
+    }
+
 }
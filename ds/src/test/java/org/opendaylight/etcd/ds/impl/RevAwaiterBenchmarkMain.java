@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 Red Hat, Inc. and others. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.etcd.ds.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Micro benchmark of {@link RevAwaiter} update/await contention.
+ *
+ * <p>Several threads concurrently await (asynchronously) a total of 10'000 random revisions, while another thread
+ * updates the revision one by one.  This is a plain main() instead of a JMH benchmark, because this project does not
+ * (yet) use JMH; run it a few times, and ignore the first (warm-up) runs.
+ *
+ * @author Michael Vorburger.ch
+ */
+@SuppressWarnings({ "checkstyle:RegexpSingleLineJava", "javadoc" })
+public final class RevAwaiterBenchmarkMain {
+
+    private static final int WAITERS = 10_000;
+    private static final int AWAITING_THREADS = 8;
+    private static final int REVISIONS = 1_000;
+    private static final int RUNS = 10;
+
+    private RevAwaiterBenchmarkMain() { }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(AWAITING_THREADS + 1);
+        try {
+            for (int run = 1; run <= RUNS; run++) {
+                long nanos = runOnce(executor);
+                System.out.println("Run " + run + ": " + WAITERS + " waiters on " + REVISIONS
+                        + " revisions completed in " + NANOSECONDS.toMillis(nanos) + "ms");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long runOnce(ExecutorService executor) throws Exception {
+        RevAwaiter awaiter = new RevAwaiter("benchmark");
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<ListenableFuture<Void>>>> awaiting = new ArrayList<>();
+        for (int thread = 0; thread < AWAITING_THREADS; thread++) {
+            awaiting.add(executor.submit(() -> {
+                start.await();
+                List<ListenableFuture<Void>> futures = new ArrayList<>(WAITERS / AWAITING_THREADS);
+                for (int i = 0; i < WAITERS / AWAITING_THREADS; i++) {
+                    long rev = 1 + ThreadLocalRandom.current().nextInt(REVISIONS);
+                    futures.add(awaiter.awaitAsync(rev, Duration.ofSeconds(60)));
+                }
+                return futures;
+            }));
+        }
+        Future<?> updating = executor.submit(() -> {
+            start.await();
+            for (int rev = 1; rev <= REVISIONS; rev++) {
+                awaiter.update(rev);
+            }
+            return null;
+        });
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        updating.get();
+        List<ListenableFuture<Void>> all = new ArrayList<>(WAITERS);
+        for (Future<List<ListenableFuture<Void>>> futures : awaiting) {
+            all.addAll(futures.get());
+        }
+        Futures.allAsList(all).get(60_000, MILLISECONDS);
+        long nanos = System.nanoTime() - startNanos;
+        if (awaiter.getAwaitedRevisions() != 0) {
+            throw new IllegalStateException("Waiters left behind: " + awaiter);
+        }
+        return nanos;
+    }
+}
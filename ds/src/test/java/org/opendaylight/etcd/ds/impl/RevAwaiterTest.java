@@ -7,7 +7,9 @@
  */
 package org.opendaylight.etcd.ds.impl;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.opendaylight.infrautils.testutils.Asserts.assertThrows;
 
 import com.google.common.util.concurrent.ListenableFuture;
@@ -83,4 +85,43 @@ public class RevAwaiterTest {
         executor.awaitTermination(5, MILLISECONDS);
     }
 
+    @Test public void testAwaitAsyncCompletesAndRemovesOnlySatisfiedWaiters() {
+        ListenableFuture<Void> future1 = awaiter.awaitAsync(1, MS_100);
+        ListenableFuture<Void> future2 = awaiter.awaitAsync(2, MS_100);
+        ListenableFuture<Void> future3 = awaiter.awaitAsync(3, MS_100);
+        assertThat(awaiter.getAwaitedRevisions()).isEqualTo(3);
+        awaiter.update(2);
+        assertThat(future1.isDone()).isTrue();
+        assertThat(future2.isDone()).isTrue();
+        assertThat(future3.isDone()).isFalse();
+        assertThat(awaiter.getAwaitedRevisions()).isEqualTo(1);
+    }
+
+    @Test public void testAwaitAsyncTimeoutDoesNotAffectOtherWaiters() throws Exception {
+        ListenableFuture<Void> shortFuture = awaiter.awaitAsync(1, Duration.ofMillis(1));
+        ListenableFuture<Void> longFuture = awaiter.awaitAsync(1, Duration.ofSeconds(10));
+        assertThrows(ExecutionException.class, () -> shortFuture.get(1, SECONDS));
+        assertThat(longFuture.isDone()).isFalse();
+        awaiter.update(1);
+        longFuture.get(1, SECONDS);
+        assertThat(awaiter.getAwaitedRevisions()).isEqualTo(0);
+    }
+
+    @Test public void testProgress() throws TimeoutException, InterruptedException {
+        awaiter.update(2);
+        awaiter.progress(2);
+        awaiter.progress(1);
+        assertThat(awaiter.currentRevision()).isEqualTo(2L);
+        awaiter.progress(5);
+        awaiter.await(5, MS_100);
+        awaiter.update(6);
+    }
+
+    @Test public void testNanosSinceLastUpdate() throws InterruptedException {
+        Thread.sleep(MS_100.toMillis());
+        assertThat(awaiter.getNanosSinceLastUpdate()).isAtLeast(MS_100.toNanos());
+        awaiter.update(1);
+        assertThat(awaiter.getNanosSinceLastUpdate()).isLessThan(MS_100.toNanos());
+    }
+
 }
@@ -229,7 +229,6 @@ public class EtcdDBTest {
      * Test that a put which modifies what was concurrently modified on the same node in another TX fails.
      */
     @Test
-    @Ignore // TODO must use an IF in TXN...
     public void testRealConflict() throws Exception {
         InstanceIdentifier<HelloWorldContainer> iid = InstanceIdentifier.create(HelloWorldContainer.class);
         HelloWorldContainer helloWorldContainer = new HelloWorldContainerBuilder().setName("hello, world").build();
@@ -251,7 +250,6 @@ public class EtcdDBTest {
      * Test that a put which modifies what was concurrently modified on another cluster node fails.
      */
     @Test
-    @Ignore // TODO as above
     public void testRealConflictInCluster() throws Exception {
         InstanceIdentifier<HelloWorldContainer> iid = InstanceIdentifier.create(HelloWorldContainer.class);
         HelloWorldContainer helloWorldContainer = new HelloWorldContainerBuilder().setName("hello, world").build();